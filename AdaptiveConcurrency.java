@@ -0,0 +1,325 @@
+import java.util.HashMap;
+
+/**
+ * This class decides how many fetches may run at once, over the whole crawl
+ * and on each host. Fixed, it only caps the crawl at a number of fetches like
+ * a semaphore would. Adaptive, every limit is an additive-increase,
+ * multiplicative-decrease window like TCP's: it starts small and doubles every
+ * round trip until the first sign of trouble, then grows by one fetch per
+ * window of fetches that went well. The recent average time to the first byte
+ * getting much slower than the lowest that average has been on its host means
+ * requests are queueing, past the knee of the latency curve, so the limit
+ * shrinks a little. Averages are compared rather than single responses, so the
+ * jitter of a real network doesn't read as queueing. An error or an overloaded
+ * status shrinks a host's limit more and a timeout halves it. The limit of the
+ * crawl as a whole goes by the share of recent fetches over every host that
+ * failed or timed out, with some tolerance for broken pages, and by how much
+ * slower than their best the hosts answer on average. A limit is cut at most
+ * once per window, since the fetches already running saw the same trouble
+ */
+public class AdaptiveConcurrency {
+
+    // how a fetch went, as far as the limits care
+    public static final int SUCCESS = 0;
+    public static final int ERROR = 1;
+    public static final int TIMEOUT = 2;
+
+    // responses this many times slower than their host's fastest means they queued
+    public static final double LATENCY_TOLERANCE = 2.0;
+
+    // shares of recent fetches over the crawl that may fail or time out before it backs off
+    public static final double ERROR_RATE_TOLERANCE = 0.2;
+    public static final double TIMEOUT_RATE_TOLERANCE = 0.05;
+
+    // fetches the recent averages are taken over, roughly
+    public static final int RECENT_FETCHES = 32;
+
+    // fetches made one at a time over which a host's fastest time is forgotten, roughly
+    public static final int BASELINE_FETCHES = 256;
+
+    // what a limit is multiplied by for a slow response, an error and a timeout
+    public static final double SLOW_DECREASE = 0.9;
+    public static final double ERROR_DECREASE = 0.7;
+    public static final double TIMEOUT_DECREASE = 0.5;
+
+    // fetches a host may start with
+    public static final double INITIAL_HOST_LIMIT = 2.0;
+
+    // set if the limits move, otherwise only the crawl as a whole is capped
+    private boolean adaptive;
+
+    // most fetches a single host may ever have
+    private int maxPerHost;
+
+    // the limit of the whole crawl, its recent average being a ratio instead of a time
+    // and its failure rates the only ones kept
+    private Limit global;
+
+    // the limit of every host that was fetched from
+    private HashMap<String, Limit> hosts;
+
+    // limits cut because of slow responses, errors and timeouts
+    private long slowDecreases;
+    private long errorDecreases;
+    private long timeoutDecreases;
+
+    /*
+     * constructor for limits that stay at maxInFlight fetches over
+     * the crawl and don't limit hosts, or that move between 1 and
+     * maxInFlight over the crawl and 1 and maxPerHost per host
+     */
+    public AdaptiveConcurrency(int maxInFlight, int maxPerHost, boolean adaptive) {
+
+        this.adaptive = adaptive;
+        this.maxPerHost = maxPerHost;
+        global = new Limit(adaptive ? Math.min(INITIAL_HOST_LIMIT, maxInFlight) : maxInFlight, maxInFlight);
+        hosts = new HashMap<String, Limit>();
+    }
+
+    /*
+     * waits until the crawl may start another fetch and counts it
+     */
+    public synchronized void acquire() throws InterruptedException {
+
+        while (global.inFlight >= global.allowed()) {
+            wait();
+        }
+        global.inFlight++;
+    }
+
+    /*
+     * gives back a fetch acquire counted that never started
+     */
+    public synchronized void cancel() {
+
+        global.inFlight--;
+        notifyAll();
+    }
+
+    /*
+     * counts a fetch from host if the host may have another
+     * one running, and returns false if it may not
+     */
+    public synchronized boolean tryAcquire(String host) {
+
+        Limit limit = host(host);
+
+        if (adaptive && limit.inFlight >= limit.allowed()) {
+            return false;
+        }
+
+        limit.inFlight++;
+        return true;
+    }
+
+    /*
+     * counts a fetch from host as done, and moves the limits by how
+     * long it took to the first byte and whether it went well
+     */
+    public synchronized void release(String host, long latencyNanos, int outcome) {
+
+        Limit limit = host(host);
+        limit.inFlight--;
+        global.inFlight--;
+
+        if (adaptive) {
+
+            double ratio = limit.ratio(latencyNanos, outcome);
+            adjust(limit, ratio, outcome);
+
+            // one bad host is its own limit's business. the crawl as a whole only backs
+            // off when responses from every host get slower than they can be, or a good
+            // share of all the fetches fail
+            global.countOutcome(outcome);
+            if (outcome == SUCCESS) {
+                global.averageRatio(ratio);
+            }
+
+            int trouble = global.timeoutRate > TIMEOUT_RATE_TOLERANCE ? TIMEOUT
+                : global.errorRate > ERROR_RATE_TOLERANCE ? ERROR : SUCCESS;
+
+            // a failure the crawl can live with doesn't grow it either
+            if (trouble != SUCCESS || outcome == SUCCESS) {
+                adjust(global, global.recent, trouble);
+            }
+        }
+
+        notifyAll();
+    }
+
+    // grows or cuts a limit for one finished fetch
+    private void adjust(Limit limit, double ratio, int outcome) {
+
+        limit.released++;
+
+        if (outcome == SUCCESS && ratio <= LATENCY_TOLERANCE) {
+            limit.increase();
+            return;
+        }
+
+        double factor = outcome == TIMEOUT ? TIMEOUT_DECREASE
+            : outcome == ERROR ? ERROR_DECREASE : SLOW_DECREASE;
+
+        if (limit.decrease(factor)) {
+            if (outcome == TIMEOUT) {
+                timeoutDecreases++;
+            } else if (outcome == ERROR) {
+                errorDecreases++;
+            } else {
+                slowDecreases++;
+            }
+        }
+    }
+
+    // the limit of host, made the first time it is asked for
+    private Limit host(String host) {
+
+        Limit limit = hosts.get(host);
+
+        if (limit == null) {
+            limit = new Limit(Math.min(INITIAL_HOST_LIMIT, maxPerHost), maxPerHost);
+            hosts.put(host, limit);
+        }
+        return limit;
+    }
+
+    /*
+     * returns how many fetches the crawl may run at once now
+     */
+    public synchronized int getLimit() {
+        return global.allowed();
+    }
+
+    /*
+     * returns how many fetches host may have running at once now
+     */
+    public synchronized int getHostLimit(String host) {
+        return adaptive ? host(host).allowed() : Integer.MAX_VALUE;
+    }
+
+    /*
+     * returns how many fetches are running
+     */
+    public synchronized int getInFlight() {
+        return global.inFlight;
+    }
+
+    /*
+     * returns the limits and how often they were cut
+     */
+    public synchronized String toString() {
+
+        if (!adaptive) {
+            return "Concurrency: fixed at " + global.allowed();
+        }
+
+        double sum = 0;
+        for (Limit limit : hosts.values()) {
+            sum += limit.window;
+        }
+
+        return String.format("Concurrency: %.1f of %d, Hosts: %d averaging %.1f of %d,"
+            + " Cuts: %d slow, %d errors, %d timeouts",
+            global.window, (int) global.max, hosts.size(), hosts.isEmpty() ? 0 : sum / hosts.size(),
+            maxPerHost, slowDecreases, errorDecreases, timeoutDecreases);
+    }
+
+    /*
+     * this inner class is one AIMD window
+     */
+    private static class Limit {
+
+        // fetches allowed, a fraction until it grows to the next whole one
+        double window;
+
+        // the most and least fetches allowed
+        double max;
+        double min;
+
+        // set until the first cut, while the window doubles every round trip
+        boolean slowStart;
+
+        // fetches running
+        int inFlight;
+
+        // fetches finished, and until which of them no further cut is made
+        long released;
+        long recoverUntil;
+
+        // lowest the recent average time to the first byte has been, in nanoseconds.
+        // forgotten slowly by fetches that ran alone, so nothing of ours queued them
+        double baseline;
+
+        // average of the recent times to the first byte, so one slow response doesn't count
+        double recent;
+
+        // recent shares of fetches that failed, timeouts included, and that timed out
+        double errorRate;
+        double timeoutRate;
+
+        Limit(double window, double max) {
+
+            this.window = window;
+            this.max = max;
+            this.min = 1.0;
+            this.slowStart = true;
+        }
+
+        // the whole number of fetches allowed
+        int allowed() {
+            return (int) Math.max(min, Math.floor(window));
+        }
+
+        // adds a fetch per window's worth of good fetches, or one per fetch in slow start
+        void increase() {
+
+            window = Math.min(max, window + (slowStart ? 1.0 : 1.0 / window));
+        }
+
+        // multiplies the window by factor unless it was cut during the last window,
+        // or so recently that the averages mostly still remember the fetches before
+        boolean decrease(double factor) {
+
+            if (released < recoverUntil) {
+                return false;
+            }
+
+            slowStart = false;
+            window = Math.max(min, window * factor);
+            recoverUntil = released + inFlight + 1 + RECENT_FETCHES;
+            return true;
+        }
+
+        // how many times slower than the fastest the recent responses were, 1 for a failure
+        double ratio(long latencyNanos, int outcome) {
+
+            if (outcome != SUCCESS || latencyNanos <= 0) {
+                return 1.0;
+            }
+
+            recent = recent == 0 ? latencyNanos : recent + (latencyNanos - recent) / RECENT_FETCHES;
+
+            if (baseline == 0 || recent < baseline) {
+                baseline = recent;
+            } else if (inFlight == 0) {
+                // creep up, so a host that became slower for good isn't held to its old best
+                baseline += (recent - baseline) / BASELINE_FETCHES;
+            }
+
+            return recent / baseline;
+        }
+
+        // averages the ratios of recent responses to their hosts' fastest
+        void averageRatio(double ratio) {
+
+            recent = recent == 0 ? ratio : recent + (ratio - recent) / RECENT_FETCHES;
+        }
+
+        // counts a finished fetch in the recent failure rates
+        void countOutcome(int outcome) {
+
+            errorRate += ((outcome != SUCCESS ? 1 : 0) - errorRate) / RECENT_FETCHES;
+            timeoutRate += ((outcome == TIMEOUT ? 1 : 0) - timeoutRate) / RECENT_FETCHES;
+        }
+    }
+}
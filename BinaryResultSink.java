@@ -0,0 +1,228 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class writes every page in a compact binary form, for crawls too big
+ * to keep as text. After a four byte magic number each page is its url's
+ * length and UTF-8 bytes, then its depth, status, bytes, microseconds and
+ * the milliseconds since the page before it finished, all as variable length
+ * integers. A typical page takes the length of its url plus about ten bytes.
+ * replay reads a file back into any other sink, and main turns one into
+ * newline-delimited JSON
+ */
+public class BinaryResultSink implements ResultSink {
+
+    // first bytes of every results file
+    public static final int MAGIC = 0x43525331;
+
+    // size of the buffer in front of the file
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    // where the records go
+    private OutputStream out;
+
+    // when the page before finished, what the next time is written against
+    private long lastFinishedAt;
+
+    /*
+     * constructor for a sink writing to file, which is replaced
+     */
+    public BinaryResultSink(File file) throws IOException {
+
+        this(new FileOutputStream(file));
+    }
+
+    /*
+     * constructor for a sink writing to out
+     */
+    public BinaryResultSink(OutputStream out) throws IOException {
+
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            this.out.write(MAGIC >>> shift);
+        }
+    }
+
+    public synchronized void result(PageResult result) throws IOException {
+
+        URLDepthPair pair = result.getPair();
+        byte[] url = pair.urlBytes();
+
+        writeVarLong(out, url.length);
+        out.write(url, 0, url.length);
+        writeVarLong(out, pair.getDepth());
+        writeVarLong(out, result.getStatus());
+        writeVarLong(out, result.getBytes());
+        writeVarLong(out, result.getNanos() / 1000);
+
+        // pages finish in about the order they are written, so the gaps are small
+        long delta = result.getFinishedAt() - lastFinishedAt;
+        writeVarLong(out, (delta << 1) ^ (delta >> 63));
+        lastFinishedAt = result.getFinishedAt();
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /*
+     * reads every page written to in and hands it to sink.
+     * returns the number of pages read
+     */
+    public static long replay(InputStream in, ResultSink sink) throws IOException {
+
+        Reader reader = new Reader(in);
+        long count = 0;
+
+        for (PageResult result = reader.next(); result != null; result = reader.next()) {
+            sink.result(result);
+            count++;
+        }
+        return count;
+    }
+
+    /*
+     * this inner class reads the pages of a results file one at a time,
+     * for merging several files without holding any of them in memory
+     */
+    public static class Reader {
+
+        // where the records come from
+        private InputStream in;
+
+        // when the page before finished
+        private long finishedAt;
+
+        // holds the url being read, grown when one doesn't fit
+        private byte[] url;
+
+        /*
+         * constructor for a reader of in, which must start with the magic number
+         */
+        public Reader(InputStream in) throws IOException {
+
+            this.in = in;
+            url = new byte[256];
+
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                magic = (magic << 8) | readByte(in);
+            }
+            if (magic != MAGIC) {
+                throw new IOException("not a results file");
+            }
+        }
+
+        /*
+         * returns the next page, or null at the end of the file
+         */
+        public PageResult next() throws IOException {
+
+            int b = in.read();
+            if (b == -1) {
+                return null;
+            }
+
+            int length = (int) readVarLong(in, b);
+            if (length > url.length) {
+                url = new byte[Math.max(length, url.length * 2)];
+            }
+
+            for (int off = 0; off < length; ) {
+                int n = in.read(url, off, length - off);
+                if (n == -1) {
+                    throw new EOFException("results file ends inside a page");
+                }
+                off += n;
+            }
+
+            int depth = (int) readVarLong(in, readByte(in));
+            int status = (int) readVarLong(in, readByte(in));
+            long bytes = readVarLong(in, readByte(in));
+            long micros = readVarLong(in, readByte(in));
+            long zigzag = readVarLong(in, readByte(in));
+            finishedAt += (zigzag >>> 1) ^ -(zigzag & 1);
+
+            URLDepthPair pair = new URLDepthPair(new String(url, 0, length, StandardCharsets.UTF_8), depth);
+            return new PageResult(pair, status, bytes, micros * 1000, finishedAt);
+        }
+    }
+
+    // writes v seven bits at a time, low bits first
+    private static void writeVarLong(OutputStream out, long v) throws IOException {
+
+        while ((v & ~0x7fL) != 0) {
+            out.write((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    // reads a number written by writeVarLong whose first byte was already read
+    private static long readVarLong(InputStream in, int first) throws IOException {
+
+        long v = first & 0x7f;
+        int shift = 7;
+
+        for (int b = first; (b & 0x80) != 0; shift += 7) {
+            if (shift > 63) {
+                throw new IOException("bad number in results file");
+            }
+            b = readByte(in);
+            v |= (long) (b & 0x7f) << shift;
+        }
+        return v;
+    }
+
+    // reads a byte that must be there
+    private static int readByte(InputStream in) throws IOException {
+
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("results file ends inside a page");
+        }
+        return b;
+    }
+
+    /*
+     * main function. prints a binary results file as
+     * newline-delimited JSON
+     */
+    public static void main(String[] args) {
+
+        if (args.length != 1) {
+            System.out.println("usage: java BinaryResultSink <results file>");
+            System.exit(1);
+        }
+
+        try {
+
+            InputStream in = new BufferedInputStream(new FileInputStream(args[0]), BUFFER_SIZE);
+            NDJSONResultSink json = new NDJSONResultSink(System.out);
+
+            try {
+                replay(in, json);
+            } finally {
+                in.close();
+                json.flush();
+            }
+
+        } catch (IOException e) {
+            System.out.println("Couldn't read results: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a bounded queue any number of threads can put to and take
+ * from without a lock, Dmitry Vyukov's ring. Every slot carries a sequence
+ * number saying whose turn it is: a producer may fill the slot whose sequence
+ * equals the position it claimed, and a consumer may empty it once the
+ * sequence is one past it. Claiming a position is a single compare-and-set,
+ * so threads only ever retry, never wait for each other. A full queue makes
+ * put wait, which is what slows down whoever fills it too fast. A thread
+ * that has to wait spins a little on a machine with cores to spare, then
+ * sleeps until the thread that makes room or adds an item wakes it
+ */
+public class BoundedQueue<T> {
+
+    // spins, then yields, before a waiting thread sleeps. spinning on a single core only delays the others
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 64 : 0;
+    private static final int YIELDS = 8;
+
+    // longest a waiting thread sleeps before it looks again, in case a wake up was missed
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // the items, and whose turn every slot is
+    private AtomicReferenceArray<T> items;
+    private AtomicLongArray sequences;
+
+    // capacity - 1, the capacity being a power of 2
+    private int mask;
+
+    // the next position to put to, and the next one to take from
+    private AtomicLong tail;
+    private AtomicLong head;
+
+    // most items ever in the queue at once
+    private volatile int maxSize;
+
+    // threads sleeping until there is an item to take, or room to put one
+    private ConcurrentLinkedQueue<Thread> waitingForItems;
+    private ConcurrentLinkedQueue<Thread> waitingForRoom;
+
+    /*
+     * constructor for a queue that holds up to capacity
+     * items, rounded up to a power of 2
+     */
+    public BoundedQueue(int capacity) {
+
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+
+        items = new AtomicReferenceArray<T>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+
+        mask = size - 1;
+        tail = new AtomicLong();
+        head = new AtomicLong();
+        waitingForItems = new ConcurrentLinkedQueue<Thread>();
+        waitingForRoom = new ConcurrentLinkedQueue<Thread>();
+    }
+
+    /*
+     * adds item if there is room, and returns false if the queue is full
+     */
+    public boolean offer(T item) {
+
+        while (true) {
+
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+
+            if (difference == 0) {
+
+                if (tail.compareAndSet(position, position + 1)) {
+
+                    items.lazySet(slot, item);
+                    sequences.lazySet(slot, position + 1);
+
+                    int size = size();
+                    if (size > maxSize) {
+                        maxSize = size;
+                    }
+
+                    wake(waitingForItems);
+                    return true;
+                }
+
+            } else if (difference < 0) {
+                // the consumer of the last lap hasn't emptied the slot yet
+                return false;
+            }
+            // otherwise another producer took the position, try the next one
+        }
+    }
+
+    /*
+     * takes the oldest item, or returns null if the queue is empty
+     */
+    public T poll() {
+
+        while (true) {
+
+            long position = head.get();
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - (position + 1);
+
+            if (difference == 0) {
+
+                if (head.compareAndSet(position, position + 1)) {
+
+                    T item = items.get(slot);
+                    items.lazySet(slot, null);
+
+                    // the slot is free for the producer one lap ahead
+                    sequences.lazySet(slot, position + mask + 1);
+
+                    wake(waitingForRoom);
+                    return item;
+                }
+
+            } else if (difference < 0) {
+                return null;
+            }
+        }
+    }
+
+    /*
+     * adds item, waiting for room as long as it takes.
+     * returns how long it waited, in nanoseconds
+     */
+    public long put(T item) throws InterruptedException {
+
+        if (offer(item)) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+
+        for (int round = 0; ; round++) {
+
+            if (round < SPINS + YIELDS) {
+                backOff(round);
+                if (offer(item)) {
+                    break;
+                }
+                continue;
+            }
+
+            // looking again once we can be woken up means no wake up is missed
+            Thread self = Thread.currentThread();
+            waitingForRoom.add(self);
+            try {
+                if (offer(item)) {
+                    break;
+                }
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            } finally {
+                waitingForRoom.remove(self);
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /*
+     * takes the oldest item, waiting up to timeout for one.
+     * returns null if none came in time
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+
+        T item = poll();
+        if (item != null) {
+            return item;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        for (int round = 0; ; round++) {
+
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return null;
+            }
+
+            if (round < SPINS + YIELDS) {
+                backOff(round);
+                if ((item = poll()) != null) {
+                    return item;
+                }
+                continue;
+            }
+
+            Thread self = Thread.currentThread();
+            waitingForItems.add(self);
+            try {
+                if ((item = poll()) != null) {
+                    return item;
+                }
+                LockSupport.parkNanos(this, Math.min(left, MAX_PARK_NANOS));
+            } finally {
+                waitingForItems.remove(self);
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    // spins, then yields, before a thread goes to sleep
+    private static void backOff(int round) {
+
+        if (round < SPINS) {
+            Thread.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+
+    // wakes one of the threads sleeping on waiting, if any
+    private static void wake(ConcurrentLinkedQueue<Thread> waiting) {
+
+        if (!waiting.isEmpty()) {
+            Thread thread = waiting.poll();
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /*
+     * returns how many items are in the queue, which
+     * may be stale by the time it is looked at
+     */
+    public int size() {
+
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    /*
+     * returns true if the queue holds nothing right now
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /*
+     * returns how many items the queue holds at most
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /*
+     * returns the most items that were ever in the queue at once
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * This class is a priority queue for small integer priorities, 0 to 63.
+ * Every priority has its own FIFO bucket, and one bit per bucket tells
+ * which ones hold anything, so adding is O(1) and so is finding the highest
+ * bucket. Items with the same priority come out in the order they went in.
+ * There is no way to change or remove an item in place: to raise an item it
+ * is added again with the new priority, and the copy left behind is skipped
+ * by the caller when it comes out. lastPriority tells what an item came out as
+ */
+public class BucketQueue<T> implements Iterable<T> {
+
+    // number of priorities, one bucket each
+    public static final int LEVELS = 64;
+
+    // the items of every priority
+    private ArrayDeque<T>[] buckets;
+
+    // bit i is set while bucket i holds anything
+    private long nonEmpty;
+
+    // items in all buckets, stale copies included
+    private int size;
+
+    // the priority of the item poll returned last
+    private int lastPriority;
+
+    /*
+     * constructor for an empty queue
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BucketQueue() {
+
+        buckets = new ArrayDeque[LEVELS];
+        lastPriority = -1;
+    }
+
+    /*
+     * adds an item with a priority from 0 to 63, higher first
+     */
+    public void add(T item, int priority) {
+
+        if (priority < 0 || priority >= LEVELS) {
+            throw new IllegalArgumentException("priority must be between 0 and " + (LEVELS - 1));
+        }
+
+        if (buckets[priority] == null) {
+            buckets[priority] = new ArrayDeque<T>();
+        }
+
+        buckets[priority].addLast(item);
+        nonEmpty |= 1L << priority;
+        size++;
+    }
+
+    /*
+     * takes the oldest item of the highest priority,
+     * or returns null if there is none
+     */
+    public T poll() {
+
+        int priority = peekPriority();
+        if (priority < 0) {
+            return null;
+        }
+
+        T item = buckets[priority].pollFirst();
+        if (buckets[priority].isEmpty()) {
+            nonEmpty &= ~(1L << priority);
+        }
+
+        size--;
+        lastPriority = priority;
+        return item;
+    }
+
+    /*
+     * returns the item poll would take, without taking it
+     */
+    public T peek() {
+
+        int priority = peekPriority();
+        return priority < 0 ? null : buckets[priority].peekFirst();
+    }
+
+    /*
+     * returns the highest priority that holds anything, -1 if none
+     */
+    public int peekPriority() {
+        return 63 - Long.numberOfLeadingZeros(nonEmpty);
+    }
+
+    /*
+     * returns the priority of the item poll returned last
+     */
+    public int lastPriority() {
+        return lastPriority;
+    }
+
+    /*
+     * returns the number of items, stale copies included
+     */
+    public int size() {
+        return size;
+    }
+
+    /*
+     * returns true if nothing is queued
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /*
+     * takes every item out
+     */
+    public void clear() {
+
+        for (int i = 0; i < LEVELS; i++) {
+            if (buckets[i] != null) {
+                buckets[i].clear();
+            }
+        }
+
+        nonEmpty = 0;
+        size = 0;
+    }
+
+    /*
+     * goes over the items in the order poll would take them, stale
+     * copies included. the queue must not change while it does
+     */
+    public Iterator<T> iterator() {
+
+        List<T> items = new ArrayList<T>(size);
+
+        for (int priority = LEVELS - 1; priority >= 0; priority--) {
+            if ((nonEmpty & (1L << priority)) != 0) {
+                items.addAll(buckets[priority]);
+            }
+        }
+        return items.iterator();
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This class saves the state of a crawl so it can be picked up again after a
+ * crash. Processed pages are appended to a journal as they finish, which makes
+ * that part incremental. Every checkpoint then writes a snapshot of the seen
+ * URL store and the frontier next to it, together with how much of the journal
+ * it covers, and swaps it in atomically so a crash never leaves a half file
+ */
+public class CrawlCheckpoint {
+
+    // first bytes of every checkpoint file
+    private static final long MAGIC = 0x435241574c434b50L;
+
+    // version of the file format
+    private static final int VERSION = 2;
+
+    // the snapshot file
+    private File file;
+
+    // the journal of processed pages, next to the snapshot
+    private File journalFile;
+
+    // stream the journal is appended through, null until opened
+    private FileOutputStream journalStream;
+    private DataOutputStream journal;
+
+    /*
+     * constructor for checkpoints kept in file, with
+     * the journal in file.journal
+     */
+    public CrawlCheckpoint(File file) {
+
+        this.file = file;
+        this.journalFile = new File(file.getPath() + ".journal");
+    }
+
+    /*
+     * returns true if there is a checkpoint to resume from
+     */
+    public boolean exists() {
+        return file.isFile();
+    }
+
+    /*
+     * starts a new journal, throwing away any old one
+     */
+    public void startJournal() throws IOException {
+
+        openJournal(0);
+    }
+
+    /*
+     * appends a processed page to the journal. it only counts
+     * once the next checkpoint is written
+     */
+    public synchronized void recordProcessed(URLDepthPair pair) throws IOException {
+
+        writePair(journal, pair);
+    }
+
+    /*
+     * writes a checkpoint. the caller must make sure nothing changes the
+     * seen store, frontier or processed pages while this runs
+     */
+    public synchronized void write(int maximumDepth, String firstUrl, SeenURLStore seen,
+                                   HostScheduler frontier, Collection<URLDepthPair> inFlight) throws IOException {
+
+        // everything processed so far must be on disk before the snapshot says so
+        journal.flush();
+        journalStream.getFD().sync();
+        long journalLength = journalStream.getChannel().position();
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+
+        try {
+
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(maximumDepth);
+            out.writeUTF(firstUrl);
+            out.writeLong(journalLength);
+
+            seen.writeTo(out);
+
+            // pages being fetched right now aren't done, so they go back in the frontier
+            out.writeLong(frontier.size() + inFlight.size());
+            for (URLDepthPair pair : inFlight) {
+                writePair(out, pair);
+            }
+            frontier.writeTo(out);
+
+        } finally {
+            out.close();
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * reads the last checkpoint back. the frontier pages are added to
+     * frontier, the pages processed before it to processed, and the
+     * journal is cut back to what the checkpoint covers
+     */
+    public synchronized Snapshot load(HostScheduler frontier, List<URLDepthPair> processed) throws IOException {
+
+        Snapshot snapshot = new Snapshot();
+        long journalLength;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+
+        try {
+
+            if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a crawl checkpoint");
+            }
+
+            snapshot.maximumDepth = in.readInt();
+            snapshot.firstUrl = in.readUTF();
+            journalLength = in.readLong();
+
+            snapshot.seen = SeenURLStore.readFrom(in);
+
+            long pending = in.readLong();
+            for (long i = 0; i < pending; i++) {
+                frontier.add(readPair(in));
+            }
+
+        } finally {
+            in.close();
+        }
+
+        // pages processed after the checkpoint will be fetched again
+        DataInputStream journalIn = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 1 << 16));
+
+        try {
+            long read = 0;
+            while (read < journalLength) {
+                URLDepthPair pair = readPair(journalIn);
+                processed.add(pair);
+                read += pairLength(pair);
+            }
+        } catch (EOFException e) {
+            throw new IOException(journalFile + " is shorter than its checkpoint");
+        } finally {
+            journalIn.close();
+        }
+
+        openJournal(journalLength);
+        return snapshot;
+    }
+
+    /*
+     * closes the journal
+     */
+    public synchronized void close() throws IOException {
+
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /*
+     * writes a pair the way the frontier and journal store it
+     */
+    public static void writePair(DataOutput out, URLDepthPair pair) throws IOException {
+
+        out.writeUTF(pair.getURL());
+        out.writeInt(pair.getDepth());
+    }
+
+    /*
+     * reads a pair written by writePair
+     */
+    public static URLDepthPair readPair(DataInput in) throws IOException {
+
+        String url = in.readUTF();
+        int depth = in.readInt();
+        return new URLDepthPair(url, depth);
+    }
+
+    // the number of bytes writePair used for a pair
+    private static long pairLength(URLDepthPair pair) throws IOException {
+
+        DataOutputStream counter = new DataOutputStream(OutputStream.nullOutputStream());
+        writePair(counter, pair);
+        return counter.size();
+    }
+
+    // opens the journal for appending after its first length bytes
+    private void openJournal(long length) throws IOException {
+
+        close();
+
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+
+        journalStream = new FileOutputStream(journalFile, true);
+        journal = new DataOutputStream(new BufferedOutputStream(journalStream, 1 << 16));
+    }
+
+    /*
+     * this inner class is what a checkpoint holds
+     * besides the frontier and processed pages
+     */
+    public static class Snapshot {
+
+        // the max depth of the crawl
+        public int maximumDepth;
+
+        // the url the crawl started from
+        public String firstUrl;
+
+        // every url the crawl had queued
+        public SeenURLStore seen;
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures how the crawler scales. It starts a SyntheticSite on
+ * the loopback interface, crawls all of it once for every number of threads
+ * given, and prints the pages per second of each crawl with the latency of
+ * every fetch stage. Hosts aren't rate limited, so only the crawler and the
+ * site's latency set the pace. With --https the site is served over TLS with
+ * a self-signed certificate, which the crawler is told to trust
+ */
+public class CrawlLoadTest {
+
+    // the numbers of threads crawled with when none are given
+    public static final int[] DEFAULT_THREADS = { 1, 4, 16, 64 };
+
+    /*
+     * usage statement. used when given an illegal argument on
+     * the command line
+     */
+    public static void usage() {
+        System.out.println("usage: java CrawlLoadTest [--threads <n,n,...>] [--nio] [--per-host <n>] [--adaptive] [--pipeline] "
+            + SyntheticSite.optionsUsage());
+        System.exit(1);
+    }
+
+    /*
+     * this inner class only counts the pages crawled, so printing
+     * them doesn't slow down or drown out what is measured
+     */
+    private static class CountingResultSink implements ResultSink {
+
+        // pages reported so far
+        private AtomicLong pages = new AtomicLong();
+
+        public void result(PageResult result) {
+            pages.incrementAndGet();
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+
+        // the number of pages reported
+        long getPages() {
+            return pages.get();
+        }
+    }
+
+    /*
+     * crawls the whole site once with threads fetches in flight
+     * and prints how it went
+     */
+    private static void run(SyntheticSite site, int threads, boolean nio, int perHost, boolean adaptive,
+            boolean pipelined) {
+
+        // one level more than the site, since pages at the crawl's max depth aren't read
+        Crawler crawler = new Crawler(site.getDepth() + 1, site.getRootURL(), threads);
+        crawler.setHostRate(0);
+        crawler.setMaxConnectionsPerHost(perHost);
+        crawler.setAdaptiveConcurrency(adaptive);
+
+        CountingResultSink results = new CountingResultSink();
+        crawler.setResultSink(results);
+
+        // the site's certificate is self-signed, so nothing else would trust it
+        if (site.getCertificateFile() != null) {
+            try {
+                crawler.setTrustedCertificates(site.getCertificateFile());
+            } catch (IOException | GeneralSecurityException e) {
+                System.out.println("Couldn't load certificates: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (pipelined) {
+            crawler.setPipeline(Crawler.DEFAULT_STAGE_THREADS, CrawlPipeline.DEFAULT_CAPACITY);
+        }
+
+        if (nio) {
+            try {
+                crawler.useNIO();
+            } catch (IOException e) {
+                System.out.println("Couldn't open selector");
+                System.exit(1);
+            }
+        }
+
+        long start = System.nanoTime();
+        crawler.crawl();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        CrawlMetrics metrics = crawler.getMetrics();
+        LatencyHistogram ttfb = metrics.getHistogram(CrawlMetrics.TTFB);
+
+        // pages under one that failed, or first found too deep, aren't reached
+        System.out.println(String.format("threads %4d: %7d of %d pages in %7.2f s, %9.1f pages/s,"
+            + " ttfb p50 %.2f p90 %.2f p99 %.2f max %.2f ms",
+            threads, results.getPages(), site.getPageCount(), seconds, results.getPages() / seconds,
+            ttfb.getPercentile(50) / 1e6, ttfb.getPercentile(90) / 1e6,
+            ttfb.getPercentile(99) / 1e6, ttfb.getMax() / 1e6));
+        System.out.println(metrics);
+        System.out.println(crawler.getConcurrency());
+
+        if (site.getCertificateFile() != null) {
+            System.out.println(crawler.getTLSContext());
+        }
+
+        if (pipelined) {
+            System.out.println(crawler.getPipeline());
+        }
+    }
+
+    /*
+     * main function. starts the site described by the options,
+     * crawls it once per thread count and stops it again
+     */
+    public static void main(String[] args) {
+
+        SyntheticSite site = new SyntheticSite();
+        List<Integer> threads = new ArrayList<Integer>();
+        boolean nio = false;
+        int perHost = HostConnectionPool.DEFAULT_MAX_PER_HOST;
+        boolean adaptive = false;
+        boolean pipelined = false;
+
+        // any free port, unless one is given
+        site.setPort(0);
+
+        for (int i = 0; i < args.length; ) {
+
+            try {
+
+                if (args[i].equals("--threads") && i + 1 < args.length) {
+
+                    for (String n : args[i + 1].split(",")) {
+                        int t = Integer.parseInt(n.trim());
+                        if (t < 1) {
+                            usage();
+                        }
+                        threads.add(t);
+                    }
+                    i += 2;
+
+                } else if (args[i].equals("--nio")) {
+                    nio = true;
+                    i++;
+                } else if (args[i].equals("--adaptive")) {
+                    adaptive = true;
+                    i++;
+                } else if (args[i].equals("--pipeline")) {
+                    pipelined = true;
+                    i++;
+                } else if (args[i].equals("--per-host") && i + 1 < args.length) {
+
+                    perHost = Integer.parseInt(args[i + 1]);
+                    if (perHost < 1) {
+                        usage();
+                    }
+                    i += 2;
+
+                } else {
+                    i = site.parseOption(args, i);
+                }
+
+            } catch (IllegalArgumentException e) {
+                // a NumberFormatException is one too
+                System.out.println(e instanceof NumberFormatException ? "Options must be numbers." : e.getMessage());
+                usage();
+            }
+
+            if (i < 0) {
+                usage();
+            }
+        }
+
+        if (threads.isEmpty()) {
+            for (int t : DEFAULT_THREADS) {
+                threads.add(t);
+            }
+        }
+
+        try {
+            site.start();
+        } catch (IOException e) {
+            System.out.println("Couldn't start site: " + e.getMessage());
+            System.exit(1);
+        }
+
+        System.out.println(site);
+        System.out.println("Expected errors: " + site.getErrorPageCount() + ", Fetcher: " + (nio ? "NIO" : "blocking")
+            + ", Connections per host: " + perHost + ", Concurrency: " + (adaptive ? "adaptive" : "fixed")
+            + ", Pipeline: " + (pipelined ? "on" : "off") + ", TLS: " + (site.getCertificateFile() != null ? "on" : "off"));
+
+        try {
+            for (int t : threads) {
+                run(site, t, nio, perHost, adaptive, pipelined);
+            }
+        } finally {
+            site.stop();
+        }
+
+        System.out.println(site);
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLException;
+
+/**
+ * This class times every stage of fetching a page and counts pages, bytes
+ * and errors while the crawl runs. Each stage has its own LatencyHistogram,
+ * so a slow crawl shows whether the time goes to DNS, connecting, waiting
+ * for the first byte, downloading or parsing. Recording only touches atomic
+ * counters, so it is always on. The numbers are shown over JMX and, if asked
+ * for, as a line on standard error every few seconds
+ */
+public class CrawlMetrics implements CrawlMetricsMBean {
+
+    // the name the metrics are registered under over JMX
+    public static final String OBJECT_NAME = "Crawler:type=CrawlMetrics";
+
+    // the stages of a fetch
+    public static final int DNS = 0;
+    public static final int CONNECT = 1;
+    public static final int TTFB = 2;
+    public static final int DOWNLOAD = 3;
+    public static final int PARSE = 4;
+
+    private static final String[] STAGE_NAMES = { "dns", "connect", "ttfb", "download", "parse" };
+
+    // what can go wrong with a fetch
+    public static final int ERROR_DNS = 0;
+    public static final int ERROR_CONNECT = 1;
+    public static final int ERROR_TIMEOUT = 2;
+    public static final int ERROR_TLS = 3;
+    public static final int ERROR_RESET = 4;
+    public static final int ERROR_OTHER = 5;
+    public static final int ERROR_HTTP_4XX = 6;
+    public static final int ERROR_HTTP_5XX = 7;
+
+    private static final String[] ERROR_NAMES = { "dns", "connect", "timeout", "tls", "reset", "other",
+        "4xx", "5xx" };
+
+    // the latencies of every stage, in nanoseconds
+    private LatencyHistogram[] stages;
+
+    // pages finished and bytes received
+    private AtomicLong pages;
+    private AtomicLong bytes;
+
+    // fetches that failed, by what went wrong
+    private AtomicLongArray errors;
+
+    // the frontier, asked for its size
+    private HostScheduler frontier;
+
+    // the stages fetched pages go through, asked for their queues, null if there are none
+    private volatile CrawlPipeline<?> pipeline;
+
+    // when the crawl started, in nanoseconds
+    private volatile long startNanos;
+
+    // prints a line every interval, null unless it was started
+    private Thread reporter;
+
+    /*
+     * constructor for the metrics of a crawl whose
+     * pending pages are in frontier
+     */
+    public CrawlMetrics(HostScheduler frontier) {
+
+        this.frontier = frontier;
+
+        stages = new LatencyHistogram[STAGE_NAMES.length];
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+
+        pages = new AtomicLong();
+        bytes = new AtomicLong();
+        errors = new AtomicLongArray(ERROR_NAMES.length);
+        startNanos = System.nanoTime();
+    }
+
+    /*
+     * records how long a stage of one fetch took
+     */
+    public void record(int stage, long nanos) {
+        stages[stage].record(nanos);
+    }
+
+    /*
+     * counts bytes received
+     */
+    public void addBytes(long n) {
+        bytes.addAndGet(n);
+    }
+
+    /*
+     * counts a page that came back with status, which
+     * is an error if the server said so
+     */
+    public void pageDone(int status) {
+
+        pages.incrementAndGet();
+
+        if (status >= 500) {
+            errors.incrementAndGet(ERROR_HTTP_5XX);
+        } else if (status >= 400) {
+            errors.incrementAndGet(ERROR_HTTP_4XX);
+        }
+    }
+
+    /*
+     * counts a fetch that failed, by the kind of exception
+     */
+    public void fetchFailed(Exception e) {
+        errors.incrementAndGet(classify(e));
+    }
+
+    /*
+     * counts an error of one of the ERROR kinds, for a fetch
+     * that failed without an exception, like a response that
+     * is thrown away to be fetched again
+     */
+    public void countError(int error) {
+        errors.incrementAndGet(error);
+    }
+
+    /*
+     * returns which of the ERROR kinds an exception is
+     */
+    public static int classify(Exception e) {
+
+        if (e instanceof UnknownHostException) {
+            return ERROR_DNS;
+        }
+        if (e instanceof SocketTimeoutException) {
+            return ERROR_TIMEOUT;
+        }
+        if (e instanceof ConnectException || e instanceof NoRouteToHostException) {
+            return ERROR_CONNECT;
+        }
+        if (e instanceof SSLException) {
+            return ERROR_TLS;
+        }
+
+        String message = e.getMessage();
+        if (e instanceof SocketException && message != null
+            && (message.contains("reset") || message.contains("Broken pipe"))) {
+            return ERROR_RESET;
+        }
+        return ERROR_OTHER;
+    }
+
+    /*
+     * adds the depth of every queue of pipeline to what is shown
+     */
+    public void setPipeline(CrawlPipeline<?> pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /*
+     * starts the clock, registers the metrics over JMX and, if
+     * intervalSeconds isn't 0, prints a line to out that often
+     */
+    public void start(int intervalSeconds, final PrintStream out) {
+
+        startNanos = System.nanoTime();
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            // the metrics are still printed, just not shown over JMX
+            out.println("Couldn't register metrics: " + e.getMessage());
+        }
+
+        if (intervalSeconds <= 0) {
+            return;
+        }
+
+        final long interval = intervalSeconds * 1000L;
+
+        reporter = new Thread(new Runnable() {
+            public void run() {
+
+                long lastPages = 0;
+                long lastBytes = 0;
+                long last = System.nanoTime();
+
+                while (true) {
+
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    long now = System.nanoTime();
+                    long p = pages.get();
+                    long b = bytes.get();
+                    double seconds = (now - last) / 1e9;
+
+                    CrawlPipeline<?> line = pipeline;
+
+                    out.println(String.format("Metrics: %d pages (%.1f/s), %s (%s/s), frontier %d, errors %d | %s%s",
+                        p, (p - lastPages) / seconds, formatBytes(b), formatBytes((long) ((b - lastBytes) / seconds)),
+                        getFrontierSize(), getErrors(), getLatencySummary(),
+                        line == null ? "" : " | queues " + line.getDepthSummary()));
+
+                    lastPages = p;
+                    lastBytes = b;
+                    last = now;
+                }
+            }
+        }, "metrics-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /*
+     * stops printing and takes the metrics off JMX
+     */
+    public void stop() {
+
+        if (reporter != null) {
+            reporter.interrupt();
+            reporter = null;
+        }
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            // it goes away with the JVM anyway
+        }
+    }
+
+    public long getPages() {
+        return pages.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public double getPagesPerSecond() {
+        return pages.get() / elapsedSeconds();
+    }
+
+    public double getBytesPerSecond() {
+        return bytes.get() / elapsedSeconds();
+    }
+
+    public long getFrontierSize() {
+        return frontier.size();
+    }
+
+    public long getErrors() {
+
+        long total = 0;
+        for (int i = 0; i < errors.length(); i++) {
+            total += errors.get(i);
+        }
+        return total;
+    }
+
+    public long getDnsErrors() {
+        return errors.get(ERROR_DNS);
+    }
+
+    public long getConnectErrors() {
+        return errors.get(ERROR_CONNECT);
+    }
+
+    public long getTimeoutErrors() {
+        return errors.get(ERROR_TIMEOUT);
+    }
+
+    public long getTlsErrors() {
+        return errors.get(ERROR_TLS);
+    }
+
+    public long getResetErrors() {
+        return errors.get(ERROR_RESET);
+    }
+
+    public long getOtherErrors() {
+        return errors.get(ERROR_OTHER);
+    }
+
+    public long getHttpClientErrors() {
+        return errors.get(ERROR_HTTP_4XX);
+    }
+
+    public long getHttpServerErrors() {
+        return errors.get(ERROR_HTTP_5XX);
+    }
+
+    public String[] getStages() {
+        return STAGE_NAMES.clone();
+    }
+
+    public double getLatencyMillis(String stage, double percentile) {
+
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            if (STAGE_NAMES[i].equals(stage)) {
+                return stages[i].getPercentile(percentile) / 1e6;
+            }
+        }
+        throw new IllegalArgumentException("no stage " + stage);
+    }
+
+    public String getLatencySummary() {
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < stages.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(String.format("%s p50 %.2f p99 %.2f ms", STAGE_NAMES[i],
+                stages[i].getPercentile(50) / 1e6, stages[i].getPercentile(99) / 1e6));
+        }
+        return sb.toString();
+    }
+
+    public String[] getPipelineStages() {
+        CrawlPipeline<?> line = pipeline;
+        return line == null ? new String[0] : line.getStageNames();
+    }
+
+    public long[] getStageQueueDepths() {
+        CrawlPipeline<?> line = pipeline;
+        return line == null ? new long[0] : line.getQueueDepths();
+    }
+
+    /*
+     * returns the latency histogram of a stage
+     */
+    public LatencyHistogram getHistogram(int stage) {
+        return stages[stage];
+    }
+
+    /*
+     * toString method that we override to report the
+     * totals and every stage's latencies
+     */
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Pages: %d (%.1f/s), Bytes: %s (%s/s), Errors: %d",
+            pages.get(), getPagesPerSecond(), formatBytes(bytes.get()),
+            formatBytes((long) getBytesPerSecond()), getErrors()));
+
+        for (int i = 0; i < ERROR_NAMES.length; i++) {
+            if (errors.get(i) > 0) {
+                sb.append(", ").append(ERROR_NAMES[i]).append(": ").append(errors.get(i));
+            }
+        }
+
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram h = stages[i];
+            sb.append(String.format("%n  %-8s n=%d mean %.2f p50 %.2f p90 %.2f p99 %.2f max %.2f ms",
+                STAGE_NAMES[i], h.getCount(), h.getMean() / 1e6, h.getPercentile(50) / 1e6,
+                h.getPercentile(90) / 1e6, h.getPercentile(99) / 1e6, h.getMax() / 1e6));
+        }
+        return sb.toString();
+    }
+
+    // seconds since the crawl started, never 0
+    private double elapsedSeconds() {
+        return Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+    }
+
+    // a byte count in the largest unit that keeps it above 1
+    private static String formatBytes(long n) {
+
+        if (n < 1024) {
+            return n + " B";
+        }
+        if (n < 1024 * 1024) {
+            return String.format("%.1f KB", n / 1024.0);
+        }
+        return String.format("%.1f MB", n / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * This interface is what CrawlMetrics shows over JMX, under the name
+ * Crawler:type=CrawlMetrics. Latencies are in milliseconds
+ */
+public interface CrawlMetricsMBean {
+
+    // pages finished, and the bytes received for them
+    long getPages();
+    long getBytes();
+
+    // pages and bytes per second since the crawl started
+    double getPagesPerSecond();
+    double getBytesPerSecond();
+
+    // pages waiting to be fetched
+    long getFrontierSize();
+
+    // fetches that failed, in total and by what went wrong
+    long getErrors();
+    long getDnsErrors();
+    long getConnectErrors();
+    long getTimeoutErrors();
+    long getTlsErrors();
+    long getResetErrors();
+    long getOtherErrors();
+    long getHttpClientErrors();
+    long getHttpServerErrors();
+
+    // the names of the stages a fetch is timed in
+    String[] getStages();
+
+    // the latency of a stage below which percentile percent of the fetches fall
+    double getLatencyMillis(String stage, double percentile);
+
+    // one line with the median and 99th percentile of every stage
+    String getLatencySummary();
+
+    // the stages of the pipeline, and how many pages wait in front of each, empty without one
+    String[] getPipelineStages();
+    long[] getStageQueueDepths();
+}
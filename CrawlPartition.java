@@ -0,0 +1,523 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is one process's share of a crawl split over several local
+ * processes. Every host belongs to exactly one process, picked by a hash of
+ * its name, so each page is fetched once and each host is only throttled by
+ * its owner. A page found for a host owned by another process is added to a
+ * batch for that process, and one sender thread writes the batches over
+ * loopback sockets. Every process listens on its own port for the batches of
+ * the others and queues what they send as if it found those links itself.
+ *
+ * A process can't stop just because it has nothing to do, since another one
+ * may still send it work. Process 0 decides when the crawl is over with
+ * Mattern's four-counter method: it asks every process whether it is idle and
+ * how many pages it sent and received, and ends the crawl once two waves of
+ * answers in a row say every process is idle and the counts match and
+ * didn't change, which means no batch was still on its way
+ */
+public class CrawlPartition {
+
+    // pages in a batch before it is sent without waiting
+    public static final int BATCH_SIZE = 512;
+
+    // longest a page waits in an unfinished batch, in milliseconds
+    public static final long FLUSH_MILLIS = 20;
+
+    // time between the waves that look for the end of the crawl, in milliseconds
+    public static final long PROBE_MILLIS = 50;
+
+    // how long to keep trying to reach a process that hasn't started listening
+    public static final long CONNECT_MILLIS = 30000;
+
+    // what a connection is for, its first byte
+    private static final int BATCHES = 'B';
+    private static final int CONTROL = 'C';
+
+    // what process 0 asks on a control connection
+    private static final int PROBE = 'P';
+    private static final int STOP = 'S';
+
+    /*
+     * is handed the batches other processes send
+     */
+    public interface Listener {
+
+        // pages found by another process on hosts this one owns
+        void received(List<URLDepthPair> pairs);
+    }
+
+    // this process, and the ports every process listens on, by index
+    private int index;
+    private int[] ports;
+
+    // queues what comes in
+    private Listener listener;
+
+    // where the other processes connect to
+    private ServerSocket server;
+
+    // pages waiting to be sent to every process, null for this one
+    private List<List<URLDepthPair>> outgoing;
+
+    // connections batches are written on, opened the first time they are needed
+    private DataOutputStream[] peers;
+
+    // pages handed to forward and pages queued from other processes
+    private AtomicLong sent;
+    private AtomicLong received;
+
+    // batches written and read
+    private AtomicLong batchesSent;
+    private AtomicLong batchesReceived;
+
+    // the received count the crawl last saw itself idle at, -1 if never
+    private volatile long idleMark;
+
+    // set once the crawl is over for every process
+    private volatile boolean terminated;
+
+    // set when close was called
+    private volatile boolean closed;
+
+    /*
+     * constructor for process index of ports.length,
+     * process i listening on ports[i]
+     */
+    public CrawlPartition(int index, int[] ports) {
+
+        if (index < 0 || index >= ports.length) {
+            throw new IllegalArgumentException("no process " + index + " of " + ports.length);
+        }
+
+        this.index = index;
+        this.ports = ports;
+        outgoing = new ArrayList<List<URLDepthPair>>();
+        for (int i = 0; i < ports.length; i++) {
+            outgoing.add(i == index ? null : new ArrayList<URLDepthPair>());
+        }
+        peers = new DataOutputStream[ports.length];
+        sent = new AtomicLong();
+        received = new AtomicLong();
+        batchesSent = new AtomicLong();
+        batchesReceived = new AtomicLong();
+        idleMark = -1;
+    }
+
+    /*
+     * returns the process that owns host when
+     * the crawl is split over count processes
+     */
+    public static int owner(String host, int count) {
+
+        // String.hashCode is the same in every JVM, and mixing it spreads similar names
+        return (int) Long.remainderUnsigned(SimHash.mix(host.hashCode()), count);
+    }
+
+    /*
+     * returns true if this process fetches the page
+     */
+    public boolean owns(URLDepthPair pair) {
+
+        return owner(pair.getHost(), ports.length) == index;
+    }
+
+    /*
+     * returns the index of this process
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /*
+     * returns the number of processes
+     */
+    public int getCount() {
+        return ports.length;
+    }
+
+    /*
+     * starts listening for the other processes and sending to them,
+     * and in process 0 starts watching for the end of the crawl
+     */
+    public void start(Listener listener) throws IOException {
+
+        this.listener = listener;
+
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), ports[index]));
+
+        daemon(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "partition-acceptor").start();
+
+        daemon(new Runnable() {
+            public void run() {
+                send();
+            }
+        }, "partition-sender").start();
+
+        if (index == 0) {
+            daemon(new Runnable() {
+                public void run() {
+                    detectTermination();
+                }
+            }, "partition-termination").start();
+        }
+    }
+
+    /*
+     * adds a page to the batch for the process that owns its host
+     */
+    public void forward(URLDepthPair pair) {
+
+        List<URLDepthPair> batch = outgoing.get(owner(pair.getHost(), ports.length));
+
+        // counted before it is sent, so until it is queued at its owner the counts differ
+        sent.incrementAndGet();
+
+        synchronized (this) {
+            batch.add(pair);
+            if (batch.size() >= BATCH_SIZE) {
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * returns how many pages other processes sent this one
+     * so far, read before looking whether the crawl is idle
+     */
+    public long receivedCount() {
+        return received.get();
+    }
+
+    /*
+     * tells the partition the crawl had nothing pending and nothing running
+     * after mark pages were received. it stays idle until more come in
+     */
+    public void idleSince(long mark) {
+
+        idleMark = mark;
+    }
+
+    /*
+     * returns true once no process has anything left to crawl
+     */
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    /*
+     * stops listening and sending
+     */
+    public void close() {
+
+        closed = true;
+
+        synchronized (this) {
+            notifyAll();
+        }
+
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            // nothing left to read anyway
+        }
+
+        synchronized (peers) {
+            for (DataOutputStream out : peers) {
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    // the other process may have finished first
+                }
+            }
+        }
+    }
+
+    // true if this process has nothing to do and nothing came in since it last looked
+    private boolean isIdle() {
+
+        long mark = idleMark;
+        return mark >= 0 && mark == received.get();
+    }
+
+    // takes connections from the other processes, one reading thread each
+    private void accept() {
+
+        while (!closed) {
+
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            daemon(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            }, "partition-reader").start();
+        }
+    }
+
+    // reads batches or answers process 0 on one connection
+    private void serve(Socket socket) {
+
+        try {
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int kind = in.readUnsignedByte();
+
+            if (kind == BATCHES) {
+
+                while (true) {
+
+                    int n;
+                    try {
+                        n = in.readInt();
+                    } catch (EOFException e) {
+                        return;
+                    }
+
+                    List<URLDepthPair> batch = new ArrayList<URLDepthPair>(n);
+                    for (int i = 0; i < n; i++) {
+                        batch.add(CrawlCheckpoint.readPair(in));
+                    }
+
+                    // counted once queued, so an idle crawl never hides a page
+                    listener.received(batch);
+                    received.addAndGet(n);
+                    batchesReceived.incrementAndGet();
+                }
+
+            } else if (kind == CONTROL) {
+
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                while (true) {
+
+                    int command = in.readUnsignedByte();
+
+                    if (command == STOP) {
+                        terminated = true;
+                        return;
+                    }
+
+                    // the count received is read first, like in the crawl
+                    long r = received.get();
+                    out.writeBoolean(isIdle());
+                    out.writeLong(sent.get());
+                    out.writeLong(r);
+                    out.flush();
+                }
+            }
+
+        } catch (IOException e) {
+            // the other process closed its end or went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    // writes the batches out as they fill up, or when they waited long enough
+    private void send() {
+
+        while (!closed) {
+
+            List<List<URLDepthPair>> batches = new ArrayList<List<URLDepthPair>>();
+
+            synchronized (this) {
+
+                try {
+                    wait(FLUSH_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (int i = 0; i < ports.length; i++) {
+
+                    List<URLDepthPair> batch = outgoing.get(i);
+
+                    if (batch != null && !batch.isEmpty()) {
+                        outgoing.set(i, new ArrayList<URLDepthPair>());
+                        batches.add(batch);
+                    } else {
+                        batches.add(null);
+                    }
+                }
+            }
+
+            for (int i = 0; i < batches.size(); i++) {
+
+                List<URLDepthPair> batch = batches.get(i);
+                if (batch == null) {
+                    continue;
+                }
+
+                try {
+
+                    DataOutputStream out = connect(i);
+                    out.writeInt(batch.size());
+                    for (URLDepthPair pair : batch) {
+                        CrawlCheckpoint.writePair(out, pair);
+                    }
+                    out.flush();
+                    batchesSent.incrementAndGet();
+
+                } catch (IOException e) {
+                    if (!closed) {
+                        System.err.println("Couldn't send pages to process " + i + ": " + e.getMessage());
+                        System.exit(1);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    // returns the connection batches go to process i on, opening it if needed
+    private DataOutputStream connect(int i) throws IOException {
+
+        synchronized (peers) {
+
+            if (peers[i] == null) {
+                Socket socket = open(i);
+                peers[i] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                peers[i].writeByte(BATCHES);
+            }
+            return peers[i];
+        }
+    }
+
+    // connects to process i, waiting for it to start listening
+    private Socket open(int i) throws IOException {
+
+        long deadline = System.currentTimeMillis() + CONNECT_MILLIS;
+
+        while (true) {
+
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), ports[i]));
+                return socket;
+            } catch (IOException e) {
+
+                socket.close();
+                if (System.currentTimeMillis() >= deadline) {
+                    throw e;
+                }
+
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // process 0 only: asks every process for its counts until two waves agree
+    private void detectTermination() {
+
+        int n = ports.length;
+        DataOutputStream[] outs = new DataOutputStream[n];
+        DataInputStream[] ins = new DataInputStream[n];
+
+        try {
+
+            for (int i = 1; i < n; i++) {
+                Socket socket = open(i);
+                outs[i] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                ins[i] = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                outs[i].writeByte(CONTROL);
+            }
+
+            long lastSent = -1;
+            long lastReceived = -1;
+
+            while (!closed) {
+
+                Thread.sleep(PROBE_MILLIS);
+
+                long r = received.get();
+                boolean idle = isIdle();
+                long s = sent.get();
+
+                for (int i = 1; i < n; i++) {
+                    outs[i].writeByte(PROBE);
+                    outs[i].flush();
+                    idle &= ins[i].readBoolean();
+                    s += ins[i].readLong();
+                    r += ins[i].readLong();
+                }
+
+                // every page sent was queued, and nothing moved since the wave before
+                if (idle && s == r && s == lastSent && r == lastReceived) {
+                    break;
+                }
+
+                lastSent = idle ? s : -1;
+                lastReceived = idle ? r : -1;
+            }
+
+            for (int i = 1; i < n; i++) {
+                outs[i].writeByte(STOP);
+                outs[i].flush();
+            }
+
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Lost contact with another process: " + e.getMessage());
+                System.exit(1);
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        terminated = true;
+    }
+
+    // a thread that doesn't keep the process alive
+    private static Thread daemon(Runnable r, String name) {
+
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /*
+     * returns what this process sent and received
+     */
+    public String toString() {
+
+        return String.format("Partition %d of %d, Pages forwarded: %d in %d batches, Pages received: %d in %d batches",
+            index, ports.length, sent.get(), batchesSent.get(), received.get(), batchesReceived.get());
+    }
+}
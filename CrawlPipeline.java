@@ -0,0 +1,301 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs the work on a page as a line of stages, each with its own
+ * threads and a BoundedQueue in front of it. A page goes through the stages
+ * in the order they were added, and a stage can take it out of the line. Every
+ * stage only waits for the one before it, so a stage that is slow at times
+ * doesn't hold up the others, and when one falls behind its queue fills and
+ * the stage before it waits too. The first queue is reserved before a page is
+ * fetched, so the waiting ends up before the fetch and never where the page
+ * is submitted. The depth of every queue and how busy every stage is show
+ * which one holds the line up
+ */
+public class CrawlPipeline<T> {
+
+    // pages a stage's queue holds when none is given
+    public static final int DEFAULT_CAPACITY = 256;
+
+    // how long an idle stage thread waits for a page before it looks whether it should stop
+    private static final long POLL_MILLIS = 100;
+
+    /*
+     * does the work of one stage on a page. returns true
+     * to pass the page on to the next stage, false if the
+     * stage is done with it. the last stage's answer is ignored
+     */
+    public interface Stage<T> {
+        boolean process(T page);
+    }
+
+    /*
+     * is told about a page a stage threw on, which
+     * goes no further. called on the stage's thread
+     */
+    public interface Listener<T> {
+        void failed(T page, Throwable e);
+    }
+
+    // the stages in the order pages go through them
+    private List<StageRunner> stages;
+
+    // pages every queue holds
+    private int capacity;
+
+    // room in the first queue not yet reserved for a page
+    private Semaphore room;
+
+    // who hears about pages a stage threw on
+    private Listener<T> listener;
+
+    // set once the pipeline is being shut down
+    private volatile boolean closed;
+
+    // when the stages were started, in nanoseconds
+    private long startNanos;
+
+    /*
+     * constructor for a pipeline whose queues each hold up
+     * to capacity pages, telling listener about failed pages
+     */
+    public CrawlPipeline(int capacity, Listener<T> listener) {
+
+        this.capacity = capacity;
+        this.listener = listener;
+        this.stages = new ArrayList<StageRunner>();
+        this.room = new Semaphore(capacity);
+    }
+
+    /*
+     * adds a stage run by threads threads after the ones added before
+     */
+    public void addStage(String name, int threads, Stage<T> stage) {
+
+        if (startNanos != 0) {
+            throw new IllegalStateException("the pipeline already started");
+        }
+        stages.add(new StageRunner(name, threads, stage, stages.size()));
+    }
+
+    /*
+     * starts the threads of every stage
+     */
+    public void start() {
+
+        startNanos = System.nanoTime();
+
+        for (StageRunner stage : stages) {
+            for (int i = 0; i < stage.threads.length; i++) {
+                stage.threads[i] = new Thread(stage, "pipeline-" + stage.name + "-" + i);
+                stage.threads[i].setDaemon(true);
+                stage.threads[i].start();
+            }
+        }
+    }
+
+    /*
+     * waits until there is room in the first queue for one more
+     * page, and keeps it for a page submitted later or cancelled
+     */
+    public void reserve() throws InterruptedException {
+
+        if (!room.tryAcquire()) {
+            long start = System.nanoTime();
+            room.acquire();
+            stages.get(0).blockedNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * gives back room reserved for a page that won't be submitted
+     */
+    public void cancel() {
+        room.release();
+    }
+
+    /*
+     * hands a page to the first stage, in the room reserved
+     * for it, so it never waits
+     */
+    public void submit(T page) {
+
+        if (!stages.get(0).queue.offer(page)) {
+            throw new IllegalStateException("no room was reserved for the page");
+        }
+    }
+
+    /*
+     * stops every stage. pages still queued are dropped, so
+     * this is only for when none can be left
+     */
+    public void close() {
+
+        closed = true;
+
+        for (StageRunner stage : stages) {
+            for (Thread thread : stage.threads) {
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+        }
+    }
+
+    /*
+     * returns the names of the stages, in order
+     */
+    public String[] getStageNames() {
+
+        String[] names = new String[stages.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = stages.get(i).name;
+        }
+        return names;
+    }
+
+    /*
+     * returns how many pages wait in front of every stage right now
+     */
+    public long[] getQueueDepths() {
+
+        long[] depths = new long[stages.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = stages.get(i).queue.size();
+        }
+        return depths;
+    }
+
+    /*
+     * returns the depth of every queue on one line, for the metrics
+     */
+    public String getDepthSummary() {
+
+        StringBuilder sb = new StringBuilder();
+        for (StageRunner stage : stages) {
+            sb.append(sb.length() > 0 ? " " : "").append(stage.name).append(" ").append(stage.queue.size());
+        }
+        return sb.toString();
+    }
+
+    /*
+     * returns how every stage did, one line each
+     */
+    public String toString() {
+
+        double elapsed = Math.max(System.nanoTime() - startNanos, 1);
+        StringBuilder sb = new StringBuilder();
+
+        for (StageRunner stage : stages) {
+
+            if (sb.length() > 0) {
+                sb.append(String.format("%n"));
+            }
+
+            // how much of its threads' time the stage spent working
+            double busy = 100.0 * stage.busyNanos.get() / (elapsed * stage.threads.length);
+
+            sb.append(String.format("Stage %s: %d thread%s, Queue: %d of %d (max %d), Pages: %d,"
+                + " Failed: %d, Busy: %.1f%%, Waited for room: %.1f ms",
+                stage.name, stage.threads.length, stage.threads.length == 1 ? "" : "s",
+                stage.queue.size(), stage.queue.capacity(), stage.queue.getMaxSize(),
+                stage.processed.get(), stage.failed.get(), busy, stage.blockedNanos.get() / 1e6));
+        }
+        return sb.toString();
+    }
+
+    /*
+     * this inner class is one stage, its queue and the threads taking pages off it
+     */
+    private class StageRunner implements Runnable {
+
+        // what the stage is called in the metrics
+        String name;
+
+        // the work it does
+        Stage<T> stage;
+
+        // where it is in the line
+        int index;
+
+        // pages waiting for it
+        BoundedQueue<T> queue;
+
+        // the threads running it
+        Thread[] threads;
+
+        // pages done, the ones it threw on, time spent on them, and time spent waiting to put pages in its queue
+        AtomicLong processed;
+        AtomicLong failed;
+        AtomicLong busyNanos;
+        AtomicLong blockedNanos;
+
+        StageRunner(String name, int threads, Stage<T> stage, int index) {
+
+            this.name = name;
+            this.stage = stage;
+            this.index = index;
+            this.queue = new BoundedQueue<T>(capacity);
+            this.threads = new Thread[threads];
+            this.processed = new AtomicLong();
+            this.failed = new AtomicLong();
+            this.busyNanos = new AtomicLong();
+            this.blockedNanos = new AtomicLong();
+        }
+
+        // queues a page for this stage, waiting while it is behind
+        void put(T page) throws InterruptedException {
+
+            long waited = queue.put(page);
+            if (waited > 0) {
+                blockedNanos.addAndGet(waited);
+            }
+        }
+
+        public void run() {
+
+            StageRunner next = index + 1 < stages.size() ? stages.get(index + 1) : null;
+
+            try {
+
+                while (!closed) {
+
+                    T page = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (page == null) {
+                        continue;
+                    }
+
+                    // the page left the first queue, so its room is free for the next fetch
+                    if (index == 0) {
+                        room.release();
+                    }
+
+                    long start = System.nanoTime();
+                    boolean passOn;
+
+                    // a bug on one page loses that page, not the thread and every page after it
+                    try {
+                        passOn = stage.process(page);
+                    } catch (RuntimeException | Error e) {
+                        failed.incrementAndGet();
+                        listener.failed(page, e);
+                        passOn = false;
+                    }
+
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                    processed.incrementAndGet();
+
+                    if (passOn && next != null) {
+                        next.put(page);
+                    }
+                }
+
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+    }
+}
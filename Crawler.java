@@ -1,166 +1,1738 @@
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
 
 /** 
  * This class creates a Crawler object and will go through a given website and
  * depth and find all links to that given depth on the webiste and print all
  * the links that it finds. The website and depth are given through the command line
- * in that respective order
+ * in that respective order, optionally followed by the number of pages to fetch
+ * at the same time
  */
 public class Crawler {
 
     public static final String LINE_PREFIX = "<a href=\"http://";
     public static final String URL_PREFIX = "http://";
+    public static final String SECURE_URL_PREFIX = "https://";
 
-    // keeps track of to process URLs
-    private LinkedList<URLDepthPair> pendingURLs;
+    // who we say we are to servers, and the name robots.txt rules are picked by
+    public static final String USER_AGENT = "CS11Crawler/1.0";
+    public static final String ROBOTS_AGENT = "CS11Crawler";
 
-    // keeps track of URLs that have already been processed
-    private LinkedList<URLDepthPair> processedURLs;
+    // the prefixes as bytes, for matching links without making Strings
+    private static final byte[] URL_PREFIX_BYTES = URL_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SECURE_URL_PREFIX_BYTES = SECURE_URL_PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+    // size of the buffer pages are read into
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    // biggest body a page in the pipeline may have, before and after it is
+    // inflated. the whole page is held in memory there, so a bigger one is given up
+    private static final int MAX_PAGE_SIZE = 16 * 1024 * 1024;
+
+    // number of fetches we allow in flight when none is given
+    public static final int DEFAULT_THREADS = 1;
+
+    // pending pages kept in memory before the rest spill to disk, when none is given
+    public static final long DEFAULT_FRONTIER_MEMORY = 1000000;
+
+    // seconds between checkpoints when none is given
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+
+    // what is done to a fetched page when it goes through the pipeline, in order
+    public static final String[] PIPELINE_STAGES = { "decode", "extract", "filter", "enqueue" };
+
+    // threads of every pipeline stage when none are given, extracting being the slow one
+    public static final int[] DEFAULT_STAGE_THREADS = { 1, 2, 1, 1 };
+
+    // keeps track of to process URLs per host, shared by all the fetching threads
+    private HostScheduler pendingURLs;
+
+    // gets every page as soon as it is processed
+    private ResultSink results;
+
+    // pages a resumed crawl had already processed, handed to results once it starts
+    private List<URLDepthPair> resumedURLs;
+
+    // keeps track of every URL that was ever queued, so none is fetched twice
+    private SeenURLStore seenURLs;
+
+    // keeps track of how many pages can be fetched at the same time
+    private int numThreads;
+
+    // connections the crawler keeps open to a single host
+    private int maxPerHost;
+
+    // set if the fetches in flight adapt to how the hosts respond
+    private boolean adaptive;
+
+    // how many fetches may run at once, over the crawl and per host
+    private AdaptiveConcurrency concurrency;
+
+    // pages waiting to be fetched again after a failure, and hosts that failed too often
+    private RetryQueue retries;
+
+    // keeps track of how many fetches are currently running
+    private AtomicInteger activeFetches;
+
+    // keeps track of the pages being fetched right now, so a checkpoint can requeue them
+    private Set<URLDepthPair> inFlightURLs;
+
+    // held shared while the frontier, seen store or processed pages change,
+    // and exclusively while a checkpoint is written
+    private ReentrantReadWriteLock stateLock;
+
+    // saves the crawl so it can be resumed, null if we don't checkpoint
+    private CrawlCheckpoint checkpoint;
+
+    // milliseconds between checkpoints
+    private long checkpointInterval;
+
+    // set when the crawl was loaded from a checkpoint instead of starting fresh
+    private boolean resumed;
+
+    // keeps connections open between pages on the same host
+    private HostConnectionPool connectionPool;
+
+    // resolves hosts ahead of time and remembers their addresses
+    private DNSCache dns;
+
+    // shared by every HTTPS connection, so sessions are resumed per host
+    private TLSContext tls;
+
+    // the robots.txt rules of every host, null if we don't follow them
+    private RobotsCache robots;
+
+    // set unless robots.txt should be ignored
+    private boolean obeyRobots;
+
+    // content fingerprints of the pages crawled, null if we don't look for near duplicates
+    private SimHashIndex nearDuplicates;
+
+    // validators and links of pages from earlier crawls, null if we don't keep them
+    private ResponseCache responseCache;
+
+    // which page linked to which, null if we don't keep the links
+    private LinkGraph linkGraph;
+
+    // pages with the highest PageRank that getSites prints
+    private int topRanked;
+
+    // fetches pages on a single non-blocking I/O thread when set
+    private NIOFetcher nioFetcher;
+
+    // decodes, parses and queues fetched pages on threads of its own, null if the fetching thread does
+    private CrawlPipeline<PipelinedPage> pipeline;
+
+    // the hosts this process owns when the crawl is split over several, null if it isn't
+    private CrawlPartition partition;
+
+    // times every stage of every fetch and counts pages, bytes and errors
+    private CrawlMetrics metrics;
+
+    // seconds between the lines the metrics print while crawling, 0 for none
+    private int metricsInterval;
 
     // keeps track of the max depth given on command line
     private int maximumDepth;
 
-    // keeps track of the first url given on command line
-    private String firstUrl;
+    // keeps track of the first url given on command line
+    private String firstUrl;
+
+    /* 
+     * constructor for Crawler object, just 
+     * instantiates everything 
+     */
+    public Crawler(int mD, String fU) {
+
+        this(mD, fU, DEFAULT_THREADS);
+    }
+
+    /*
+     * constructor for a Crawler object that fetches up to
+     * nT pages at the same time
+     */
+    public Crawler(int mD, String fU, int nT) {
+
+        this(mD, fU, nT, SeenURLStore.DEFAULT_BUDGET_BYTES);
+    }
+
+    /*
+     * constructor for a Crawler object that fetches up to nT pages
+     * at the same time and may use sB bytes to remember seen URLs
+     */
+    public Crawler(int mD, String fU, int nT, long sB) {
+
+        pendingURLs = new HostScheduler();
+        results = new PrintResultSink(System.out);
+        seenURLs = new SeenURLStore(sB);
+        pendingURLs.setSeenURLs(seenURLs);
+        dns = new DNSCache();
+        tls = new TLSContext();
+        connectionPool = new HostConnectionPool(dns, tls);
+        metrics = new CrawlMetrics(pendingURLs);
+        connectionPool.setMetrics(metrics);
+        maximumDepth = mD;
+        firstUrl = fU;
+        numThreads = nT;
+        maxPerHost = HostConnectionPool.DEFAULT_MAX_PER_HOST;
+        newConcurrency();
+        retries = new RetryQueue();
+        activeFetches = new AtomicInteger(0);
+        inFlightURLs = ConcurrentHashMap.newKeySet();
+        stateLock = new ReentrantReadWriteLock();
+        obeyRobots = true;
+    }
+
+    /*
+     * switches the crawler to the non-blocking fetcher, which drives
+     * every connection from one thread instead of one thread per fetch
+     */
+    public void useNIO() throws IOException {
+
+        nioFetcher = new NIOFetcher(dns, tls);
+        nioFetcher.setMetrics(metrics);
+    }
+
+    /*
+     * changes how many connections the crawler keeps
+     * open to a single host
+     */
+    public void setMaxConnectionsPerHost(int max) {
+
+        connectionPool.close();
+        connectionPool = new HostConnectionPool(dns, tls, max, HostConnectionPool.DEFAULT_IDLE_TIMEOUT);
+        connectionPool.setMetrics(metrics);
+        maxPerHost = max;
+        newConcurrency();
+    }
+
+    /*
+     * makes the fetches in flight, over the crawl and per host, grow while
+     * hosts answer quickly and shrink when they slow down, fail or time out,
+     * up to the number of threads and connections per host
+     */
+    public void setAdaptiveConcurrency(boolean adaptive) {
+
+        this.adaptive = adaptive;
+        newConcurrency();
+    }
+
+    // limits for the current thread count, connections per host and mode
+    private void newConcurrency() {
+
+        concurrency = new AdaptiveConcurrency(numThreads, maxPerHost, adaptive);
+        pendingURLs.setConcurrency(concurrency);
+    }
+
+    /*
+     * makes the crawler print its metrics to standard error
+     * every intervalSeconds while it crawls, 0 for never
+     */
+    public void setMetricsInterval(int intervalSeconds) {
+
+        metricsInterval = intervalSeconds;
+    }
+
+    /*
+     * returns the metrics of the crawl, which are also
+     * shown over JMX while it runs
+     */
+    public CrawlMetrics getMetrics() {
+
+        return metrics;
+    }
+
+    /*
+     * fetches a page that failed in a way that may go away up to
+     * maxRetries more times, and drops a host once maxHostFailures
+     * of its fetches in a row failed
+     */
+    public void setRetries(int maxRetries, int maxHostFailures) {
+
+        retries = new RetryQueue(maxRetries + 1, maxHostFailures);
+    }
+
+    /*
+     * returns the limits on how many fetches run at once
+     */
+    public AdaptiveConcurrency getConcurrency() {
+
+        return concurrency;
+    }
+
+    /*
+     * returns the TLS settings and handshake counts of the crawl
+     */
+    public TLSContext getTLSContext() {
+
+        return tls;
+    }
+
+    /*
+     * returns the stages fetched pages go through,
+     * or null if the fetching thread does the work
+     */
+    public CrawlPipeline<?> getPipeline() {
+
+        return pipeline;
+    }
+
+    /*
+     * sends every processed page to sink as soon as it is done,
+     * instead of printing it
+     */
+    public void setResultSink(ResultSink sink) {
+
+        results = sink;
+    }
+
+    /*
+     * makes the crawler follow or ignore the robots.txt
+     * of the hosts it crawls
+     */
+    public void setObeyRobots(boolean obey) {
+
+        obeyRobots = obey;
+    }
+
+    /*
+     * makes the crawler skip the links of a page whose text differs in at
+     * most maxDistance bits of its SimHash from a page already crawled
+     */
+    public void setNearDuplicateDistance(int maxDistance) {
+
+        nearDuplicates = new SimHashIndex(maxDistance);
+    }
+
+    /*
+     * hands every fetched page to a pipeline instead of finishing it on the
+     * thread that fetched it. decoding, extracting links, filtering them and
+     * queueing them are stages of their own, run by threads[i] threads each,
+     * with up to capacity pages waiting in front of every stage. the fetchers
+     * then only do I/O, and wait when the pipeline falls behind
+     */
+    public void setPipeline(int[] threads, int capacity) {
+
+        pipeline = new CrawlPipeline<PipelinedPage>(capacity, new CrawlPipeline.Listener<PipelinedPage>() {
+            public void failed(PipelinedPage page, Throwable e) {
+                stageFailed(page, e);
+            }
+        });
+
+        pipeline.addStage(PIPELINE_STAGES[0], threads[0], new CrawlPipeline.Stage<PipelinedPage>() {
+            public boolean process(PipelinedPage page) {
+                return decodePage(page);
+            }
+        });
+
+        pipeline.addStage(PIPELINE_STAGES[1], threads[1], new CrawlPipeline.Stage<PipelinedPage>() {
+            public boolean process(PipelinedPage page) {
+                return extractPage(page);
+            }
+        });
+
+        pipeline.addStage(PIPELINE_STAGES[2], threads[2], new CrawlPipeline.Stage<PipelinedPage>() {
+            public boolean process(PipelinedPage page) {
+                return filterPage(page);
+            }
+        });
+
+        pipeline.addStage(PIPELINE_STAGES[3], threads[3], new CrawlPipeline.Stage<PipelinedPage>() {
+            public boolean process(PipelinedPage page) {
+                return enqueuePage(page);
+            }
+        });
+
+        metrics.setPipeline(pipeline);
+    }
+
+    /*
+     * keeps the links between the pages crawled, so getSites can
+     * print the top pages by PageRank
+     */
+    public void setLinkGraph(LinkGraph graph, int top) {
+
+        linkGraph = graph;
+        topRanked = top;
+    }
+
+    /*
+     * returns the links between the pages crawled,
+     * or null if they weren't kept
+     */
+    public LinkGraph getLinkGraph() {
+
+        return linkGraph;
+    }
+
+    /*
+     * keeps the validators and links of every page in dir, so a later
+     * crawl only downloads the pages that changed since
+     */
+    public void setResponseCache(File dir) throws IOException {
+
+        responseCache = new ResponseCache(dir);
+    }
+
+    /*
+     * trusts only the certificates in file for HTTPS pages,
+     * like the self-signed one of a local test server
+     */
+    public void setTrustedCertificates(File file) throws IOException, GeneralSecurityException {
+
+        tls.trustCertificates(file);
+    }
+
+    /*
+     * changes how many pages per second the crawler
+     * fetches from a single host, 0 for no limit
+     */
+    public void setHostRate(double rate) {
+
+        pendingURLs.setDefaultRate(rate);
+    }
+
+    /*
+     * makes the crawler fetch the most promising pages first, by their depth,
+     * the links found to them so far and their host and path, instead of in
+     * the order they were found. it must be set before the crawl starts
+     */
+    public void setBestFirst(boolean bestFirst) {
+
+        if (bestFirst) {
+            pendingURLs.setScorer(new URLScorer(new URLDepthPair(firstUrl, 0).getHost()));
+        }
+    }
+
+    /*
+     * makes this process crawl only the hosts partition owns and
+     * forward the pages it finds on other hosts to their owners
+     */
+    public void setPartition(CrawlPartition partition) {
+
+        this.partition = partition;
+    }
+
+    /*
+     * keeps at most memoryLimit pending pages in memory and
+     * spills the rest to segment files in dir
+     */
+    public void setFrontierSpill(File dir, long memoryLimit) {
+
+        pendingURLs.setSpill(new DiskQueue(dir), memoryLimit);
+    }
+
+    /*
+     * makes the crawler write a checkpoint to file every
+     * intervalSeconds, with its journal next to it
+     */
+    public void setCheckpoint(File file, int intervalSeconds) throws IOException {
+
+        // a resumed crawl keeps appending to the journal it was loaded from
+        if (!resumed) {
+            checkpoint = new CrawlCheckpoint(file);
+            checkpoint.startJournal();
+        }
+
+        checkpointInterval = intervalSeconds * 1000L;
+    }
+
+    /*
+     * loads the frontier, seen store and processed pages saved in
+     * file, so crawl() carries on where the checkpoint left off
+     */
+    public void resume(File file) throws IOException {
+
+        checkpoint = new CrawlCheckpoint(file);
+
+        if (!checkpoint.exists()) {
+            throw new IOException("no checkpoint in " + file);
+        }
+
+        resumedURLs = new ArrayList<URLDepthPair>();
+        CrawlCheckpoint.Snapshot snapshot = checkpoint.load(pendingURLs, resumedURLs);
+
+        if (snapshot.maximumDepth != maximumDepth || !snapshot.firstUrl.equals(firstUrl)) {
+            throw new IOException("the checkpoint is of a crawl of " + snapshot.firstUrl
+                + " to depth " + snapshot.maximumDepth);
+        }
+
+        seenURLs = snapshot.seen;
+        pendingURLs.setSeenURLs(seenURLs);
+        resumed = true;
+    }
+
+    /*
+     * usage statement. used when given an illegal argument on
+     * the command line
+     */
+    public static void usage() {
+        System.out.println("usage: java Crawler <URL> <depth> [--threads <n>] [--nio] [--seen-budget <MB>]"
+            + " [--per-host <n>] [--host-rate <pages/s>]"
+            + " [--frontier-memory <pages>] [--spill-dir <dir>]"
+            + " [--checkpoint <file>] [--checkpoint-interval <s>] [--resume]"
+            + " [--trust-cert <file>] [--ignore-robots] [--near-dup <bits>]"
+            + " [--cache-dir <dir>] [--metrics-interval <s>]"
+            + " [--results <file>] [--results-format <ndjson|binary>]"
+            + " [--pagerank <n>] [--best-first] [--processes <n>] [--adaptive]"
+            + " [--retries <n>] [--max-host-failures <n>]"
+            + " [--pipeline] [--stage-threads <decode,extract,filter,enqueue>] [--stage-queue <pages>]");
+        System.exit(1);
+    }
+
+    /*
+     * gets a connection to the page's host from the pool and sends
+     * the request for the page on it
+     */
+    public HostConnectionPool.PooledConnection makeConnection(URLDepthPair nextPair) throws IOException {
+
+        return makeConnection(nextPair, "");
+    }
+
+    /*
+     * gets a connection to the page's host from the pool and sends the
+     * request for the page on it, with any extra header lines. a reused
+     * connection the server closed while it sat idle is thrown away and
+     * another one tried
+     */
+    public HostConnectionPool.PooledConnection makeConnection(URLDepthPair nextPair, String extraHeaders)
+            throws IOException {
+
+        while (true) {
+
+            HostConnectionPool.PooledConnection conn = null;
+
+            try {
+
+                // get a socket to connect with, kept alive for the next page
+                conn = connectionPool.acquire(nextPair.getHost(), nextPair.getPort(), nextPair.isSecure());
+                OutputStream os = conn.getOutputStream();
+
+                PrintWriter writer = new PrintWriter(os);
+                writer.print("GET " + nextPair.getRequestTarget() + " HTTP/1.1\r\n");
+                writer.print("Host: " + nextPair.getAuthority() + "\r\n");
+                writer.print("User-Agent: " + USER_AGENT + "\r\n");
+                writer.print("Accept-Encoding: gzip, deflate\r\n");
+                writer.print(extraHeaders);
+                writer.print("\r\n");
+                writer.flush();
+
+                if (writer.checkError()) {
+                    throw new IOException("write failed");
+                }
+
+                return conn;
+
+            } catch (IOException e) {
+
+                if (conn != null) {
+                    connectionPool.discard(conn);
+                    if (conn.wasReused()) {
+                        continue;
+                    }
+                }
+                throw e;
+            }
+        }
+
+    }
+
+    /** 
+     * this function is the main function that does the crawling.
+     * it hands every pending URL to a pool of fetching threads, with
+     * at most as many fetches in flight as the concurrency limits
+     * allow, never more than numThreads, and stops once the pending
+     * list is empty and no fetch can add anything more to it
+     */
+    public void crawl() {
+
+        // create the first link to check
+        URLDepthPair first = new URLDepthPair(firstUrl, 0);
+
+        // make sure it is valid
+        if (!first.isValidURL()) {
+            System.out.println("The first argument must be a valid URL");
+            usage();
+        }
+
+        if (obeyRobots) {
+            robots = new RobotsCache(connectionPool, pendingURLs, ROBOTS_AGENT, USER_AGENT, new RobotsHandler());
+        }
+
+        if (partition != null) {
+            try {
+                partition.start(new PartitionHandler());
+            } catch (IOException e) {
+                System.out.println("Couldn't listen for the other processes: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // a resumed crawl already has its frontier, and the pages it did are results too
+        if (!resumed) {
+            enqueue(first);
+        } else {
+            try {
+                for (URLDepthPair pair : resumedURLs) {
+                    results.result(new PageResult(pair, 0, 0, 0, System.currentTimeMillis()));
+                }
+            } catch (IOException e) {
+                System.out.println("Couldn't write results");
+                System.exit(1);
+            }
+            resumedURLs = null;
+        }
+
+        if (pipeline != null) {
+            pipeline.start();
+        }
+
+        metrics.start(metricsInterval, System.err);
+
+        ExecutorService workers = Executors.newCachedThreadPool();
+        long nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+
+        try {
+
+            // while we have more urls to look at or fetches that may find some
+            while (true) {
+
+                // pages whose retry is due go back to the frontier, and a checkpoint
+                // saves them from there instead of as in flight
+                List<URLDepthPair> due = retries.pollDue();
+                if (!due.isEmpty()) {
+                    stateLock.readLock().lock();
+                    try {
+                        for (URLDepthPair pair : due) {
+                            inFlightURLs.remove(pair);
+                            pendingURLs.add(pair);
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Couldn't write frontier to disk");
+                        System.exit(1);
+                    } finally {
+                        stateLock.readLock().unlock();
+                    }
+                }
+
+                if (checkpoint != null && System.currentTimeMillis() >= nextCheckpoint) {
+                    writeCheckpoint();
+                    nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+                }
+
+                // a page only starts once the pipeline has room for it, so nothing waits to hand it on
+                if (pipeline != null) {
+                    pipeline.reserve();
+                }
+
+                // wait for a free fetch slot before grabbing a url
+                concurrency.acquire();
+
+                URLDepthPair nextURLPair;
+
+                // taking a url and marking it in flight must look like one step to a checkpoint
+                stateLock.readLock().lock();
+                try {
+                    nextURLPair = pendingURLs.poll(100, TimeUnit.MILLISECONDS);
+                    if (nextURLPair != null) {
+                        inFlightURLs.add(nextURLPair);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Couldn't read frontier from disk");
+                    System.exit(1);
+                    return;
+                } finally {
+                    stateLock.readLock().unlock();
+                }
+
+                if (nextURLPair == null) {
+
+                    concurrency.cancel();
+                    if (pipeline != null) {
+                        pipeline.cancel();
+                    }
+
+                    // read first, so pages that come in while we look aren't missed
+                    long received = partition != null ? partition.receivedCount() : 0;
+
+                    // workers add the links they find or their retries before finishing,
+                    // so nothing running and nothing pending means we're done,
+                    // unless another process may still send us pages
+                    if (activeFetches.get() == 0 && pendingURLs.isEmpty() && retries.isEmpty()) {
+
+                        if (partition == null) {
+                            break;
+                        }
+
+                        partition.idleSince(received);
+                        if (partition.isTerminated()) {
+                            break;
+                        }
+                    }
+                    continue;
+                }
+
+                activeFetches.incrementAndGet();
+
+                if (nioFetcher != null) {
+                    PageHandler handler = new PageHandler(nextURLPair);
+                    nioFetcher.fetch(nextURLPair, handler.getRequestHeaders(), handler);
+                } else {
+                    workers.execute(new FetchTask(nextURLPair));
+                }
+            }
+
+            // one last checkpoint, so resuming a finished crawl just prints its results
+            if (checkpoint != null) {
+                writeCheckpoint();
+                checkpoint.close();
+            }
+
+        } catch (IOException e) {
+            System.out.println("Couldn't write checkpoint");
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdown();
+
+            // nothing is left in it once the crawl is done
+            if (pipeline != null) {
+                pipeline.close();
+            }
+
+            if (robots != null) {
+                robots.close();
+            }
+
+            connectionPool.close();
+            pendingURLs.close();
+
+            if (partition != null) {
+                partition.close();
+            }
+
+            if (nioFetcher != null) {
+                nioFetcher.close();
+            }
+
+            metrics.stop();
+
+            try {
+                results.close();
+            } catch (IOException e) {
+                System.out.println("Couldn't write results");
+            }
+        }
+
+    }
+
+    /*
+     * writes a checkpoint while no page is being taken or finished
+     */
+    private void writeCheckpoint() throws IOException {
+
+        stateLock.writeLock().lock();
+        try {
+            checkpoint.write(maximumDepth, firstUrl, seenURLs, pendingURLs, inFlightURLs);
+
+            // results readers see at least what the checkpoint covers
+            results.flush();
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * finishes a page: queues the links to follow from it, records it
+     * as processed and journals it, all as one step, then hands it to
+     * the results. returns false if the page was fetched again from
+     * closer to the first page, which only queues its links again
+     */
+    private boolean pageDone(URLDepthPair pair, LinkCollector page, List<URLDepthPair> follow,
+            int status, long bytes, long startNanos) {
+
+        boolean first;
+
+        stateLock.readLock().lock();
+
+        try {
+
+            for (URLDepthPair next : follow) {
+                enqueue(next);
+            }
+
+            inFlightURLs.remove(pair);
+            first = seenURLs.markReported(pair.getFingerprint());
+
+            if (checkpoint != null && first) {
+                checkpoint.recordProcessed(pair);
+            }
+
+        } catch (IOException e) {
+            System.out.println("Couldn't write checkpoint");
+            System.exit(1);
+            return false;
+        } finally {
+            stateLock.readLock().unlock();
+        }
+
+        if (!first) {
+            return false;
+        }
+
+        // every link the page had, even the ones a near duplicate doesn't follow
+        if (linkGraph != null) {
+            linkGraph.addLinks(pair, page.getLinks());
+        }
+
+        try {
+            results.result(new PageResult(pair, status, bytes, System.nanoTime() - startNanos,
+                System.currentTimeMillis()));
+        } catch (IOException e) {
+            System.out.println("Couldn't write results");
+            System.exit(1);
+        }
+        return true;
+    }
+
+    /*
+     * returns the links of a page worth following. a page that is a near
+     * duplicate of one crawled before leads to the same places, so it has none.
+     * a page fetched again from closer to the first page would match itself
+     */
+    private List<URLDepthPair> followed(URLDepthPair pair, LinkCollector page) {
+
+        if (seenURLs.isReported(pair.getFingerprint())) {
+            return page.getLinks();
+        }
+        return page.isNearDuplicate() ? Collections.<URLDepthPair>emptyList() : page.getLinks();
+    }
+
+    /*
+     * adds a url to the pending list if a page at its depth is still
+     * allowed to be crawled and it wasn't queued at that depth or above
+     */
+    private void enqueue(URLDepthPair pair) {
+
+        // pages at the maximum depth are never read
+        if (pair.getDepth() >= maximumDepth) {
+            return;
+        }
+
+        // a url is queued once, unless it is found again closer to the first page,
+        // since with fetches finishing out of order the first link found isn't always
+        // the shortest way to it. the copy left deeper is skipped by the frontier.
+        // another link to one still pending moves it up a best-first frontier.
+        // one on a host another process owns is sent there, and it decides
+        if (seenURLs.addIfShallower(pair.getFingerprint(), pair.getDepth())) {
+            if (partition != null && !partition.owns(pair)) {
+                partition.forward(pair);
+            } else {
+                admit(pair);
+            }
+        } else {
+            pendingURLs.addInLink(pair);
+        }
+    }
+
+    /*
+     * puts a new url in the pending list if its host's robots.txt allows it.
+     * one that has to wait for the robots.txt comes back through RobotsHandler
+     */
+    private void admit(URLDepthPair pair) {
+
+        if (robots != null && robots.check(pair) != RobotsCache.ALLOWED) {
+            return;
+        }
+
+        try {
+            pendingURLs.add(pair);
+        } catch (IOException e) {
+            System.out.println("Couldn't write frontier to disk");
+            System.exit(1);
+        }
+
+        // have the address ready by the time the page is fetched
+        dns.prefetch(pair.getHost());
+    }
+
+    /*
+     * fetches a single page, adds every link on it to the pending
+     * list and then records the page as processed
+     */
+    private void processURL(URLDepthPair nextURLPair) {
+
+        long start = System.nanoTime();
+
+        // in a pipeline the page is only read here, and its stages do the rest
+        PipelinedPage page = null;
+
+        try {
+
+            HostConnectionPool.PooledConnection conn;
+            HTTPResponse response;
+            long bytesBefore;
+            long requestSent;
+            long headersDone;
+            LinkCollector links = new LinkCollector(nextURLPair.getDepth());
+
+            // what an earlier crawl saw, so the server can tell us nothing changed
+            ResponseCache.Entry cached = responseCache != null ? responseCache.get(nextURLPair) : null;
+            String conditional = cached != null ? cached.getConditionalHeaders() : "";
+
+            if (pipeline != null) {
+                page = new PipelinedPage(nextURLPair, cached, start);
+            }
+
+            while (true) {
+
+                conn = makeConnection(nextURLPair, conditional);
+                bytesBefore = conn.getBytesRead();
+                requestSent = System.nanoTime();
+
+                try {
+                    response = new HTTPResponse(conn.getInputStream());
+                    headersDone = System.nanoTime();
+                    metrics.record(CrawlMetrics.TTFB, headersDone - requestSent);
+                    break;
+                } catch (IOException e) {
+                    connectionPool.discard(conn);
+
+                    // a reused connection may have been closed under us, try a fresh one
+                    if (!conn.wasReused()) {
+                        throw e;
+                    }
+                }
+            }
+
+            // a server in trouble gets asked again later, if the page has attempts left
+            if (RetryQueue.isRetryableStatus(response.getStatus())
+                    && retryLater(nextURLPair, response.getStatus(), headersDone - requestSent)) {
+                connectionPool.discard(conn);
+                return;
+            }
+
+            long download;
+            long received;
+
+            try {
+
+                if (page != null) {
+                    page.reserve(response.getContentLength());
+                    page.read(response.getEncodedBody());
+                } else if (cached != null && response.getStatus() == 304) {
+                    links.reuse(cached);
+                } else {
+                    extractLinks(response.getBody(), links);
+                }
+
+                // the whole response must be read before the connection is reused
+                response.drain();
+                download = System.nanoTime() - headersDone - links.getParseNanos();
+                received = conn.getBytesRead() - bytesBefore;
+                metrics.addBytes(received);
+                connectionPool.release(conn, response.isReusable());
+
+            } catch (IOException | RuntimeException e) {
+                connectionPool.discard(conn);
+                throw e;
+            }
+
+            if (page != null) {
+                page.fetched(response, received, download);
+                submit(page);
+            } else {
+                cachePage(nextURLPair, response, links);
+                if (pageDone(nextURLPair, links, followed(nextURLPair, links), response.getStatus(), received, start)) {
+                    recordPage(response.getStatus(), links, download);
+                }
+            }
+
+            fetchFinished(nextURLPair, headersDone - requestSent, response.getStatus());
+
+        } catch (IOException e) {
+            fetchFailed(nextURLPair, e);
+        } catch (RuntimeException e) {
+            // a bug on one page fails that page, rather than keeping its slots forever
+            fetchFailed(nextURLPair, new IOException(e));
+        } finally {
+            unreserve(page);
+        }
+
+    }
+
+    /*
+     * gives a fetched page's place back to the concurrency limits with
+     * how long it took to the first byte. a server that says it is
+     * overloaded counts as an error
+     */
+    private void fetchFinished(URLDepthPair pair, long latencyNanos, int status) {
+
+        boolean overloaded = RetryQueue.isRetryableStatus(status);
+        pendingURLs.finished(pair, latencyNanos, overloaded ? AdaptiveConcurrency.ERROR : AdaptiveConcurrency.SUCCESS);
+
+        if (!overloaded) {
+            retries.succeeded(pair);
+        }
+    }
+
+    /*
+     * counts a fetch that failed and gives its place back to the concurrency
+     * limits, which shrink more for a timeout. the page is fetched again later
+     * if that may help, and given up otherwise
+     */
+    private void fetchFailed(URLDepthPair pair, IOException e) {
+
+        metrics.fetchFailed(e);
+
+        int error = CrawlMetrics.classify(e);
+        pendingURLs.finished(pair, 0, error == CrawlMetrics.ERROR_TIMEOUT
+            ? AdaptiveConcurrency.TIMEOUT : AdaptiveConcurrency.ERROR);
+
+        int decision = retries.failed(pair, error);
+        if (decision == RetryQueue.DROP_HOST) {
+            dropHost(pair.getHost());
+        }
+        if (decision != RetryQueue.RETRY) {
+            pageFailed(pair);
+        }
+    }
+
+    /*
+     * decides about a response whose status says the server is in trouble.
+     * returns true if the page will be fetched again, and the response is
+     * to be thrown away, or false if the page is to be finished with it
+     */
+    private boolean retryLater(URLDepthPair pair, int status, long latencyNanos) {
+
+        // an overloaded server is as worth another try as a failing one
+        int decision = retries.failed(pair, CrawlMetrics.ERROR_HTTP_5XX);
+
+        if (decision == RetryQueue.DROP_HOST) {
+            dropHost(pair.getHost());
+        }
+        if (decision != RetryQueue.RETRY) {
+            return false;
+        }
+
+        metrics.countError(status >= 500 ? CrawlMetrics.ERROR_HTTP_5XX : CrawlMetrics.ERROR_HTTP_4XX);
+        pendingURLs.finished(pair, latencyNanos, AdaptiveConcurrency.ERROR);
+        return true;
+    }
+
+    /*
+     * gives up on a page that couldn't be fetched. it is journaled as
+     * processed, so a resumed crawl doesn't try it again, but has no result
+     */
+    private void pageFailed(URLDepthPair pair) {
+
+        stateLock.readLock().lock();
+
+        try {
+
+            inFlightURLs.remove(pair);
+
+            if (checkpoint != null) {
+                checkpoint.recordProcessed(pair);
+            }
+
+        } catch (IOException e) {
+            System.out.println("Couldn't write checkpoint");
+            System.exit(1);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /*
+     * stops crawling a host that failed too many fetches in a row.
+     * its pending pages and the ones waiting for a retry are given up
+     */
+    private void dropHost(String host) {
+
+        long pending;
+
+        stateLock.readLock().lock();
+        try {
+            pending = pendingURLs.dropHost(host);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+
+        retries.gaveUp(pending);
+
+        for (URLDepthPair pair : retries.removeHost(host)) {
+            pageFailed(pair);
+        }
+
+        // not on standard output, which carries the results
+        System.err.println("Dropped host " + host + " after too many failures in a row");
+    }
+
+    /*
+     * hands a fetched page to the pipeline, in the room reserved before
+     * its fetch. the page counts as an active fetch until the pipeline is
+     * done with it, so the crawl doesn't end while it is on its way
+     */
+    private void submit(PipelinedPage page) {
+
+        activeFetches.incrementAndGet();
+        page.submitted = true;
+        pipeline.submit(page);
+    }
+
+    /*
+     * gives back the room reserved in the pipeline for a page
+     * that isn't going to it, after a failed or retried fetch
+     */
+    private void unreserve(PipelinedPage page) {
+
+        if (page != null && !page.submitted) {
+            pipeline.cancel();
+        }
+    }
+
+    /*
+     * gives up a page a stage of the pipeline threw on
+     */
+    private void stageFailed(PipelinedPage page, Throwable e) {
+
+        metrics.fetchFailed(new IOException(e));
+        pageFailed(page.pair);
+        activeFetches.decrementAndGet();
+    }
+
+    /*
+     * the decode stage: inflates the body of a page that was sent
+     * compressed. a body that can't be inflated gives the page up
+     */
+    private boolean decodePage(PipelinedPage page) {
+
+        String coding = page.response.getHeader("content-encoding");
+
+        if (coding == null || page.length == 0) {
+            return true;
+        }
+
+        try {
+
+            InputStream in = HTTPResponse.decode(new ByteArrayInputStream(page.data, 0, page.length), coding);
+            page.data = new byte[Math.min(Math.max(page.length * 4, READ_BUFFER_SIZE), MAX_PAGE_SIZE)];
+            page.length = 0;
+            page.read(in);
+            return true;
+
+        } catch (IOException e) {
+            metrics.fetchFailed(e);
+            pageFailed(page.pair);
+            activeFetches.decrementAndGet();
+            return false;
+        }
+    }
+
+    /*
+     * the extract stage: finds the links in a page, and fingerprints
+     * its text when we look for near duplicates
+     */
+    private boolean extractPage(PipelinedPage page) {
+
+        page.links = new LinkCollector(page.pair.getDepth());
+
+        if (page.cached != null && page.response.getStatus() == 304) {
+            page.links.reuse(page.cached);
+        } else {
+            page.links.feed(page.data, 0, page.length);
+        }
+
+        // nothing needs the page itself from here on
+        page.data = null;
+        return true;
+    }
+
+    /*
+     * the filter stage: keeps the links worth queueing, leaving out
+     * those of a near duplicate, those too deep to be read, repeats
+     * on the same page and, unless links to pending pages count toward
+     * their scores, pages that were queued before
+     */
+    private boolean filterPage(PipelinedPage page) {
+
+        List<URLDepthPair> links = followed(page.pair, page.links);
+        boolean countInLinks = pendingURLs.isBestFirst();
+
+        page.follow = new ArrayList<URLDepthPair>(links.size());
+        HashSet<Long> onPage = new HashSet<Long>();
+
+        for (URLDepthPair next : links) {
+
+            if (next.getDepth() >= maximumDepth || !onPage.add(next.getFingerprint())) {
+                continue;
+            }
+
+            // only a hint, enqueue decides for good while no checkpoint can be written
+            if (!countInLinks && !seenURLs.isShallower(next.getFingerprint(), next.getDepth())) {
+                continue;
+            }
+
+            page.follow.add(next);
+        }
+        return true;
+    }
+
+    /*
+     * the enqueue stage: queues the links a page kept, records it as
+     * processed and hands it to the results
+     */
+    private boolean enqueuePage(PipelinedPage page) {
+
+        int status = page.response.getStatus();
+        cachePage(page.pair, page.response, page.links);
+        if (pageDone(page.pair, page.links, page.follow, status, page.bytes, page.started)) {
+            recordPage(status, page.links, page.download);
+        }
+
+        activeFetches.decrementAndGet();
+        return true;
+    }
+
+    /*
+     * counts a finished page and records how long it took to download,
+     * not counting the parsing done while it streamed in, and to parse
+     */
+    private void recordPage(int status, LinkCollector links, long downloadNanos) {
+
+        metrics.record(CrawlMetrics.DOWNLOAD, downloadNanos);
+        metrics.record(CrawlMetrics.PARSE, links.getParseNanos());
+        metrics.pageDone(status);
+    }
+
+    /*
+     * remembers the validators and links of a page that came in
+     * whole, for the next crawl. the cache is only a help, so a
+     * page that can't be written to it is just left out
+     */
+    private void cachePage(URLDepthPair pair, HTTPResponse response, LinkCollector links) {
+
+        if (responseCache == null || response.getStatus() != 200) {
+            return;
+        }
+
+        try {
+            responseCache.put(pair, response, links.getLinks());
+        } catch (IOException e) {
+            System.err.println("Couldn't write response cache: " + e.getMessage());
+        }
+    }
+
+    /*
+     * reads a page as raw bytes and hands all
+     * of it to links
+     */
+    private void extractLinks(InputStream is, LinkCollector links) throws IOException {
+
+        byte[] buf = new byte[READ_BUFFER_SIZE];
+
+        // read the page
+        while (true) {
+
+            int n = is.read(buf, 0, buf.length);
+
+            if (n == -1) {
+                break; // Done reading document!
+            }
+
+            links.feed(buf, 0, n);
+        }
+
+    }
+
+    /*
+     * this inner class reads one page as it arrives. it keeps the links we
+     * can crawl one level deeper until the page is done, and fingerprints
+     * the text when we look for near duplicates
+     */
+    private class LinkCollector implements LinkExtractor.LinkSink {
+
+        // depth of the page the links were found on
+        private int depth;
+
+        // links found so far
+        private ArrayList<URLDepthPair> links;
+
+        // finds the links in the page
+        private LinkExtractor extractor;
+
+        // fingerprint of the page's text, null if we don't look for near duplicates
+        private SimHash content;
+
+        // time spent extracting links and fingerprinting, in nanoseconds
+        private long parseNanos;
+
+        public LinkCollector(int depth) {
+            this.depth = depth;
+            this.links = new ArrayList<URLDepthPair>();
+            this.extractor = new LinkExtractor(this);
+            this.content = nearDuplicates != null ? new SimHash() : null;
+        }
+
+        // reads the next bytes of the page
+        public void feed(byte[] buf, int off, int len) {
+
+            long start = System.nanoTime();
+
+            extractor.feed(buf, off, len);
+            if (content != null) {
+                content.feed(buf, off, len);
+            }
+
+            parseNanos += System.nanoTime() - start;
+        }
+
+        public long getParseNanos() {
+            return parseNanos;
+        }
+
+        public List<URLDepthPair> getLinks() {
+            return links;
+        }
+
+        // takes the links an earlier crawl found on the page, which didn't change since
+        public void reuse(ResponseCache.Entry cached) {
+
+            for (String url : cached.getLinks()) {
+                links.add(new URLDepthPair(url, depth+1));
+            }
+            responseCache.recordNotModified();
+        }
+
+        // returns true if a page with nearly the same text was crawled before,
+        // remembering this one if not. pages with too little text never are
+        public boolean isNearDuplicate() {
+
+            if (content == null || content.getTokenCount() < SimHash.MIN_TOKENS) {
+                return false;
+            }
+
+            long start = System.nanoTime();
+            boolean duplicate = !nearDuplicates.addIfDistinct(content.value());
+            parseNanos += System.nanoTime() - start;
+            return duplicate;
+        }
+
+        public void link(byte[] buf, int off, int len) {
+
+            // only absolute http and https links
+            if (!LinkExtractor.startsWithIgnoreCase(buf, off, len, URL_PREFIX_BYTES)
+                && !LinkExtractor.startsWithIgnoreCase(buf, off, len, SECURE_URL_PREFIX_BYTES)) {
+                return;
+            }
+
+            // create a new URLDepthPair to add to pending URLs
+            URLDepthPair next = new URLDepthPair(new String(buf, off, len, StandardCharsets.UTF_8), depth+1);
+            links.add(next);
+        }
+    }
+
+    /*
+     * this inner class is a fetched page on its way through the pipeline.
+     * the fetcher fills in the response and the body as it was sent, and
+     * every stage leaves what it made of it for the next one
+     */
+    private class PipelinedPage {
+
+        // the page, and what an earlier crawl saw of it
+        URLDepthPair pair;
+        ResponseCache.Entry cached;
+
+        // when the fetch started, in nanoseconds
+        long started;
+
+        // the status and headers
+        HTTPResponse response;
+
+        // the body, still compressed until it is decoded, and how much of data it fills
+        byte[] data;
+        int length;
+
+        // bytes that came off the wire, and the time it took to read them, in nanoseconds
+        long bytes;
+        long download;
+
+        // the links found on the page, and the ones the filter kept
+        LinkCollector links;
+        List<URLDepthPair> follow;
+
+        // set once the page went to the pipeline, into the room reserved for it
+        boolean submitted;
+
+        PipelinedPage(URLDepthPair pair, ResponseCache.Entry cached, long started) {
+            this.pair = pair;
+            this.cached = cached;
+            this.started = started;
+            this.data = new byte[READ_BUFFER_SIZE];
+        }
+
+        // makes room for a body of length bytes, if it is known, so it isn't copied as it grows.
+        // the server says how long it is, so a body that would be too big is refused before it comes
+        void reserve(long length) throws IOException {
+
+            if (length > MAX_PAGE_SIZE) {
+                throw new IOException("Page of " + length + " bytes is over the limit of " + MAX_PAGE_SIZE);
+            }
+            if (length > data.length) {
+                data = Arrays.copyOf(data, (int) length);
+            }
+        }
+
+        // adds the next bytes of the body
+        void append(byte[] buf, int off, int len) throws IOException {
+
+            if (length + len > data.length) {
+                grow(length + len);
+            }
+            System.arraycopy(buf, off, data, length, len);
+            length += len;
+        }
+
+        // adds the rest of in to the body
+        void read(InputStream in) throws IOException {
+
+            while (true) {
+
+                // a full buffer may hold the whole body, so only grow it if there is more
+                if (length == data.length) {
+
+                    int b = in.read();
+                    if (b == -1) {
+                        return;
+                    }
+                    grow(length + 1);
+                    data[length++] = (byte) b;
+                }
+
+                int n = in.read(data, length, data.length - length);
+                if (n == -1) {
+                    return;
+                }
+                length += n;
+            }
+        }
+
+        // doubles the buffer until it holds needed bytes, up to the limit
+        private void grow(int needed) throws IOException {
+
+            if (needed > MAX_PAGE_SIZE || needed < 0) {
+                throw new IOException("Page is over the limit of " + MAX_PAGE_SIZE + " bytes");
+            }
+            data = Arrays.copyOf(data, Math.min(Math.max(data.length * 2, needed), MAX_PAGE_SIZE));
+        }
+
+        // keeps what the fetcher learned once the response is all in
+        void fetched(HTTPResponse response, long bytes, long download) {
+            this.response = response;
+            this.bytes = bytes;
+            this.download = download;
+        }
+    }
+
+    /*
+     * this inner class is told about robots.txt fetches. a fetch counts as
+     * an active one so the crawl doesn't end under it, and pages waiting
+     * for it count as in flight so a checkpoint keeps them
+     */
+    private class RobotsHandler implements RobotsCache.Listener {
 
-    /* 
-     * constructor for Crawler object, just 
-     * instantiates everything 
+        public void fetchStarted() {
+            activeFetches.incrementAndGet();
+        }
+
+        public void waiting(URLDepthPair pair) {
+            inFlightURLs.add(pair);
+        }
+
+        public void rulesReady(List<URLDepthPair> waiting) {
+
+            stateLock.readLock().lock();
+
+            try {
+                for (URLDepthPair pair : waiting) {
+                    inFlightURLs.remove(pair);
+                    admit(pair);
+                }
+            } finally {
+                stateLock.readLock().unlock();
+                activeFetches.decrementAndGet();
+            }
+        }
+    }
+
+    /*
+     * this inner class queues the pages other processes
+     * found on the hosts this one owns
      */
-    public Crawler(int mD, String fU) {
+    private class PartitionHandler implements CrawlPartition.Listener {
 
-        pendingURLs = new LinkedList<URLDepthPair>();
-        processedURLs = new LinkedList<URLDepthPair>();
-        maximumDepth = mD;
-        firstUrl = fU;
+        public void received(List<URLDepthPair> pairs) {
+
+            stateLock.readLock().lock();
+
+            try {
+                for (URLDepthPair pair : pairs) {
+                    enqueue(pair);
+                }
+            } finally {
+                stateLock.readLock().unlock();
+            }
+        }
     }
 
     /*
-     * usage statement. used when given an illegal argument on
-     * the command line
+     * this inner class fetches one page on a worker thread
      */
-    public static void usage() {
-        System.out.println("usage: java Crawler <URL> <depth>");
-        System.exit(1);
+    private class FetchTask implements Runnable {
+
+        // the page this task fetches
+        private URLDepthPair pair;
+
+        public FetchTask(URLDepthPair pair) {
+            this.pair = pair;
+        }
+
+        public void run() {
+
+            try {
+                processURL(pair);
+            } finally {
+                // links found were already added, so this can't end the crawl early
+                activeFetches.decrementAndGet();
+            }
+        }
     }
 
-    public Socket makeConnection(URLDepthPair nextPair) {
+    /**
+     * This function prints the totals of the crawl. The pages
+     * themselves went to the result sink as they were done
+     */ 
+    public void getSites() {
 
-        try {
+        if (partition != null) {
+            System.out.println(partition);
+        }
 
-            // create a socket to connect with 
-            Socket sock = new Socket(nextPair.getHost(), 80);
-            sock.setSoTimeout(3000);
-            OutputStream os = sock.getOutputStream(); 
+        System.out.println(seenURLs);
+        System.out.println(metrics);
+        System.out.println(concurrency);
 
-            PrintWriter writer = new PrintWriter(os, true);
-            writer.println("GET " + nextPair.getPath() + " HTTP/1.1\r"); 
-            writer.println("Host: " + nextPair.getHost() + "\r");
-            writer.println("Connection: close\r");
-            writer.println("\r"); 
+        if (pipeline != null) {
+            System.out.println(pipeline);
+        }
 
-            return sock;
+        System.out.println(retries);
+        System.out.println(dns);
+        System.out.println(tls);
 
-        } catch (IOException e) {
+        if (robots != null) {
+            System.out.println(robots);
+        }
 
-            System.out.println("Couldn't create socket");
-            System.exit(1);
-            return null;
+        if (nearDuplicates != null) {
+            System.out.println(nearDuplicates);
+        }
+
+        if (responseCache != null) {
+            System.out.println(responseCache);
+        }
+
+        if (linkGraph != null) {
 
+            System.out.println(linkGraph);
+
+            double[] ranks = linkGraph.pageRank();
+            int[] inLinks = linkGraph.inDegrees();
+
+            for (int id : LinkGraph.top(ranks, topRanked)) {
+                System.out.println(String.format("Rank: %.6f, In-links: %d, URL: %s",
+                    ranks[id], inLinks[id], linkGraph.getURL(id)));
+            }
         }
 
     }
 
-    /** 
-     * this function is the main function that does the crawling.
-     * it connects to multiple links by using a Socket and alters
-     * pendingURLs and processedURLs lists as it works
+    /*
+     * this inner class collects the response of a page fetched by the
+     * NIOFetcher and extracts its links while the bytes arrive
      */
-    public void crawl() {
+    private class PageHandler implements NIOFetcher.Handler, ResponseDecoder.BodySink {
 
-        try {
+        // the page being fetched
+        private URLDepthPair pair;
 
-            // create the first link to check
-            URLDepthPair first = new URLDepthPair(firstUrl, 0);
-            pendingURLs.add(first); 
+        // strips the headers and framing and inflates the body as it arrives
+        private ResponseDecoder decoder;
 
-            // make sure it is valid
-            if (!first.isValidURL()) {
-                System.out.println("The first argument must be a valid URL");
-                usage();
+        // finds the links in the page as it arrives
+        private LinkCollector links;
+
+        // the first error decoding the response, if any
+        private IOException error;
+
+        // what an earlier crawl saw of the page, null if nothing
+        private ResponseCache.Entry cached;
+
+        // when the fetch started, and when the first bytes of the response came, in nanoseconds
+        private long started;
+        private long firstData;
+
+        // collects the body for the pipeline, null if the links are found here
+        private PipelinedPage page;
+
+        // set once the fetch was counted as done
+        private boolean finished;
+
+        public PageHandler(URLDepthPair pair) {
+            this.pair = pair;
+            this.links = new LinkCollector(pair.getDepth());
+            this.decoder = new ResponseDecoder(this);
+            this.cached = responseCache != null ? responseCache.get(pair) : null;
+            this.started = System.nanoTime();
+
+            // the decode stage inflates the body, off the I/O thread
+            if (pipeline != null) {
+                this.page = new PipelinedPage(pair, cached, started);
+                decoder.setInflating(false);
             }
+        }
 
-            // while we have more urls to look at 
-            while (!pendingURLs.isEmpty()) {
+        // the extra header lines of the request, asking for a 304 if we can
+        public String getRequestHeaders() {
+            return cached != null ? cached.getConditionalHeaders() : "";
+        }
 
-                // grab the first url
-                URLDepthPair nextURLPair = pendingURLs.removeFirst(); 
+        public void data(ByteBuffer buf) {
 
-                Socket sock = makeConnection(nextURLPair);
+            if (error != null) {
+                return;
+            }
 
-                InputStream is = sock.getInputStream();
-                InputStreamReader isr = new InputStreamReader(is);
-                BufferedReader br = new BufferedReader(isr);
+            if (firstData == 0) {
+                firstData = System.nanoTime();
+            }
 
-                // set the depth 
-                int depth = nextURLPair.getDepth();
+            try {
+                decoder.feed(buf);
+            } catch (IOException e) {
+                decoder.end();
+                error = e;
+            }
+        }
 
-                // if we're at the maximum depth, stop
-                if (depth == maximumDepth) {
-                    break;
-                }
+        public void body(byte[] buf, int off, int len) {
 
-                // read the page
-                while (true) {
+            // scan the decoded page for links, or keep it for the pipeline
+            if (page != null) {
 
-                    String line = br.readLine();
+                // the rest of a page that is too big is read, but not kept
+                if (error != null) {
+                    return;
+                }
 
-                    if (line == null) {
-                        break; // Done reading document!
+                try {
+                    if (page.length == 0) {
+                        page.reserve(decoder.getResponse().getContentLength());
                     }
+                    page.append(buf, off, len);
+                } catch (IOException e) {
+                    error = e;
+                }
+            } else {
+                links.feed(buf, off, len);
+            }
+        }
 
-                    // check this line for LINE_PREFIX
-                    if (line.toLowerCase().contains(LINE_PREFIX.toLowerCase())) {
+        public void done() {
 
-                        // find the start and end of the url
-                        int idxStart = line.indexOf(URL_PREFIX);
-                        int idxEnd = line.indexOf("\"", idxStart);
+            try {
+                complete();
+            } catch (RuntimeException e) {
+                // a bug on one page fails that page, rather than keeping its slots forever
+                if (!finished) {
+                    failed(new IOException(e));
+                }
+            }
+        }
 
-                        // create a new URLDepthPair to add to pending URLs
-                        URLDepthPair next = new URLDepthPair(line.substring(idxStart, idxEnd), depth+1);
-                        pendingURLs.add(next);
-                        
-                    }
+        // finishes the page once the whole response is in
+        private void complete() {
 
+            try {
+                if (error != null) {
+                    throw error;
                 }
+                decoder.finish();
+            } catch (IOException e) {
+                failed(e);
+                return;
+            }
 
-                // add the just processedURL to the processed URL list
-                processedURLs.add(nextURLPair);
+            HTTPResponse response = decoder.getResponse();
+            long download = (firstData == 0 ? 0 : System.nanoTime() - firstData) - links.getParseNanos();
+            long latency = firstData == 0 ? 0 : firstData - started;
 
+            // a server in trouble gets asked again later, if the page has attempts left
+            if (RetryQueue.isRetryableStatus(response.getStatus())
+                    && retryLater(pair, response.getStatus(), latency)) {
+                finish();
+                return;
+            }
 
+            // the pipeline had room for the page before it was fetched, so this doesn't wait
+            if (page != null) {
+                page.fetched(response, decoder.getBytesReceived(), download);
+                submit(page);
+                fetchFinished(pair, latency, response.getStatus());
+                finish();
+                return;
             }
 
-        } catch (IOException e) {
-            System.out.println("Couldn't create Buffer");
-            System.exit(1);
-        }
+            if (cached != null && response.getStatus() == 304) {
+                links.reuse(cached);
+            }
 
+            cachePage(pair, response, links);
+            if (pageDone(pair, links, followed(pair, links), response.getStatus(), decoder.getBytesReceived(), started)) {
+                recordPage(response.getStatus(), links, download);
+            }
 
-    }
+            // a new connection every time, so connecting is part of the wait
+            fetchFinished(pair, latency, response.getStatus());
+            finish();
+        }
 
-    /**
-     * This function simply prints all the URLDepthPairs
-     * stored in the processedURL list 
-     */ 
-    public void getSites() {
+        public void failed(IOException e) {
 
-        for (int i = 0; i < processedURLs.size(); i++) {
-            System.out.println(processedURLs.get(i));
+            decoder.end();
+            fetchFailed(pair, e);
+            finish();
         }
 
+        // counts the fetch as done, after any links were added
+        private void finish() {
+
+            if (!finished) {
+                finished = true;
+                unreserve(page);
+                activeFetches.decrementAndGet();
+            }
+        }
     }
 
     /** 
@@ -173,13 +1745,42 @@ public class Crawler {
         //// Patch to get crawler working on most sites ========================
         // System.setProperty("line.separator", "\r\n");
         
-        // make sure we only had 2 arguments
-        if (args.length != 2) {
+        // make sure we had the 2 required arguments
+        if (args.length < 2) {
             usage();
         } 
 
         String url;
         int maxDepth = 0;
+        int threads = DEFAULT_THREADS;
+        boolean nio = false;
+        long seenBudget = SeenURLStore.DEFAULT_BUDGET_BYTES;
+        int perHost = HostConnectionPool.DEFAULT_MAX_PER_HOST;
+        double hostRate = HostScheduler.DEFAULT_RATE;
+        long frontierMemory = DEFAULT_FRONTIER_MEMORY;
+        File spillDir = new File(System.getProperty("java.io.tmpdir"),
+            "crawler-frontier-" + ProcessHandle.current().pid());
+        File checkpointFile = null;
+        int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        boolean resume = false;
+        File trustFile = null;
+        boolean ignoreRobots = false;
+        boolean bestFirst = false;
+        boolean adaptive = false;
+        int maxRetries = RetryQueue.DEFAULT_MAX_ATTEMPTS - 1;
+        int maxHostFailures = RetryQueue.DEFAULT_MAX_HOST_FAILURES;
+        int nearDupDistance = -1;
+        File cacheDir = null;
+        int metricsInterval = 0;
+        File resultsFile = null;
+        String resultsFormat = "ndjson";
+        int topRanked = 0;
+        int processes = 1;
+        int partitionIndex = -1;
+        int[] peerPorts = null;
+        boolean pipelined = false;
+        int[] stageThreads = DEFAULT_STAGE_THREADS.clone();
+        int stageQueue = CrawlPipeline.DEFAULT_CAPACITY;
 
         // make sure the 2nd argument is an integer
         try {
@@ -198,14 +1799,410 @@ public class Crawler {
             usage();
         }
 
+        // any other arguments are options
+        for (int i = 2; i < args.length; i++) {
+
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+
+                try {
+                    threads = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The number of threads must be an integer.");
+                    usage();
+                }
+
+                if (threads < 1) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--nio")) {
+                nio = true;
+            } else if (args[i].equals("--per-host") && i + 1 < args.length) {
+
+                try {
+                    perHost = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The connections per host must be an integer.");
+                    usage();
+                }
+
+                if (perHost < 1) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--host-rate") && i + 1 < args.length) {
+
+                try {
+                    hostRate = Double.parseDouble(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The host rate must be a number.");
+                    usage();
+                }
+
+                if (hostRate < 0) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--frontier-memory") && i + 1 < args.length) {
+
+                try {
+                    frontierMemory = Long.parseLong(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The frontier memory must be an integer.");
+                    usage();
+                }
+
+                if (frontierMemory < 1) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--spill-dir") && i + 1 < args.length) {
+                spillDir = new File(args[++i]);
+            } else if (args[i].equals("--checkpoint") && i + 1 < args.length) {
+                checkpointFile = new File(args[++i]);
+            } else if (args[i].equals("--checkpoint-interval") && i + 1 < args.length) {
+
+                try {
+                    checkpointInterval = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The checkpoint interval must be an integer.");
+                    usage();
+                }
+
+                if (checkpointInterval < 1) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--resume")) {
+                resume = true;
+            } else if (args[i].equals("--near-dup") && i + 1 < args.length) {
+
+                try {
+                    nearDupDistance = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The near duplicate distance must be an integer.");
+                    usage();
+                }
+
+                if (nearDupDistance < 0 || nearDupDistance > SimHashIndex.MAX_DISTANCE) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--metrics-interval") && i + 1 < args.length) {
+
+                try {
+                    metricsInterval = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The metrics interval must be an integer.");
+                    usage();
+                }
+
+                if (metricsInterval < 0) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--pagerank") && i + 1 < args.length) {
+
+                try {
+                    topRanked = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The number of top pages must be an integer.");
+                    usage();
+                }
+
+                if (topRanked < 1) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--results") && i + 1 < args.length) {
+                resultsFile = new File(args[++i]);
+            } else if (args[i].equals("--results-format") && i + 1 < args.length) {
+
+                resultsFormat = args[++i];
+
+                if (!resultsFormat.equals("ndjson") && !resultsFormat.equals("binary")) {
+                    System.out.println("The results format must be ndjson or binary.");
+                    usage();
+                }
+
+            } else if (args[i].equals("--cache-dir") && i + 1 < args.length) {
+                cacheDir = new File(args[++i]);
+            } else if (args[i].equals("--ignore-robots")) {
+                ignoreRobots = true;
+            } else if (args[i].equals("--best-first")) {
+                bestFirst = true;
+            } else if (args[i].equals("--adaptive")) {
+                adaptive = true;
+            } else if (args[i].equals("--retries") && i + 1 < args.length) {
+
+                try {
+                    maxRetries = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The number of retries must be an integer.");
+                    usage();
+                }
+
+                if (maxRetries < 0) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--max-host-failures") && i + 1 < args.length) {
+
+                try {
+                    maxHostFailures = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The number of host failures must be an integer.");
+                    usage();
+                }
+
+                if (maxHostFailures < 1) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--pipeline")) {
+                pipelined = true;
+            } else if (args[i].equals("--stage-threads") && i + 1 < args.length) {
+
+                String[] counts = args[++i].split(",");
+
+                if (counts.length != PIPELINE_STAGES.length) {
+                    System.out.println("Give the threads of all " + PIPELINE_STAGES.length + " stages.");
+                    usage();
+                }
+
+                try {
+                    for (int s = 0; s < counts.length; s++) {
+                        stageThreads[s] = Integer.parseInt(counts[s]);
+                    }
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The stage threads must be integers.");
+                    usage();
+                }
+
+                for (int count : stageThreads) {
+                    if (count < 1) {
+                        usage();
+                    }
+                }
+                pipelined = true;
+
+            } else if (args[i].equals("--stage-queue") && i + 1 < args.length) {
+
+                try {
+                    stageQueue = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The stage queue size must be an integer.");
+                    usage();
+                }
+
+                if (stageQueue < 1) {
+                    usage();
+                }
+                pipelined = true;
+
+            } else if (args[i].equals("--processes") && i + 1 < args.length) {
+
+                try {
+                    processes = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The number of processes must be an integer.");
+                    usage();
+                }
+
+                if (processes < 1) {
+                    usage();
+                }
+
+            // the next two are given by PartitionedCrawl to the processes it starts
+            } else if (args[i].equals("--partition") && i + 1 < args.length) {
+
+                try {
+                    partitionIndex = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException nfe) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--peers") && i + 1 < args.length) {
+
+                String[] ports = args[++i].split(",");
+                peerPorts = new int[ports.length];
+
+                try {
+                    for (int p = 0; p < ports.length; p++) {
+                        peerPorts[p] = Integer.parseInt(ports[p]);
+                    }
+                }
+                catch (NumberFormatException nfe) {
+                    usage();
+                }
+
+            } else if (args[i].equals("--trust-cert") && i + 1 < args.length) {
+                trustFile = new File(args[++i]);
+            } else if (args[i].equals("--seen-budget") && i + 1 < args.length) {
+
+                try {
+                    seenBudget = Long.parseLong(args[++i]) * 1024 * 1024;
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("The seen URL budget must be an integer.");
+                    usage();
+                }
+
+                if (seenBudget < 1) {
+                    usage();
+                }
+
+            } else {
+                usage();
+            }
+        }
+
         // first argument is url
         url = args[0];
 
-        Crawler crawling = new Crawler(maxDepth, url);
+        ResultSink sink = null;
+        if (resultsFile != null) {
+            try {
+                sink = resultsFormat.equals("binary")
+                    ? new BinaryResultSink(resultsFile) : new NDJSONResultSink(resultsFile);
+            } catch (IOException e) {
+                System.out.println("Couldn't write results: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // several processes each crawl their own hosts, and this one only waits for them
+        if (processes > 1) {
+
+            // every process would only have part of them
+            if (checkpointFile != null || resume || topRanked > 0) {
+                System.out.println("Checkpoints and PageRank need a single process.");
+                usage();
+            }
+
+            try {
+                PartitionedCrawl.run(args, processes, sink != null ? sink : new PrintResultSink(System.out));
+            } catch (IOException e) {
+                System.out.println("Couldn't run the crawl: " + e.getMessage());
+                System.exit(1);
+            } catch (InterruptedException e) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        if ((partitionIndex >= 0) != (peerPorts != null)
+                || (peerPorts != null && (partitionIndex >= peerPorts.length || resultsFile == null))) {
+            usage();
+        }
+
+        Crawler crawling = new Crawler(maxDepth, url, threads, seenBudget);
+        crawling.setMaxConnectionsPerHost(perHost);
+        crawling.setHostRate(hostRate);
+
+        // each process keeps its own spilled pages
+        if (peerPorts != null) {
+            crawling.setPartition(new CrawlPartition(partitionIndex, peerPorts));
+            spillDir = new File(spillDir, "part" + partitionIndex);
+        }
+
+        crawling.setFrontierSpill(spillDir, frontierMemory);
+        crawling.setBestFirst(bestFirst);
+        crawling.setAdaptiveConcurrency(adaptive);
+        crawling.setRetries(maxRetries, maxHostFailures);
+
+        if (pipelined) {
+            crawling.setPipeline(stageThreads, stageQueue);
+        }
+        crawling.setObeyRobots(!ignoreRobots);
+        crawling.setMetricsInterval(metricsInterval);
+
+        if (sink != null) {
+            crawling.setResultSink(sink);
+        }
+
+        if (topRanked > 0) {
+            crawling.setLinkGraph(new LinkGraph(), topRanked);
+        }
+
+        if (nearDupDistance >= 0) {
+            crawling.setNearDuplicateDistance(nearDupDistance);
+        }
+
+        if (cacheDir != null) {
+            try {
+                crawling.setResponseCache(cacheDir);
+            } catch (IOException e) {
+                System.out.println("Couldn't use response cache: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (trustFile != null) {
+            try {
+                crawling.setTrustedCertificates(trustFile);
+            } catch (IOException | GeneralSecurityException e) {
+                System.out.println("Couldn't load certificates: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // resuming needs to know where the checkpoint is
+        if (resume && checkpointFile == null) {
+            usage();
+        }
+
+        try {
+
+            if (resume) {
+                crawling.resume(checkpointFile);
+            }
+
+            if (checkpointFile != null) {
+                crawling.setCheckpoint(checkpointFile, checkpointInterval);
+            }
+
+        } catch (IOException e) {
+            System.out.println("Couldn't use checkpoint: " + e.getMessage());
+            System.exit(1);
+        }
+
+        if (nio) {
+            try {
+                crawling.useNIO();
+            } catch (IOException e) {
+                System.out.println("Couldn't open selector");
+                System.exit(1);
+            }
+        }
 
         crawling.crawl();
 
         crawling.getSites();
+
+        // PartitionedCrawl merges the sorted results of every process
+        if (peerPorts != null) {
+            try {
+                PartitionedCrawl.sortResults(resultsFile);
+            } catch (IOException e) {
+                System.out.println("Couldn't sort results: " + e.getMessage());
+                System.exit(1);
+            }
+        }
         
     }
 }
@@ -0,0 +1,478 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class benchmarks the hot loops of the crawler: link extraction,
+ * making URLDepthPairs and reading their parts, the frontier, the queues
+ * between pipeline stages and the seen store. Like JMH it warms every
+ * benchmark up, then runs timed iterations of a fixed length and reports
+ * the operations per second with their spread. It also reports the bytes
+ * allocated per operation and the allocation rate, read from the thread's
+ * allocation counter the way the JMH GC profiler does
+ */
+public class CrawlerBenchmarks {
+
+    // iterations thrown away while the JIT compiles, and iterations timed
+    public static final int WARMUP_ITERATIONS = 3;
+    public static final int MEASURE_ITERATIONS = 5;
+
+    // how long each iteration runs, in milliseconds
+    public static final long ITERATION_MILLIS = 1000;
+
+    // size of each read handed to the extractor, same as the crawler
+    public static final int CHUNK_SIZE = 8192;
+
+    // urls the URLDepthPair and frontier benchmarks cycle through
+    private static final int URL_COUNT = 16384;
+
+    // fingerprints put in the seen store before the lookups are timed
+    private static final int SEEN_COUNT = 1 << 20;
+
+    // results end up here so the JIT can't drop the work that made them
+    private static volatile long sink;
+
+    // reads how many bytes the benchmark thread allocated
+    private static com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /*
+     * this inner class is one benchmark. run does n operations
+     * and returns something computed from all of them
+     */
+    private abstract static class Benchmark {
+
+        // what the benchmark is called in the report
+        String name;
+
+        // bytes one operation reads, 0 if throughput in MB/s means nothing
+        long bytesPerOp;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        // called before every iteration, for state that must start over
+        void setUp() throws IOException {
+        }
+
+        abstract long run(int n) throws IOException;
+    }
+
+    /*
+     * builds the html pages the link extraction benchmarks read: count
+     * generated pages of about size bytes, or the files in corpus if given
+     */
+    private static List<byte[]> makeCorpus(int count, int size, File corpus) throws IOException {
+
+        List<byte[]> pages = new ArrayList<byte[]>();
+
+        if (corpus != null) {
+
+            File[] files = corpus.listFiles();
+            if (files == null) {
+                throw new IOException("can't read " + corpus);
+            }
+
+            for (File file : files) {
+                if (file.isFile()) {
+                    pages.add(Files.readAllBytes(file.toPath()));
+                }
+            }
+            return pages;
+        }
+
+        for (int i = 0; i < count; i++) {
+            pages.add(LinkExtractorBenchmark.makePage(size, i));
+        }
+        return pages;
+    }
+
+    /*
+     * builds urls spread over a few hundred hosts, with paths and
+     * queries of the lengths real sites have
+     */
+    private static String[] makeURLs(int count, long seed) {
+
+        Random rand = new Random(seed);
+        String[] urls = new String[count];
+
+        for (int i = 0; i < count; i++) {
+
+            StringBuilder url = new StringBuilder(rand.nextInt(8) == 0 ? "https://" : "http://");
+            url.append("www.host").append(rand.nextInt(300)).append(".example.com");
+
+            int segments = 1 + rand.nextInt(4);
+            for (int s = 0; s < segments; s++) {
+                url.append("/section").append(rand.nextInt(50));
+            }
+            url.append("/page").append(i).append(".html");
+
+            if (rand.nextInt(4) == 0) {
+                url.append("?id=").append(rand.nextInt(100000)).append("&sort=asc");
+            }
+            urls[i] = url.toString();
+        }
+        return urls;
+    }
+
+    /*
+     * link extraction over every page of a corpus, one page per
+     * operation, fed in chunks like the crawler reads them
+     */
+    private static Benchmark extraction(String name, final List<byte[]> pages) {
+
+        long total = 0;
+        for (byte[] page : pages) {
+            total += page.length;
+        }
+
+        Benchmark b = new Benchmark(name) {
+
+            int next;
+
+            long run(int n) {
+
+                final long[] found = new long[1];
+                LinkExtractor.LinkSink links = new LinkExtractor.LinkSink() {
+                    public void link(byte[] buf, int off, int len) {
+                        found[0] += len;
+                    }
+                };
+
+                for (int i = 0; i < n; i++) {
+
+                    byte[] page = pages.get(next);
+                    next = next + 1 == pages.size() ? 0 : next + 1;
+
+                    // a new extractor per page, as the crawler makes one per fetch
+                    LinkExtractor extractor = new LinkExtractor(links);
+                    for (int off = 0; off < page.length; off += CHUNK_SIZE) {
+                        extractor.feed(page, off, Math.min(CHUNK_SIZE, page.length - off));
+                    }
+                }
+                return found[0];
+            }
+        };
+
+        b.bytesPerOp = total / pages.size();
+        return b;
+    }
+
+    /*
+     * every benchmark, with its data made up front
+     */
+    private static List<Benchmark> benchmarks(File corpus) throws IOException {
+
+        List<Benchmark> list = new ArrayList<Benchmark>();
+
+        if (corpus != null) {
+            list.add(extraction("extract.corpus", makeCorpus(0, 0, corpus)));
+        } else {
+            list.add(extraction("extract.16k", makeCorpus(64, 16 * 1024, null)));
+            list.add(extraction("extract.1m", makeCorpus(4, 1024 * 1024, null)));
+        }
+
+        final String[] urls = makeURLs(URL_COUNT, 42);
+        final URLDepthPair[] pairs = new URLDepthPair[URL_COUNT];
+        for (int i = 0; i < URL_COUNT; i++) {
+            pairs[i] = new URLDepthPair(urls[i], 1);
+        }
+
+        list.add(new Benchmark("url.construct") {
+
+            int next;
+
+            long run(int n) {
+
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    sum += new URLDepthPair(urls[next], 1).getFingerprint();
+                    next = (next + 1) & (URL_COUNT - 1);
+                }
+                return sum;
+            }
+        });
+
+        list.add(new Benchmark("url.getHostPath") {
+
+            int next;
+
+            long run(int n) {
+
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    URLDepthPair pair = pairs[next];
+                    sum += pair.getHost().length() + pair.getPath().length();
+                    next = (next + 1) & (URL_COUNT - 1);
+                }
+                return sum;
+            }
+        });
+
+        list.add(frontierAddPoll("frontier.addPoll", pairs, null));
+        list.add(frontierAddPoll("frontier.bestFirst", pairs, new URLScorer(pairs[0].getHost())));
+
+        list.add(new Benchmark("queue.offerPoll") {
+
+            BoundedQueue<URLDepthPair> queue = new BoundedQueue<URLDepthPair>(CrawlPipeline.DEFAULT_CAPACITY);
+            int next;
+
+            // a pipeline stage's queue, half full the way a busy one is
+            void setUp() {
+                while (queue.size() < queue.capacity() / 2) {
+                    queue.offer(pairs[0]);
+                }
+            }
+
+            long run(int n) {
+
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    queue.offer(pairs[next]);
+                    sum += queue.poll().getDepth();
+                    next = (next + 1) & (URL_COUNT - 1);
+                }
+                return sum;
+            }
+        });
+
+        list.add(new Benchmark("seen.addNew") {
+
+            SeenURLStore seen;
+            long next;
+
+            // a fresh store every iteration, so it grows the way it does in a crawl
+            void setUp() {
+                seen = new SeenURLStore();
+            }
+
+            long run(int n) {
+
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    if (seen.addIfAbsent(mix(next++))) {
+                        sum++;
+                    }
+                }
+                return sum;
+            }
+        });
+
+        list.add(seenLookups("seen.exactHit", SeenURLStore.DEFAULT_BUDGET_BYTES, 0));
+        list.add(seenLookups("seen.exactMiss", SeenURLStore.DEFAULT_BUDGET_BYTES, SEEN_COUNT));
+
+        // too small a budget for the exact table, so the store is a Bloom filter
+        list.add(seenLookups("seen.bloomHit", SEEN_COUNT, 0));
+        list.add(seenLookups("seen.bloomMiss", SEEN_COUNT, SEEN_COUNT));
+
+        return list;
+    }
+
+    /*
+     * adds and polls on a frontier holding every url, unlimited per host,
+     * so a poll never waits. with a scorer the frontier is best-first and
+     * every add also finds a link to a page that is pending
+     */
+    private static Benchmark frontierAddPoll(String name, final URLDepthPair[] pairs, final URLScorer scorer) {
+
+        return new Benchmark(name) {
+
+            HostScheduler frontier;
+            int next;
+
+            void setUp() throws IOException {
+
+                frontier = new HostScheduler(0);
+                if (scorer != null) {
+                    frontier.setScorer(scorer);
+                }
+                for (URLDepthPair pair : pairs) {
+                    frontier.add(pair);
+                }
+                next = 0;
+            }
+
+            long run(int n) throws IOException {
+
+                long sum = 0;
+                try {
+                    for (int i = 0; i < n; i++) {
+                        frontier.add(pairs[next]);
+                        if (scorer != null) {
+                            frontier.addInLink(pairs[(next + URL_COUNT / 2) & (URL_COUNT - 1)]);
+                        }
+                        sum += frontier.poll(0, TimeUnit.NANOSECONDS).getDepth();
+                        next = (next + 1) & (URL_COUNT - 1);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return sum;
+            }
+        };
+    }
+
+    /*
+     * lookups in a store of SEEN_COUNT fingerprints that may use budget
+     * bytes. lookups start at offset, so 0 hits and SEEN_COUNT misses
+     */
+    private static Benchmark seenLookups(String name, long budget, final long offset) {
+
+        final SeenURLStore seen = new SeenURLStore(budget);
+        for (long i = 0; i < SEEN_COUNT; i++) {
+            seen.addIfAbsent(mix(i));
+        }
+
+        return new Benchmark(name) {
+
+            long next;
+
+            long run(int n) {
+
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    if (seen.contains(mix(offset + next))) {
+                        sum++;
+                    }
+                    next = (next + 1) & (SEEN_COUNT - 1);
+                }
+                return sum;
+            }
+        };
+    }
+
+    /*
+     * runs one iteration of a benchmark for ITERATION_MILLIS. returns
+     * the operations done and the bytes allocated doing them
+     */
+    private static long[] iteration(Benchmark b) throws IOException {
+
+        b.setUp();
+
+        long threadId = Thread.currentThread().getId();
+        long deadline = System.nanoTime() + ITERATION_MILLIS * 1000000;
+        long ops = 0;
+        int batch = 1;
+
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long now = start;
+
+        while (now < deadline) {
+
+            sink += b.run(batch);
+            ops += batch;
+
+            long last = now;
+            now = System.nanoTime();
+
+            // grow the batch until the clock is read about once a millisecond
+            if (now - last < 1000000 && batch < (1 << 24)) {
+                batch *= 2;
+            }
+        }
+
+        allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+        return new long[] { ops, now - start, allocated };
+    }
+
+    /*
+     * warms a benchmark up, times it and prints a line with the
+     * mean and spread of its throughput and what it allocated
+     */
+    private static void measure(Benchmark b) throws IOException {
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(b);
+        }
+
+        double[] rates = new double[MEASURE_ITERATIONS];
+        long ops = 0;
+        long allocated = 0;
+        double mean = 0;
+
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            long[] result = iteration(b);
+            rates[i] = result[0] / (result[1] / 1e9);
+            ops += result[0];
+            allocated += result[2];
+            mean += rates[i] / MEASURE_ITERATIONS;
+        }
+
+        double variance = 0;
+        for (double rate : rates) {
+            variance += (rate - mean) * (rate - mean) / Math.max(MEASURE_ITERATIONS - 1, 1);
+        }
+
+        double bytesPerOp = (double) allocated / ops;
+        String line = String.format("%-20s %14.0f ops/s  +- %5.1f%%  %10.1f B/op  %9.1f MB/s alloc",
+            b.name, mean, 100 * Math.sqrt(variance) / mean, bytesPerOp, bytesPerOp * mean / (1024 * 1024));
+
+        if (b.bytesPerOp > 0) {
+            line += String.format("  %9.1f MB/s read", b.bytesPerOp * mean / (1024 * 1024));
+        }
+        System.out.println(line);
+    }
+
+    // spreads the bits of a counter, the mixer of SplitMix64
+    private static long mix(long x) {
+
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    /*
+     * usage statement. used when given an illegal argument
+     */
+    public static void usage() {
+        System.out.println("usage: java CrawlerBenchmarks [--corpus <dir>] [name prefix ...]");
+        System.exit(1);
+    }
+
+    /*
+     * main function. runs every benchmark, or only the ones whose names
+     * start with one of the prefixes given. --corpus extracts links from
+     * the html files in a directory instead of generated pages
+     */
+    public static void main(String[] args) throws IOException {
+
+        File corpus = null;
+        List<String> prefixes = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+
+            if (args[i].equals("--corpus") && i + 1 < args.length) {
+                corpus = new File(args[++i]);
+            } else if (args[i].startsWith("--")) {
+                usage();
+            } else {
+                prefixes.add(args[i]);
+            }
+        }
+
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("This JVM can't count allocations, B/op will read 0");
+        } else {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        for (Benchmark b : benchmarks(corpus)) {
+
+            boolean wanted = prefixes.isEmpty();
+            for (String prefix : prefixes) {
+                wanted |= b.name.startsWith(prefix);
+            }
+
+            if (wanted) {
+                measure(b);
+            }
+        }
+    }
+}
@@ -0,0 +1,728 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class checks that the crawler still does what it did before it was
+ * made fast: every check builds what it needs, often a SyntheticSite on the
+ * loopback interface, runs the crawler or one of its parts on it and compares
+ * the outcome with what the plain single-threaded crawler would have found.
+ * Every check prints PASS or FAIL, and the program exits with 1 if any failed
+ */
+public class CrawlerChecks {
+
+    /*
+     * this inner class is one check. run throws if what it checks doesn't hold
+     */
+    private abstract static class Check {
+
+        // what the check is called in the report
+        String name;
+
+        Check(String name) {
+            this.name = name;
+        }
+
+        abstract void run() throws Exception;
+    }
+
+    /*
+     * this inner class keeps the url of every page a crawl reported
+     */
+    private static class CollectingSink implements ResultSink {
+
+        // the urls, and how many results came, repeats included
+        Set<String> urls = ConcurrentHashMap.newKeySet();
+        int results;
+
+        // results that came after a deeper one, and the depth of the last
+        int shallowerThanLast;
+        int lastDepth;
+
+        public synchronized void result(PageResult result) {
+
+            urls.add(result.getPair().getURL());
+            results++;
+
+            if (result.getPair().getDepth() < lastDepth) {
+                shallowerThanLast++;
+            }
+            lastDepth = result.getPair().getDepth();
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+
+    // throws with message unless ok
+    private static void expect(boolean ok, String message) {
+
+        if (!ok) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /*
+     * starts a site whose repeated links give many pages a shorter way to
+     * them than the first one found, spread over a few hosts
+     */
+    private static SyntheticSite startSite() throws IOException {
+
+        SyntheticSite site = new SyntheticSite();
+        site.setPort(0);
+        site.parseOption(new String[] { "--hosts", "3" }, 0);
+        site.parseOption(new String[] { "--site-depth", "3" }, 0);
+        site.parseOption(new String[] { "--fan-out", "8" }, 0);
+        site.parseOption(new String[] { "--duplicate-ratio", "0.3" }, 0);
+        site.start();
+        return site;
+    }
+
+    /*
+     * returns the url of every page of the site, which the site's
+     * depth allows the plain crawler to reach, in the crawler's form
+     */
+    private static Set<String> allPages(SyntheticSite site) {
+
+        Set<String> urls = new HashSet<String>();
+        for (long id = 0; id < site.getPageCount(); id++) {
+            urls.add(new URLDepthPair(site.getPageURL(id), 0).getURL());
+        }
+        return urls;
+    }
+
+    /*
+     * crawls all of site with crawler and checks every page was
+     * reported exactly once
+     */
+    private static CollectingSink expectWholeSite(SyntheticSite site, Crawler crawler, String how) {
+
+        CollectingSink sink = new CollectingSink();
+        crawler.setResultSink(sink);
+        crawler.setObeyRobots(false);
+        crawler.crawl();
+
+        Set<String> missing = allPages(site);
+        missing.removeAll(sink.urls);
+
+        expect(missing.isEmpty(), how + ": " + missing.size() + " of " + site.getPageCount()
+            + " pages missing, like " + (missing.isEmpty() ? "" : missing.iterator().next()));
+        expect(sink.results == sink.urls.size(), how + ": " + (sink.results - sink.urls.size())
+            + " pages reported twice");
+        return sink;
+    }
+
+    /*
+     * this inner class copies a crawl's checkpoint and journal every
+     * time a new checkpoint is written, until it is interrupted
+     */
+    private static class CheckpointCopier extends Thread {
+
+        // the checkpoint the crawl writes, and the copies made of it
+        File checkpoint;
+        List<File> copies = new ArrayList<File>();
+
+        // tells these copies from the ones of other crawls
+        String tag;
+
+        CheckpointCopier(File checkpoint, String tag) {
+            this.checkpoint = checkpoint;
+            this.tag = tag;
+        }
+
+        public void run() {
+
+            long lastModified = 0;
+
+            try {
+                while (!isInterrupted()) {
+
+                    // the checkpoint is swapped in whole, and the journal only grows after it
+                    long modified = checkpoint.lastModified();
+                    if (modified != lastModified) {
+
+                        lastModified = modified;
+                        File copy = new File(checkpoint.getPath() + "." + tag + copies.size());
+                        Files.copy(checkpoint.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        Files.copy(new File(checkpoint.getPath() + ".journal").toPath(),
+                            new File(copy.getPath() + ".journal").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        copies.add(copy);
+                    }
+
+                    Thread.sleep(5);
+                }
+            } catch (IOException e) {
+                System.out.println("Couldn't copy checkpoint: " + e.getMessage());
+            } catch (InterruptedException e) {
+                // the crawl is done
+            }
+        }
+    }
+
+    /*
+     * starts a server whose robots.txt fails with a 503 the first failures
+     * times it is asked for, and then redirects that many times before the
+     * rules, which keep everyone out of /private/
+     */
+    private static HttpServer startRobotsServer(final int failures, final int redirects) throws IOException {
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16);
+        final AtomicInteger asked = new AtomicInteger();
+
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+
+                String path = exchange.getRequestURI().getPath();
+                int hop = path.equals("/robots.txt") ? 0 : Integer.parseInt(path.substring(2));
+                byte[] body = "User-agent: *\nDisallow: /private/\n".getBytes(StandardCharsets.US_ASCII);
+
+                if (hop == 0 && asked.incrementAndGet() <= failures) {
+                    exchange.sendResponseHeaders(503, -1);
+                } else if (hop < redirects) {
+                    exchange.getResponseHeaders().set("Location", "/r" + (hop + 1));
+                    exchange.sendResponseHeaders(hop % 2 == 0 ? 301 : 302, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+
+        server.start();
+        return server;
+    }
+
+    /*
+     * this inner class is a fetch running against a simulated server
+     */
+    private static class SimulatedFetch implements Comparable<SimulatedFetch> {
+
+        // when it finishes and how long it took, in nanoseconds, its host and how it went
+        double done;
+        long latency;
+        String host;
+        int outcome;
+
+        SimulatedFetch(double done, long latency, String host, int outcome) {
+            this.done = done;
+            this.latency = latency;
+            this.host = host;
+            this.outcome = outcome;
+        }
+
+        public int compareTo(SimulatedFetch other) {
+            return Double.compare(done, other.done);
+        }
+    }
+
+    /*
+     * runs concurrency for seconds of simulated time against hosts that share a
+     * server answering in 5 ms, with lognormal jitter of sigma. past knee fetches
+     * at once it either queues them, so they take longer in proportion, or fails
+     * the ones over quickly. returns the average fetches running over the second half
+     */
+    private static double simulateFetches(AdaptiveConcurrency concurrency, int hosts, int knee,
+                                          boolean failPastKnee, double sigma, int seconds) throws InterruptedException {
+
+        Random random = new Random(1);
+        PriorityQueue<SimulatedFetch> running = new PriorityQueue<SimulatedFetch>();
+
+        double service = 5e6;
+        double end = seconds * 1e9;
+        double now = 0;
+        double area = 0;
+        int next = 0;
+
+        while (now < end) {
+
+            // start fetches, from the hosts in turn, until a limit says no
+            boolean started = true;
+            while (started && concurrency.getInFlight() < concurrency.getLimit()) {
+
+                concurrency.acquire();
+                started = false;
+
+                for (int i = 0; i < hosts && !started; i++) {
+
+                    String host = "host" + (next + i) % hosts;
+                    if (!concurrency.tryAcquire(host)) {
+                        continue;
+                    }
+
+                    next = (next + i + 1) % hosts;
+                    started = true;
+
+                    int load = running.size() + 1;
+                    boolean fails = failPastKnee && load > knee;
+                    double latency = fails ? service / 5
+                        : service * Math.max(1.0, (double) load / knee) * Math.exp(sigma * random.nextGaussian());
+
+                    running.add(new SimulatedFetch(now + latency, (long) latency, host,
+                        fails ? AdaptiveConcurrency.ERROR : AdaptiveConcurrency.SUCCESS));
+                }
+
+                if (!started) {
+                    concurrency.cancel();
+                }
+            }
+
+            SimulatedFetch fetch = running.poll();
+            if (now >= end / 2) {
+                area += (running.size() + 1) * (fetch.done - now);
+            }
+
+            now = fetch.done;
+            concurrency.release(fetch.host, fetch.latency, fetch.outcome);
+        }
+
+        return area / (end / 2);
+    }
+
+    /*
+     * returns the links LinkExtractor finds in html, fed to it whole
+     * or, if split, one byte at a time
+     */
+    private static List<String> extractLinks(String html, boolean split) {
+
+        final List<String> links = new ArrayList<String>();
+
+        LinkExtractor extractor = new LinkExtractor(new LinkExtractor.LinkSink() {
+            public void link(byte[] buf, int off, int len) {
+                links.add(new String(buf, off, len, StandardCharsets.UTF_8));
+            }
+        });
+
+        byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+
+        if (split) {
+            for (int i = 0; i < bytes.length; i++) {
+                extractor.feed(bytes, i, 1);
+            }
+        } else {
+            extractor.feed(bytes, 0, bytes.length);
+        }
+        return links;
+    }
+
+    // throws unless LinkExtractor finds exactly links in html, however it is fed
+    private static void expectLinks(String html, String... links) {
+
+        for (boolean split : new boolean[] { false, true }) {
+
+            List<String> found = extractLinks(html, split);
+            expect(found.equals(Arrays.asList(links)), "found " + found + " in " + html
+                + (split ? " fed a byte at a time" : ""));
+        }
+    }
+
+    // deletes a checkpoint and its journal
+    private static void deleteCheckpoint(File file) {
+
+        file.delete();
+        new File(file.getPath() + ".journal").delete();
+    }
+
+    /*
+     * the checks, in the order they run
+     */
+    private static List<Check> checks() {
+
+        List<Check> list = new ArrayList<Check>();
+
+        // with fetches finishing out of order, pages must still be
+        // crawled from their shortest way in, or subtrees get cut off
+        list.add(new Check("crawl.concurrentPageSet") {
+            void run() throws Exception {
+
+                SyntheticSite site = startSite();
+                try {
+                    for (int threads : new int[] { 1, 4, 16 }) {
+                        for (boolean nio : new boolean[] { false, true }) {
+
+                            Crawler crawler = new Crawler(site.getDepth() + 1, site.getRootURL(), threads);
+                            crawler.setHostRate(0);
+                            if (nio) {
+                                crawler.useNIO();
+                            }
+                            expectWholeSite(site, crawler, threads + " threads" + (nio ? ", NIO" : ""));
+                        }
+                    }
+                } finally {
+                    site.stop();
+                }
+            }
+        });
+
+        // one thread takes pages shallowest first, even at a host rate
+        // that has it going from host to host
+        list.add(new Check("frontier.depthOrder") {
+            void run() throws Exception {
+
+                HostScheduler frontier = new HostScheduler(0);
+                frontier.add(new URLDepthPair("http://a.example/deep.html", 2));
+                frontier.add(new URLDepthPair("http://b.example/", 1));
+                frontier.add(new URLDepthPair("http://a.example/", 1));
+                frontier.add(new URLDepthPair("http://a.example/other.html", 1));
+
+                int last = 0;
+                for (int i = 0; i < 4; i++) {
+                    URLDepthPair pair = frontier.poll(1, TimeUnit.SECONDS);
+                    expect(pair.getDepth() >= last, pair + " came after a page at depth " + last);
+                    last = pair.getDepth();
+                }
+
+                SyntheticSite site = startSite();
+                try {
+                    Crawler crawler = new Crawler(site.getDepth() + 1, site.getRootURL(), 1);
+                    crawler.setHostRate(0);
+                    CollectingSink sink = expectWholeSite(site, crawler, "unlimited hosts");
+                    expect(sink.shallowerThanLast == 0, sink.shallowerThanLast
+                        + " pages came after a deeper one with every host ready");
+
+                    crawler = new Crawler(site.getDepth() + 1, site.getRootURL(), 1);
+                    crawler.setHostRate(100);
+                    expectWholeSite(site, crawler, "100 fetches per second per host");
+                } finally {
+                    site.stop();
+                }
+            }
+        });
+
+        // a page waiting for a retry is in flight until it is due and back in
+        // the frontier, and a checkpoint must save it once either way
+        list.add(new Check("checkpoint.retries") {
+            void run() throws Exception {
+
+                SyntheticSite site = new SyntheticSite();
+                site.setPort(0);
+                site.parseOption(new String[] { "--hosts", "3" }, 0);
+                site.parseOption(new String[] { "--site-depth", "3" }, 0);
+                site.parseOption(new String[] { "--fan-out", "8" }, 0);
+                site.parseOption(new String[] { "--error-rate", "0.1" }, 0);
+                site.start();
+
+                File file = File.createTempFile("crawlerchecks", ".checkpoint");
+                List<File> copies = new ArrayList<File>();
+
+                try {
+                    for (boolean bestFirst : new boolean[] { false, true }) {
+
+                        String how = bestFirst ? "best-first" : "FIFO";
+
+                        // the crawl writes it, from nothing
+                        deleteCheckpoint(file);
+
+                        // slow enough that a due retry waits in the frontier behind other pages
+                        Crawler crawler = new Crawler(site.getDepth() + 1, site.getRootURL(), 4);
+                        crawler.setHostRate(40);
+                        crawler.setBestFirst(bestFirst);
+                        crawler.setCheckpoint(file, 1);
+
+                        CollectingSink whole = new CollectingSink();
+                        crawler.setResultSink(whole);
+                        crawler.setObeyRobots(false);
+
+                        CheckpointCopier copier = new CheckpointCopier(file, how);
+                        copier.start();
+                        crawler.crawl();
+                        copier.interrupt();
+                        copier.join();
+                        copies.addAll(copier.copies);
+
+                        expect(copier.copies.size() > 2, how + ": only " + copier.copies.size() + " checkpoints");
+
+                        File middle = null;
+                        long most = -1;
+
+                        // every page in a checkpoint is there once
+                        for (File copy : copier.copies) {
+
+                            HostScheduler frontier = new HostScheduler(0);
+                            new CrawlCheckpoint(copy).load(frontier, new ArrayList<URLDepthPair>());
+
+                            long pending = frontier.size();
+                            Set<String> pairs = new HashSet<String>();
+
+                            for (URLDepthPair pair = frontier.poll(0, TimeUnit.NANOSECONDS); pair != null;
+                                    pair = frontier.poll(0, TimeUnit.NANOSECONDS)) {
+                                expect(pairs.add(pair.toString()), how + ": " + pair + " saved twice in " + copy);
+                            }
+
+                            if (pending > most) {
+                                most = pending;
+                                middle = copy;
+                            }
+                        }
+
+                        // and picking up from one gives the pages the whole crawl did
+                        crawler = new Crawler(site.getDepth() + 1, site.getRootURL(), 4);
+                        crawler.setHostRate(0);
+                        crawler.setBestFirst(bestFirst);
+                        crawler.resume(middle);
+
+                        CollectingSink resumed = new CollectingSink();
+                        crawler.setResultSink(resumed);
+                        crawler.setObeyRobots(false);
+                        crawler.crawl();
+
+                        expect(resumed.urls.equals(whole.urls), how + ": resumed crawl found "
+                            + resumed.urls.size() + " pages, the whole one " + whole.urls.size());
+                        expect(resumed.results == resumed.urls.size(), how + ": "
+                            + (resumed.results - resumed.urls.size()) + " pages reported twice after resuming");
+                    }
+                } finally {
+                    deleteCheckpoint(file);
+                    for (File copy : copies) {
+                        deleteCheckpoint(copy);
+                    }
+                    site.stop();
+                }
+            }
+        });
+
+        // a robots.txt that fails for a while is tried again while its pages
+        // wait, one that never comes keeps them out and counts them, and
+        // redirects to one are followed as far as RFC 9309 asks
+        list.add(new Check("robots.retries") {
+            void run() throws Exception {
+
+                // fails twice, five redirects, six redirects, never answers
+                int[][] servers = { { 2, 0 }, { 0, RobotsCache.MAX_REDIRECTS },
+                    { 0, RobotsCache.MAX_REDIRECTS + 1 }, { Integer.MAX_VALUE, 0 } };
+                int[][] expected = { { RobotsCache.ALLOWED, RobotsCache.DISALLOWED },
+                    { RobotsCache.ALLOWED, RobotsCache.DISALLOWED },
+                    { RobotsCache.ALLOWED, RobotsCache.ALLOWED },
+                    { RobotsCache.DISALLOWED, RobotsCache.DISALLOWED } };
+
+                final CountDownLatch ready = new CountDownLatch(servers.length);
+                final Set<URLDepthPair> handedBack = ConcurrentHashMap.newKeySet();
+
+                HostConnectionPool pool = new HostConnectionPool(new DNSCache(), new TLSContext());
+                RobotsCache robots = new RobotsCache(pool, new HostScheduler(0), "crawlerchecks", "CrawlerChecks",
+                    new RobotsCache.Listener() {
+
+                        public void fetchStarted() {
+                        }
+
+                        public void waiting(URLDepthPair pair) {
+                        }
+
+                        public void rulesReady(List<URLDepthPair> waiting) {
+                            handedBack.addAll(waiting);
+                            ready.countDown();
+                        }
+                    });
+
+                List<HttpServer> started = new ArrayList<HttpServer>();
+                URLDepthPair[][] pairs = new URLDepthPair[servers.length][];
+
+                try {
+                    for (int i = 0; i < servers.length; i++) {
+
+                        HttpServer server = startRobotsServer(servers[i][0], servers[i][1]);
+                        started.add(server);
+
+                        String root = "http://127.0.0.1:" + server.getAddress().getPort();
+                        pairs[i] = new URLDepthPair[] { new URLDepthPair(root + "/page.html", 1),
+                            new URLDepthPair(root + "/private/page.html", 1) };
+
+                        for (URLDepthPair pair : pairs[i]) {
+                            expect(robots.check(pair) == RobotsCache.WAITING, pair + " didn't wait for robots.txt");
+                        }
+                    }
+
+                    expect(ready.await(30, TimeUnit.SECONDS), "robots.txt fetches didn't finish");
+
+                    for (int i = 0; i < servers.length; i++) {
+                        for (int j = 0; j < pairs[i].length; j++) {
+
+                            expect(handedBack.contains(pairs[i][j]), pairs[i][j] + " was never handed back");
+                            expect(robots.check(pairs[i][j]) == expected[i][j], "server " + i + " gave "
+                                + pairs[i][j] + " the wrong verdict: " + robots);
+                        }
+                    }
+
+                    expect(robots.getUnreachableCount() == 2, "kept out " + robots.getUnreachableCount()
+                        + " pages for an unreachable robots.txt, not 2");
+
+                } finally {
+                    robots.close();
+                    pool.close();
+                    for (HttpServer server : started) {
+                        server.stop(0);
+                    }
+                }
+            }
+        });
+
+        // the limits settle about where the server stops keeping up, and
+        // the jitter of a server that always keeps up doesn't cut them
+        list.add(new Check("concurrency.knee") {
+            void run() throws Exception {
+
+                for (double sigma : new double[] { 0.1, 0.3, 0.6 }) {
+
+                    double running = simulateFetches(new AdaptiveConcurrency(16, 16, true), 4, 1000, false, sigma, 20);
+                    expect(running >= 12, "with no knee and jitter " + sigma + " only "
+                        + String.format("%.1f", running) + " of 16 fetches ran");
+
+                    // queueing past the knee only counts once it doubles the time
+                    running = simulateFetches(new AdaptiveConcurrency(32, 32, true), 4, 8, false, sigma, 20);
+                    expect(running >= 8 && running <= 24, "with a knee at 8 and jitter " + sigma + ", "
+                        + String.format("%.1f", running) + " fetches ran");
+
+                    running = simulateFetches(new AdaptiveConcurrency(32, 32, true), 4, 8, true, sigma, 20);
+                    expect(running >= 5 && running <= 12, "with failures past 8 and jitter " + sigma + ", "
+                        + String.format("%.1f", running) + " fetches ran");
+                }
+            }
+        });
+
+        // a host that can't be resolved fails its fetches on the I/O thread,
+        // like every other failure, never on the thread that looked it up
+        list.add(new Check("nio.dnsFailure") {
+            void run() throws Exception {
+
+                final CountDownLatch failed = new CountDownLatch(1);
+                final AtomicReference<String> thread = new AtomicReference<String>();
+
+                NIOFetcher fetcher = new NIOFetcher(new DNSCache(), new TLSContext());
+                try {
+                    fetcher.fetch(new URLDepthPair("http://nonexistent.invalid/", 0), new NIOFetcher.Handler() {
+
+                        public void data(ByteBuffer buf) {
+                        }
+
+                        public void done() {
+                        }
+
+                        public void failed(IOException e) {
+                            thread.set(Thread.currentThread().getName());
+                            failed.countDown();
+                        }
+                    });
+
+                    expect(failed.await(30, TimeUnit.SECONDS), "the fetch never failed");
+                    expect("nio-fetcher".equals(thread.get()), "the fetch failed on " + thread.get());
+                } finally {
+                    fetcher.close();
+                }
+            }
+        });
+
+        // a < that doesn't open a tag isn't one, like in 1 < 2
+        list.add(new Check("links.lessThan") {
+            void run() {
+
+                expectLinks("<p>1 < 2 href=\"/not\" and 3>2</p><a href=\"/yes\">", "/yes");
+                expectLinks("x <= y href=/not > z <A HREF=/upper>", "/upper");
+                expectLinks("<<a href=/twice>", "/twice");
+                expectLinks("</a href=/end><!DOCTYPE html><a href=/after>", "/end", "/after");
+            }
+        });
+
+        // links inside comments are commented out
+        list.add(new Check("links.comments") {
+            void run() {
+
+                expectLinks("<!-- <a href=\"/hidden\"> --><a href=\"/shown\">", "/shown");
+                expectLinks("<!-- a -- b - > <a href=/hidden> ---><a href=/shown>", "/shown");
+                expectLinks("<!--><a href=/empty><!---><a href=/dash>", "/empty", "/dash");
+                expectLinks("<!-x <a href=/bogus>", "/bogus");
+            }
+        });
+
+        // character references in a link are the characters they stand for
+        list.add(new Check("links.entities") {
+            void run() {
+
+                expectLinks("<a href=\"/p?a=1&amp;b=2&#38;c=&#x33;\">", "/p?a=1&b=2&c=3");
+                expectLinks("<a href='/&lt;&gt;&quot;&apos;'>", "/<>\"'");
+                expectLinks("<a href=/caf&#233;/&#x1F600;>", "/caf\u00e9/\ud83d\ude00");
+                expectLinks("<a href=\"/a&b;&#;&#x;&#0;&#xd800;&#12a;&\">", "/a&b;&#;&#x;&#0;&#xd800;&#12a;&");
+            }
+        });
+
+        return list;
+    }
+
+    /*
+     * usage statement. used when given an illegal argument
+     */
+    public static void usage() {
+        System.out.println("usage: java CrawlerChecks [name prefix ...]");
+        System.exit(1);
+    }
+
+    /*
+     * main function. runs every check, or only the ones whose
+     * names start with one of the prefixes given
+     */
+    public static void main(String[] args) {
+
+        List<String> prefixes = new ArrayList<String>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                usage();
+            }
+            prefixes.add(arg);
+        }
+
+        int failed = 0;
+
+        for (Check c : checks()) {
+
+            boolean wanted = prefixes.isEmpty();
+            for (String prefix : prefixes) {
+                wanted |= c.name.startsWith(prefix);
+            }
+
+            if (!wanted) {
+                continue;
+            }
+
+            long start = System.nanoTime();
+
+            try {
+                c.run();
+                System.out.println(String.format("PASS %-32s %8.1f ms", c.name, (System.nanoTime() - start) / 1e6));
+            } catch (Exception | Error e) {
+                System.out.println(String.format("FAIL %-32s %s", c.name, e));
+                failed++;
+            }
+        }
+
+        if (failed > 0) {
+            System.out.println(failed + " check" + (failed == 1 ? "" : "s") + " failed");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class resolves host names for the crawler and remembers the answers.
+ * Addresses are kept for a TTL and failed lookups for a shorter negative TTL.
+ * Hosts can be prefetched, which resolves them on a background thread as soon
+ * as they show up in the frontier, so by the time a page on them is fetched
+ * the address is usually waiting. It counts hits, misses and lookup latency
+ */
+public class DNSCache {
+
+    // how long an address is kept when none is given, in milliseconds
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    // how long a failed lookup is kept, in milliseconds
+    public static final long DEFAULT_NEGATIVE_TTL = 30 * 1000;
+
+    // threads resolving hosts in the background
+    public static final int RESOLVER_THREADS = 4;
+
+    // how long addresses and failures are kept
+    private long ttl;
+    private long negativeTTL;
+
+    // the lookup of every host, done or in progress
+    private ConcurrentHashMap<String, Entry> entries;
+
+    // threads doing the background lookups
+    private ExecutorService resolvers;
+
+    // lookups answered from the cache, and ones that had to wait for a lookup
+    private AtomicLong hits;
+    private AtomicLong misses;
+
+    // lookups done and the time they took
+    private AtomicLong lookups;
+    private AtomicLong lookupNanos;
+    private AtomicLong maxLookupNanos;
+
+    /*
+     * constructor that uses the default TTLs
+     */
+    public DNSCache() {
+
+        this(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+
+    /*
+     * constructor that keeps addresses for ttl and
+     * failures for negativeTTL milliseconds
+     */
+    public DNSCache(long ttl, long negativeTTL) {
+
+        this.ttl = ttl;
+        this.negativeTTL = negativeTTL;
+        entries = new ConcurrentHashMap<String, Entry>();
+
+        resolvers = Executors.newFixedThreadPool(RESOLVER_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "dns-resolver");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        lookups = new AtomicLong();
+        lookupNanos = new AtomicLong();
+        maxLookupNanos = new AtomicLong();
+    }
+
+    /*
+     * starts resolving a host in the background
+     * unless we already know or are looking it up
+     */
+    public void prefetch(String host) {
+
+        entry(host, true);
+    }
+
+    /*
+     * returns an address of host, from the cache if we can. a miss is
+     * looked up on the calling thread, and a host being prefetched
+     * is waited for rather than looked up twice
+     */
+    public InetAddress resolve(String host) throws UnknownHostException {
+
+        try {
+            return lookup(host, false).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host + ": interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) e.getCause();
+            }
+            throw new UnknownHostException(host + ": " + e.getCause());
+        }
+    }
+
+    /*
+     * returns the address of host once it is known, without
+     * blocking the caller. a miss is looked up in the background
+     */
+    public CompletableFuture<InetAddress> resolveAsync(String host) {
+
+        return lookup(host, true);
+    }
+
+    /*
+     * returns a lookup's result and counts whether
+     * it was already in the cache
+     */
+    private CompletableFuture<InetAddress> lookup(String host, boolean background) {
+
+        Entry cached = entries.get(host);
+
+        if (cached != null && cached.result.isDone() && System.currentTimeMillis() < cached.expires) {
+            hits.incrementAndGet();
+            return cached.result;
+        }
+
+        misses.incrementAndGet();
+        return entry(host, background).result;
+    }
+
+    /*
+     * returns the share of lookups answered right
+     * from the cache
+     */
+    public double getHitRate() {
+
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /*
+     * returns the average time a real lookup took, in milliseconds
+     */
+    public double getAverageLookupMillis() {
+
+        long n = lookups.get();
+        return n == 0 ? 0.0 : lookupNanos.get() / 1e6 / n;
+    }
+
+    /*
+     * returns the longest time a real lookup took, in milliseconds
+     */
+    public double getMaxLookupMillis() {
+        return maxLookupNanos.get() / 1e6;
+    }
+
+    /*
+     * returns the number of real lookups done
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /*
+     * toString method that we override to report
+     * the hit rate and lookup latency
+     */
+    @Override
+    public String toString() {
+
+        return "DNS lookups: " + lookups.get()
+            + ", Hit rate: " + String.format("%.3f", getHitRate())
+            + ", Average lookup: " + String.format("%.2f", getAverageLookupMillis()) + " ms"
+            + ", Max lookup: " + String.format("%.2f", getMaxLookupMillis()) + " ms";
+    }
+
+    /*
+     * returns the current entry of a host, starting a new lookup
+     * if there is none or it expired
+     */
+    private Entry entry(String host, boolean background) {
+
+        while (true) {
+
+            Entry old = entries.get(host);
+            if (old != null && System.currentTimeMillis() < old.expires) {
+                return old;
+            }
+
+            Entry fresh = new Entry();
+            boolean won = old == null ? entries.putIfAbsent(host, fresh) == null : entries.replace(host, old, fresh);
+
+            // someone else started the lookup first, use theirs
+            if (!won) {
+                continue;
+            }
+
+            if (background) {
+                resolvers.execute(new Lookup(host, fresh));
+            } else {
+                new Lookup(host, fresh).run();
+            }
+            return fresh;
+        }
+    }
+
+    /*
+     * this inner class looks one host up and
+     * fills in its entry
+     */
+    private class Lookup implements Runnable {
+
+        // the host to look up
+        private String host;
+
+        // where the answer goes
+        private Entry entry;
+
+        public Lookup(String host, Entry entry) {
+            this.host = host;
+            this.entry = entry;
+        }
+
+        public void run() {
+
+            long start = System.nanoTime();
+
+            try {
+
+                InetAddress address = InetAddress.getByName(host);
+                record(System.nanoTime() - start);
+                entry.expires = System.currentTimeMillis() + ttl;
+                entry.result.complete(address);
+
+            } catch (UnknownHostException e) {
+
+                record(System.nanoTime() - start);
+                entry.expires = System.currentTimeMillis() + negativeTTL;
+                entry.result.completeExceptionally(e);
+
+            } catch (Throwable e) {
+
+                // anything else would leave everyone waiting on the lookup for good
+                record(System.nanoTime() - start);
+                entry.expires = System.currentTimeMillis() + negativeTTL;
+                entry.result.completeExceptionally(e);
+
+                if (e instanceof Error) {
+                    throw (Error) e;
+                }
+            }
+        }
+
+        // adds a lookup's time to the metrics
+        private void record(long nanos) {
+
+            lookups.incrementAndGet();
+            lookupNanos.addAndGet(nanos);
+            long max = maxLookupNanos.get();
+            while (nanos > max && !maxLookupNanos.compareAndSet(max, nanos)) {
+                max = maxLookupNanos.get();
+            }
+        }
+    }
+
+    /*
+     * this inner class is the lookup of one host, done or in progress
+     */
+    private static class Entry {
+
+        // the address, or the failure
+        CompletableFuture<InetAddress> result = new CompletableFuture<InetAddress>();
+
+        // when the entry must be looked up again, never while in progress
+        volatile long expires = Long.MAX_VALUE;
+    }
+}
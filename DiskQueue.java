@@ -0,0 +1,240 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class is a FIFO queue of URLDepthPairs kept on disk. Pairs are appended
+ * to memory-mapped segment files in a compact binary form, a varint length, a
+ * varint depth and the UTF-8 bytes of the url, and read back in the same order.
+ * A segment is deleted as soon as it has been read to its end, so the queue
+ * only takes as much disk as it holds and almost no heap at all
+ */
+public class DiskQueue {
+
+    // size of each segment file
+    public static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // directory the segment files go in
+    private File dir;
+
+    // the segment being appended to, and its index
+    private MappedByteBuffer writeSegment;
+    private int writeIndex;
+
+    // the segment being read from, and its index
+    private MappedByteBuffer readSegment;
+    private int readIndex;
+
+    // number of pairs in the queue
+    private long size;
+
+    /*
+     * constructor for a queue that keeps its segments in dir.
+     * nothing is created on disk until the first pair is added
+     */
+    public DiskQueue(File dir) {
+
+        this.dir = dir;
+        writeIndex = -1;
+        readIndex = -1;
+        size = 0;
+    }
+
+    /*
+     * appends a pair to the end of the queue
+     */
+    public void add(URLDepthPair pair) throws IOException {
+
+        byte[] url = pair.getURL().getBytes(StandardCharsets.UTF_8);
+
+        // room for two varints and at least one zero byte after the record
+        if (writeSegment == null || writeSegment.remaining() < url.length + 11) {
+            nextWriteSegment();
+        }
+
+        // length is stored plus one, so a zero byte marks the end of a segment
+        putVarint(writeSegment, url.length + 1);
+        putVarint(writeSegment, pair.getDepth());
+        writeSegment.put(url);
+
+        size++;
+    }
+
+    /*
+     * takes the pair at the front of the queue,
+     * or returns null if the queue is empty
+     */
+    public URLDepthPair poll() throws IOException {
+
+        if (size == 0) {
+            return null;
+        }
+
+        if (readSegment == null) {
+            openReadSegment(0);
+        }
+
+        int length = getVarint(readSegment) - 1;
+
+        // the writer moved on to the next segment after this point
+        if (length < 0) {
+            openReadSegment(readIndex + 1);
+            length = getVarint(readSegment) - 1;
+        }
+
+        int depth = getVarint(readSegment);
+        byte[] url = new byte[length];
+        readSegment.get(url);
+
+        size--;
+        return new URLDepthPair(new String(url, StandardCharsets.UTF_8), depth);
+    }
+
+    /*
+     * writes every pair in the queue, front first, without taking
+     * them off. used to checkpoint the frontier
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+
+        if (size == 0) {
+            return;
+        }
+
+        // read through copies, so the queue's own positions don't move
+        int index = readIndex == -1 ? 0 : readIndex;
+        MappedByteBuffer seg = readSegment != null ? readSegment.duplicate() : segment(index);
+
+        for (long i = 0; i < size; i++) {
+
+            int length = getVarint(seg) - 1;
+
+            if (length < 0) {
+                index++;
+                seg = segment(index);
+                length = getVarint(seg) - 1;
+            }
+
+            int depth = getVarint(seg);
+            byte[] url = new byte[length];
+            seg.get(url);
+
+            CrawlCheckpoint.writePair(out, new URLDepthPair(new String(url, StandardCharsets.UTF_8), depth));
+        }
+    }
+
+    /*
+     * returns the number of pairs in the queue
+     */
+    public long size() {
+        return size;
+    }
+
+    /*
+     * deletes every segment file, and the directory if it is empty
+     */
+    public void close() {
+
+        writeSegment = null;
+        readSegment = null;
+
+        for (int i = Math.max(readIndex, 0); i <= writeIndex; i++) {
+            segmentFile(i).delete();
+        }
+        dir.delete();
+
+        size = 0;
+    }
+
+    /*
+     * starts appending to a new segment file
+     */
+    private void nextWriteSegment() throws IOException {
+
+        if (writeIndex == -1 && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+
+        // the rest of the old segment stays zero, which marks its end
+        writeIndex++;
+        writeSegment = map(writeIndex, true);
+    }
+
+    /*
+     * moves the reader to segment index, deleting
+     * the one it just finished
+     */
+    private void openReadSegment(int index) throws IOException {
+
+        if (readSegment != null) {
+            readSegment = null;
+            segmentFile(readIndex).delete();
+        }
+
+        readIndex = index;
+
+        readSegment = segment(readIndex);
+    }
+
+    // returns a buffer over segment index, positioned at its start
+    private MappedByteBuffer segment(int index) throws IOException {
+
+        // the writer's own segment is already mapped
+        if (index == writeIndex) {
+            return writeSegment.duplicate().position(0);
+        }
+        return map(index, false);
+    }
+
+    // maps a whole segment file into memory, creating it if needed. a fresh one
+    // is zeroed first, since a file left by an earlier run in the same directory
+    // would otherwise have its old records read back after the new ones
+    private MappedByteBuffer map(int index, boolean fresh) throws IOException {
+
+        RandomAccessFile file = new RandomAccessFile(segmentFile(index), "rw");
+        try {
+            if (fresh) {
+                file.setLength(0);
+                file.setLength(SEGMENT_SIZE);
+            }
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } finally {
+            // the mapping stays valid after the file is closed
+            file.close();
+        }
+    }
+
+    // returns the file of a segment
+    private File segmentFile(int index) {
+        return new File(dir, String.format("frontier-%06d.seg", index));
+    }
+
+    // writes an int 7 bits at a time, low bits first
+    private static void putVarint(MappedByteBuffer buf, int value) {
+
+        while ((value & ~0x7f) != 0) {
+            buf.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    // reads an int written by putVarint
+    private static int getVarint(MappedByteBuffer buf) {
+
+        int value = 0;
+        int shift = 0;
+
+        while (true) {
+            byte b = buf.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
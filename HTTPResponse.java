@@ -0,0 +1,458 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This class reads one HTTP/1.1 response off a connection. It parses the
+ * status line and headers, then gives back a body stream that stops exactly
+ * where the response ends, using Content-Length or chunked framing, so the
+ * connection can carry the next request afterwards. A gzip or deflate body
+ * is inflated as it is read
+ */
+public class HTTPResponse {
+
+    // longest status or header line we accept
+    public static final int MAX_LINE_LENGTH = 8192;
+
+    // the status code of the response
+    private int status;
+
+    // the headers of the response, names lowercased
+    private HashMap<String, String> headers;
+
+    // the body as it came off the connection, framed so it ends where the response ends
+    private InputStream framedBody;
+
+    // the body with its content encoding undone, made when first asked for
+    private InputStream body;
+
+    // length of the body, or -1 if it is chunked or runs until close
+    private long contentLength;
+
+    // true if the body is sent in chunks
+    private boolean chunked;
+
+    // true if the response said the connection will be closed after it
+    private boolean closeAfter;
+
+    // true if the body is framed, false if it runs until the connection closes
+    private boolean framed;
+
+    /*
+     * constructor that reads the status line and headers
+     * from in, leaving it at the start of the body
+     */
+    public HTTPResponse(InputStream in) throws IOException {
+
+        this(in, false);
+    }
+
+    /*
+     * constructor that reads the status line and headers from in.
+     * a response to a HEAD request never has a body
+     */
+    public HTTPResponse(InputStream in, boolean head) throws IOException {
+
+        headers = new HashMap<String, String>();
+
+        // skip any interim 1xx responses
+        do {
+            headers.clear();
+            String statusLine = readLine(in);
+            if (statusLine == null) {
+                throw new EOFException("connection closed before the status line");
+            }
+            status = parseStatus(statusLine);
+            readHeaders(in);
+        } while (status >= 100 && status < 200);
+
+        String version = headers.get(":version");
+        String connection = getHeader("connection");
+
+        closeAfter = version.equals("HTTP/1.0")
+            ? connection == null || !connection.equalsIgnoreCase("keep-alive")
+            : connection != null && connection.equalsIgnoreCase("close");
+
+        String encoding = getHeader("transfer-encoding");
+        String length = getHeader("content-length");
+
+        contentLength = -1;
+
+        if (head || status == 204 || status == 304) {
+
+            contentLength = 0;
+            framedBody = new FixedLengthInputStream(in, 0);
+            framed = true;
+
+        } else if (encoding != null && encoding.toLowerCase().contains("chunked")) {
+
+            chunked = true;
+            framedBody = new ChunkedInputStream(in);
+            framed = true;
+
+        } else if (length != null) {
+
+            try {
+                contentLength = Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("bad Content-Length: " + length);
+            }
+
+            // a sign is allowed by parseLong but not by HTTP
+            if (contentLength < 0) {
+                throw new IOException("bad Content-Length: " + length);
+            }
+            framedBody = new FixedLengthInputStream(in, contentLength);
+            framed = true;
+
+        } else {
+
+            // no framing, the body ends when the server closes the connection
+            framedBody = in;
+            framed = false;
+        }
+
+    }
+
+    /*
+     * returns the status code
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /*
+     * returns the value of a header, or null if it wasn't sent
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /*
+     * returns the body of the response, inflated
+     * if it was sent compressed
+     */
+    public InputStream getBody() throws IOException {
+
+        if (body == null) {
+            // a response without a body has nothing to inflate
+            body = contentLength == 0 ? framedBody : decode(framedBody, getHeader("content-encoding"));
+        }
+        return body;
+    }
+
+    /*
+     * returns the body as it was sent, framing stripped but still
+     * compressed, for reading instead of getBody
+     */
+    public InputStream getEncodedBody() {
+        return framedBody;
+    }
+
+    /*
+     * returns the length of the body as sent, or -1 if
+     * it is chunked or runs until the connection closes
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /*
+     * returns true if the body is sent in chunks
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /*
+     * returns true if the connection can be used for another request
+     * once the body has been read to its end
+     */
+    public boolean isReusable() {
+        return framed && !closeAfter;
+    }
+
+    /*
+     * reads and throws away whatever is left of the body,
+     * so the next response on the connection starts cleanly
+     */
+    public void drain() throws IOException {
+
+        // the compressed bytes are what's left on the connection
+        byte[] skip = new byte[4096];
+        while (framedBody.read(skip, 0, skip.length) != -1) {
+            // keep going
+        }
+    }
+
+    /*
+     * wraps a body so it is inflated as it is read, going by its
+     * Content-Encoding. an encoding we don't know is passed through
+     */
+    static InputStream decode(InputStream in, String coding) throws IOException {
+
+        if (coding == null) {
+            return in;
+        }
+
+        coding = coding.trim().toLowerCase();
+
+        if (coding.equals("gzip") || coding.equals("x-gzip")) {
+            return new GZIPInputStream(in, 8192);
+        }
+
+        if (coding.equals("deflate")) {
+
+            // deflate should come with a zlib header, but some servers send it raw
+            BufferedInputStream buffered = new BufferedInputStream(in, 8192);
+            buffered.mark(1);
+            int first = buffered.read();
+            buffered.reset();
+
+            return new InflaterInputStream(buffered, new Inflater(!isZlibHeader(first)), 8192);
+        }
+
+        return in;
+    }
+
+    /*
+     * returns true if b can be the first byte of a zlib stream,
+     * which is deflate with a window of at most 32K
+     */
+    static boolean isZlibHeader(int b) {
+        return b != -1 && (b & 0x0f) == 8 && (b >> 4) <= 7;
+    }
+
+    /*
+     * reads one CRLF terminated line as ISO-8859-1, without the line ending.
+     * returns null if the stream ended before anything was read
+     */
+    static String readLine(InputStream in) throws IOException {
+
+        StringBuilder line = new StringBuilder();
+
+        while (true) {
+
+            int b = in.read();
+
+            if (b == -1) {
+                if (line.length() == 0) {
+                    return null;
+                }
+                throw new EOFException("connection closed in the middle of a line");
+            }
+
+            if (b == '\n') {
+                break;
+            }
+
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("line too long");
+            }
+
+            line.append((char) b);
+        }
+
+        // drop the carriage return
+        int len = line.length();
+        if (len > 0 && line.charAt(len - 1) == '\r') {
+            line.setLength(len - 1);
+        }
+        return line.toString();
+    }
+
+    /*
+     * parses a status line like "HTTP/1.1 200 OK" and keeps the
+     * version as a pseudo header
+     */
+    private int parseStatus(String line) throws IOException {
+
+        String[] parts = line.split(" ", 3);
+
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("bad status line: " + line);
+        }
+
+        headers.put(":version", parts[0]);
+
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad status line: " + line);
+        }
+    }
+
+    /*
+     * reads header lines up to the empty line that ends them.
+     * repeated headers are joined with commas
+     */
+    private void readHeaders(InputStream in) throws IOException {
+
+        while (true) {
+
+            String line = readLine(in);
+
+            if (line == null) {
+                throw new EOFException("connection closed in the headers");
+            }
+
+            if (line.isEmpty()) {
+                return;
+            }
+
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue; // not a header, skip it
+            }
+
+            String name = line.substring(0, colon).trim().toLowerCase();
+            String value = line.substring(colon + 1).trim();
+
+            String old = headers.get(name);
+            headers.put(name, old == null ? value : old + ", " + value);
+        }
+    }
+
+    /*
+     * this inner class is a body of a known length. it never reads
+     * past the end of the response
+     */
+    private static class FixedLengthInputStream extends InputStream {
+
+        // the connection stream
+        private InputStream in;
+
+        // bytes of the body not read yet
+        private long remaining;
+
+        public FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        public int read() throws IOException {
+
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("connection closed before the end of the body");
+            }
+            remaining--;
+            return b;
+        }
+
+        public int read(byte[] buf, int off, int len) throws IOException {
+
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int n = in.read(buf, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("connection closed before the end of the body");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /*
+     * this inner class is a chunked body. it strips the chunk
+     * sizes and ends after the last, empty chunk and its trailers
+     */
+    private static class ChunkedInputStream extends InputStream {
+
+        // the connection stream
+        private InputStream in;
+
+        // bytes left in the current chunk
+        private long remaining;
+
+        // true once the last chunk was read
+        private boolean finished;
+
+        public ChunkedInputStream(InputStream in) {
+            this.in = in;
+            this.remaining = 0;
+            this.finished = false;
+        }
+
+        public int read() throws IOException {
+
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] buf, int off, int len) throws IOException {
+
+            if (finished) {
+                return -1;
+            }
+
+            if (remaining == 0) {
+                nextChunk();
+                if (finished) {
+                    return -1;
+                }
+            }
+
+            int n = in.read(buf, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("connection closed in the middle of a chunk");
+            }
+
+            remaining -= n;
+
+            // each chunk is followed by a line ending
+            if (remaining == 0) {
+                readLine(in);
+            }
+            return n;
+        }
+
+        // reads the size line of the next chunk, and the trailers after the last one
+        private void nextChunk() throws IOException {
+
+            String line = readLine(in);
+            if (line == null) {
+                throw new EOFException("connection closed before a chunk");
+            }
+
+            // chunk extensions follow a semicolon
+            int semi = line.indexOf(';');
+            if (semi >= 0) {
+                line = line.substring(0, semi);
+            }
+
+            try {
+                remaining = Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad chunk size: " + line);
+            }
+
+            if (remaining < 0) {
+                throw new IOException("bad chunk size: " + line);
+            }
+
+            if (remaining == 0) {
+
+                // skip the trailers up to the empty line
+                String trailer;
+                do {
+                    trailer = readLine(in);
+                } while (trailer != null && !trailer.isEmpty());
+
+                finished = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * This class keeps persistent HTTP/1.1 connections open per host so pages on
+ * the same site reuse one TCP connection instead of paying a handshake each.
+ * Each host may have at most a fixed number of connections open, and idle
+ * connections are closed once they sit unused for longer than the idle timeout.
+ * HTTPS connections are kept apart from plain ones and keep their TLS session
+ */
+public class HostConnectionPool {
+
+    // connections a host may have open when none is given
+    public static final int DEFAULT_MAX_PER_HOST = 4;
+
+    // how long a connection may sit idle when none is given, in milliseconds
+    public static final long DEFAULT_IDLE_TIMEOUT = 5000;
+
+    // read timeout of every connection, same as the crawler always used
+    public static final int SO_TIMEOUT = 3000;
+
+    // most connections a single host may have open
+    private int maxPerHost;
+
+    // how long a connection may sit idle before it is closed
+    private long idleTimeout;
+
+    // the connections of every host, keyed by scheme, host and port
+    private HashMap<String, HostEntry> hosts;
+
+    // resolves the hosts we connect to
+    private DNSCache dns;
+
+    // layers TLS over the connections to HTTPS hosts
+    private TLSContext tls;
+
+    // times the lookups and connects of new connections, null if nobody asked
+    private volatile CrawlMetrics metrics;
+
+    // thread that closes idle connections
+    private Thread sweeper;
+
+    // set once the pool is closed
+    private boolean closed;
+
+    /*
+     * constructor that uses the default cap
+     * and idle timeout
+     */
+    public HostConnectionPool(DNSCache dns, TLSContext tls) {
+
+        this(dns, tls, DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /*
+     * constructor that allows maxPerHost connections per host
+     * and closes them after idleTimeout milliseconds unused
+     */
+    public HostConnectionPool(DNSCache dns, TLSContext tls, int maxPerHost, long idleTimeout) {
+
+        this.dns = dns;
+        this.tls = tls;
+        this.maxPerHost = maxPerHost;
+        this.idleTimeout = idleTimeout;
+        hosts = new HashMap<String, HostEntry>();
+
+        sweeper = new Thread(new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, "connection-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /*
+     * times the DNS lookup and connect of every new
+     * connection in metrics
+     */
+    public void setMetrics(CrawlMetrics metrics) {
+
+        this.metrics = metrics;
+    }
+
+    /*
+     * hands out a plain connection to host:port, reusing an idle
+     * one when there is one. blocks while the host is at its cap
+     */
+    public PooledConnection acquire(String host, int port) throws IOException {
+
+        return acquire(host, port, false);
+    }
+
+    /*
+     * hands out a connection to host:port, over TLS if secure,
+     * reusing an idle one when there is one. blocks while the
+     * host is at its cap
+     */
+    public PooledConnection acquire(String host, int port, boolean secure) throws IOException {
+
+        String key = (secure ? "https://" : "http://") + host + ":" + port;
+        HostEntry entry;
+
+        synchronized (this) {
+
+            entry = hosts.get(key);
+            if (entry == null) {
+                entry = new HostEntry();
+                hosts.put(key, entry);
+            }
+
+            while (true) {
+
+                if (closed) {
+                    throw new IOException("connection pool closed");
+                }
+
+                // newest idle connection first, it's the least likely to be stale
+                PooledConnection conn = entry.idle.pollLast();
+                if (conn != null) {
+                    conn.reused = true;
+                    return conn;
+                }
+
+                if (entry.open < maxPerHost) {
+                    entry.open++;
+                    break;
+                }
+
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted waiting for a connection");
+                }
+            }
+        }
+
+        // connect outside the lock so other hosts aren't held up
+        try {
+            CrawlMetrics m = metrics;
+            long start = System.nanoTime();
+
+            InetAddress address = dns.resolve(host);
+            long resolved = System.nanoTime();
+
+            Socket sock = new Socket(address, port);
+            sock.setSoTimeout(SO_TIMEOUT);
+
+            if (secure) {
+                try {
+                    sock = tls.createSocket(sock, host, port);
+                } catch (IOException e) {
+                    sock.close();
+                    throw e;
+                }
+            }
+
+            // the TLS handshake counts as part of connecting
+            if (m != null) {
+                m.record(CrawlMetrics.DNS, resolved - start);
+                m.record(CrawlMetrics.CONNECT, System.nanoTime() - resolved);
+            }
+
+            return new PooledConnection(key, sock);
+        } catch (IOException e) {
+            synchronized (this) {
+                entry.open--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * gives a connection back once its response has been read.
+     * it is kept for reuse only if the response allows it
+     */
+    public void release(PooledConnection conn, boolean reusable) {
+
+        synchronized (this) {
+
+            HostEntry entry = hosts.get(conn.key);
+
+            if (reusable && !closed) {
+                conn.lastUsed = System.currentTimeMillis();
+                entry.idle.addLast(conn);
+                notifyAll();
+                return;
+            }
+
+            entry.open--;
+            notifyAll();
+        }
+
+        conn.closeQuietly();
+    }
+
+    /*
+     * closes a connection that failed, freeing
+     * its place for a new one
+     */
+    public void discard(PooledConnection conn) {
+
+        release(conn, false);
+    }
+
+    /*
+     * closes every idle connection and stops handing out new ones
+     */
+    public void close() {
+
+        synchronized (this) {
+
+            closed = true;
+
+            for (HostEntry entry : hosts.values()) {
+                for (PooledConnection conn : entry.idle) {
+                    conn.closeQuietly();
+                    entry.open--;
+                }
+                entry.idle.clear();
+            }
+
+            notifyAll();
+        }
+
+        sweeper.interrupt();
+    }
+
+    /*
+     * closes every idle connection that was unused for
+     * longer than the idle timeout, every half timeout
+     */
+    private void sweep() {
+
+        while (true) {
+
+            try {
+                Thread.sleep(Math.max(idleTimeout / 2, 1));
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long oldest = System.currentTimeMillis() - idleTimeout;
+
+            synchronized (this) {
+
+                if (closed) {
+                    return;
+                }
+
+                for (HostEntry entry : hosts.values()) {
+
+                    // idle connections are in the order they were released
+                    Iterator<PooledConnection> it = entry.idle.iterator();
+                    while (it.hasNext()) {
+
+                        PooledConnection conn = it.next();
+                        if (conn.lastUsed > oldest) {
+                            break;
+                        }
+
+                        it.remove();
+                        entry.open--;
+                        conn.closeQuietly();
+                    }
+                }
+
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * this inner class keeps the connections of one host
+     */
+    private static class HostEntry {
+
+        // connections ready for reuse, oldest first
+        ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+
+        // connections open, idle or in use
+        int open = 0;
+    }
+
+    /*
+     * this inner class is one open connection with buffered
+     * streams that live as long as the socket
+     */
+    public static class PooledConnection {
+
+        // scheme, host and port the connection belongs to
+        private String key;
+
+        // the socket itself
+        private Socket socket;
+
+        // buffered streams of the socket
+        private InputStream in;
+        private OutputStream out;
+
+        // bytes read off the socket so far
+        private long bytesRead;
+
+        // last time the connection was given back
+        private long lastUsed;
+
+        // true if this connection already carried a request before
+        private boolean reused;
+
+        PooledConnection(String key, Socket socket) throws IOException {
+
+            this.key = key;
+            this.socket = socket;
+            this.in = new BufferedInputStream(new FilterInputStream(socket.getInputStream()) {
+
+                // counts what the buffer pulls in, a whole read at a time
+                @Override
+                public int read(byte[] buf, int off, int len) throws IOException {
+
+                    int n = super.read(buf, off, len);
+                    if (n > 0) {
+                        bytesRead += n;
+                    }
+                    return n;
+                }
+            });
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.reused = false;
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        // returns the bytes read off the socket so far, decrypted for HTTPS
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        // returns true if the server may have closed it while it sat idle
+        public boolean wasReused() {
+            return reused;
+        }
+
+        void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+}
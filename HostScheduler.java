@@ -0,0 +1,728 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is the crawler's frontier. Pending URLDepthPairs are grouped into
+ * one queue per host, shallowest first and FIFO within a depth, and each host
+ * has a token bucket that limits how fast its pages may be fetched. Hosts with
+ * pending pages sit in a priority queue ordered by the time they may next be
+ * fetched, and the ones that may be fetched now compete on the depth of their
+ * shallowest page, so taking a page always gets the shallowest one of a host
+ * that is ready now instead of blocking on a throttled one.
+ * Once more than a set number of pages are pending, new ones spill to a
+ * DiskQueue and are brought back in order as the in-memory queues drain.
+ * With a URLScorer the frontier is best-first instead: every host keeps its
+ * pages in a BucketQueue by score, and the hosts that may be fetched now sit
+ * in another one by the score of their best page, so a poll takes the best
+ * page that politeness allows. A link found to a page that is still pending
+ * raises its score by queueing it again, and the copy left behind is skipped.
+ * A page found again closer to the first page is queued again at the new
+ * depth, and with a SeenURLStore the copy left deeper down is skipped.
+ * With an AdaptiveConcurrency a host that has as many fetches running as its
+ * limit allows is set aside until one of them finishes
+ */
+public class HostScheduler {
+
+    // fetches per second allowed to one host when none is given
+    public static final double DEFAULT_RATE = 5.0;
+
+    // fetches one host may get in a burst after it was quiet
+    public static final double DEFAULT_BURST = 5.0;
+
+    // fetches per second every new host is allowed
+    private double defaultRate;
+
+    // the queue of every host we have seen, by host name
+    private HashMap<String, HostQueue> hosts;
+
+    // hosts that have pending pages, the one eligible first on top
+    private PriorityQueue<HostQueue> schedule;
+
+    // number of pending pages over all hosts, in memory or on disk
+    private long size;
+
+    // number of pending pages held in the host queues
+    private long memorySize;
+
+    // most pages held in the host queues before new ones spill to disk
+    private long memoryLimit;
+
+    // pages that didn't fit in memory, oldest first. null if we never spill
+    private DiskQueue spill;
+
+    // scores pages for the best-first order, null to keep every host FIFO
+    private URLScorer scorer;
+
+    // the pages in the host queues by fingerprint, so a link to one can raise it.
+    // only kept in best-first order
+    private HashMap<Long, ScoredPage> scored;
+
+    // hosts whose bucket allows a fetch now, by the depth or the score of their best page
+    private BucketQueue<HostQueue> ready;
+
+    // how many fetches every host may have running, null if that isn't limited here
+    private AdaptiveConcurrency concurrency;
+
+    // the smallest depth every page was queued at, to skip the copies left deeper. null to keep them
+    private SeenURLStore seen;
+
+    /*
+     * constructor that allows every host
+     * DEFAULT_RATE fetches per second
+     */
+    public HostScheduler() {
+
+        this(DEFAULT_RATE);
+    }
+
+    /*
+     * constructor that allows every host rate fetches per second.
+     * a rate of 0 means hosts aren't limited at all
+     */
+    public HostScheduler(double rate) {
+
+        defaultRate = rate;
+        hosts = new HashMap<String, HostQueue>();
+        schedule = new PriorityQueue<HostQueue>();
+        ready = new BucketQueue<HostQueue>();
+        size = 0;
+        memorySize = 0;
+        memoryLimit = Long.MAX_VALUE;
+    }
+
+    /*
+     * changes how many fetches per second hosts seen
+     * from now on are allowed
+     */
+    public synchronized void setDefaultRate(double rate) {
+
+        defaultRate = rate;
+    }
+
+    /*
+     * returns how many fetches per second new hosts
+     * are allowed, 0 if they aren't limited
+     */
+    public synchronized double getDefaultRate() {
+        return defaultRate;
+    }
+
+    /*
+     * makes new pages spill to disk once more than memoryLimit
+     * pages are pending in memory
+     */
+    public synchronized void setSpill(DiskQueue spill, long memoryLimit) {
+
+        this.spill = spill;
+        this.memoryLimit = Math.max(memoryLimit, 1);
+    }
+
+    /*
+     * makes the frontier best-first, ordering pages by the scores
+     * scorer gives them. it must be set before any page is added
+     */
+    public synchronized void setScorer(URLScorer scorer) {
+
+        if (size > 0) {
+            throw new IllegalStateException("the frontier already has pages");
+        }
+
+        this.scorer = scorer;
+        scored = new HashMap<Long, ScoredPage>();
+    }
+
+    /*
+     * returns true if pages are ordered by score, so
+     * every link found to a pending page counts
+     */
+    public synchronized boolean isBestFirst() {
+        return scorer != null;
+    }
+
+    /*
+     * keeps every host to the fetches concurrency allows it at once.
+     * every page taken must then be given back to finished
+     */
+    public synchronized void setConcurrency(AdaptiveConcurrency concurrency) {
+
+        this.concurrency = concurrency;
+    }
+
+    /*
+     * skips pages that seen says were queued again closer to the first page
+     */
+    public synchronized void setSeenURLs(SeenURLStore seen) {
+
+        this.seen = seen;
+    }
+
+    /*
+     * adds a page to its host's queue, after the ones as shallow as it.
+     * throws an IOException if it had to spill and couldn't
+     */
+    public synchronized void add(URLDepthPair pair) throws IOException {
+
+        HostQueue dropped = hosts.get(pair.getHost());
+        if (dropped != null && dropped.dropped) {
+            return;
+        }
+
+        // once we spill, everything goes to disk until it drained, to keep the order
+        if (spill != null && (memorySize >= memoryLimit || spill.size() > 0)) {
+
+            spill.add(pair);
+            size++;
+            return;
+        }
+
+        addToMemory(pair);
+        size++;
+    }
+
+    /*
+     * adds a page to its host's queue in memory
+     */
+    private void addToMemory(URLDepthPair pair) {
+
+        // queued again further up while it was spilled
+        if (isDeeperCopy(pair)) {
+            size--;
+            return;
+        }
+
+        String host = pair.getHost();
+        HostQueue queue = hosts.get(host);
+        ScoredPage superseded = null;
+
+        if (queue == null) {
+            queue = new HostQueue(host, defaultRate);
+            hosts.put(host, queue);
+        }
+
+        if (scorer == null) {
+            int priority = depthPriority(pair);
+            queue.urls.add(pair, priority);
+            raise(queue, priority);
+        } else {
+
+            // a page found on another one already has a link to it
+            ScoredPage page = new ScoredPage(pair, scorer.baseScore(pair, queue.fetched));
+            page.inLinks = pair.getDepth() > 0 ? 1 : 0;
+
+            // a page found again closer to the first page replaces the copy further down
+            superseded = scored.get(pair.getFingerprint());
+            if (superseded != null) {
+                superseded.taken = true;
+                page.inLinks = superseded.inLinks + 1;
+            }
+
+            page.score = scorer.score(page.base, page.inLinks);
+
+            scored.put(pair.getFingerprint(), page);
+            queue.ranked.add(page, page.score);
+            raise(queue, page.score);
+        }
+
+        queue.pending++;
+        memorySize++;
+
+        // a host with nothing pending isn't scheduled, so schedule it now
+        if (queue.pending == 1) {
+            queue.nextEligible = queue.eligibleAt(System.nanoTime());
+            schedule.add(queue);
+            notifyAll();
+        }
+
+        if (superseded != null) {
+            queue.pending--;
+            memorySize--;
+            size--;
+        }
+    }
+
+    // the priority of a page in the FIFO order, higher for shallower pages
+    private static int depthPriority(URLDepthPair pair) {
+
+        return BucketQueue.LEVELS - 1 - Math.min(pair.getDepth(), BucketQueue.LEVELS - 1);
+    }
+
+    // true if the page was queued again closer to the first page since
+    private boolean isDeeperCopy(URLDepthPair pair) {
+
+        return seen != null && seen.isDeeperCopy(pair.getFingerprint(), pair.getDepth());
+    }
+
+    // drops the pages at the front of a host's queue that were queued again further up
+    private void dropDeeperCopies(HostQueue queue) {
+
+        while (!queue.urls.isEmpty() && isDeeperCopy(queue.urls.peek())) {
+            queue.urls.poll();
+            queue.pending--;
+            memorySize--;
+            size--;
+        }
+    }
+
+    /*
+     * takes the next page of a host that may be fetched now, waiting
+     * up to timeout for one. returns null if none became ready in time,
+     * and throws an IOException if spilled pages couldn't be read back
+     */
+    public synchronized URLDepthPair poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (true) {
+
+            refillFromSpill();
+
+            long now = System.nanoTime();
+
+            URLDepthPair pair = pollReady(now);
+            if (pair != null) {
+                return pair;
+            }
+
+            HostQueue queue = schedule.peek();
+
+            long wait = deadline - now;
+            if (queue != null) {
+                wait = Math.min(wait, queue.nextEligible - now);
+            }
+
+            if (deadline - now <= 0) {
+                return null;
+            }
+
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(wait, 1));
+        }
+    }
+
+    /*
+     * takes the best page of the best host that may be fetched now,
+     * or returns null if every host with pages has to wait
+     */
+    private URLDepthPair pollReady(long now) {
+
+        // hosts whose bucket has a token now compete on their best page
+        while (!schedule.isEmpty() && schedule.peek().nextEligible <= now) {
+
+            HostQueue queue = schedule.poll();
+
+            // a host left with nothing but copies is scheduled again when it gets a page
+            if (scorer == null) {
+                dropDeeperCopies(queue);
+                if (queue.pending == 0) {
+                    continue;
+                }
+            }
+
+            queue.isReady = true;
+            queue.readyScore = -1;
+            raise(queue, scorer == null ? queue.urls.peekPriority() : queue.bestScore());
+        }
+
+        HostQueue queue;
+
+        while (true) {
+
+            queue = ready.poll();
+
+            // a host is in ready once for every time its best page went up
+            while (queue != null && (!queue.isReady || ready.lastPriority() != queue.readyScore)) {
+                queue = ready.poll();
+            }
+
+            if (queue == null) {
+                return null;
+            }
+
+            queue.isReady = false;
+
+            // copies left behind while it waited in ready
+            if (scorer == null) {
+                dropDeeperCopies(queue);
+                if (queue.pending == 0) {
+                    continue;
+                }
+            }
+
+            // set aside until one of its fetches finishes
+            if (concurrency != null && !concurrency.tryAcquire(queue.host)) {
+                queue.atLimit = true;
+                continue;
+            }
+            break;
+        }
+
+        queue.take(now);
+
+        URLDepthPair pair;
+
+        if (scorer == null) {
+            pair = queue.urls.poll();
+        } else {
+            queue.bestScore();
+            ScoredPage page = queue.ranked.poll();
+            page.taken = true;
+            scored.remove(page.pair.getFingerprint(), page);
+            pair = page.pair;
+        }
+
+        queue.pending--;
+        queue.fetched++;
+        memorySize--;
+        size--;
+
+        // put the host back for when its bucket allows the next fetch
+        if (queue.pending > 0) {
+            queue.nextEligible = queue.eligibleAt(now);
+            schedule.add(queue);
+        }
+        return pair;
+    }
+
+    /*
+     * tells the concurrency limits a page taken from here was fetched,
+     * how long it took to the first byte and whether it went well,
+     * and brings its host back if it was waiting for a fetch to finish
+     */
+    public synchronized void finished(URLDepthPair pair, long latencyNanos, int outcome) {
+
+        if (concurrency == null) {
+            return;
+        }
+
+        concurrency.release(pair.getHost(), latencyNanos, outcome);
+
+        HostQueue queue = hosts.get(pair.getHost());
+
+        if (queue != null && queue.atLimit) {
+
+            queue.atLimit = false;
+            if (queue.pending > 0) {
+                queue.nextEligible = queue.eligibleAt(System.nanoTime());
+                schedule.add(queue);
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * throws away every pending page of host, and every one added from
+     * now on. returns the number of pages thrown away. pages of the host
+     * spilled to disk are thrown away as they come back
+     */
+    public synchronized long dropHost(String host) {
+
+        HostQueue queue = hosts.get(host);
+
+        if (queue == null) {
+            queue = new HostQueue(host, defaultRate);
+            hosts.put(host, queue);
+        }
+
+        queue.dropped = true;
+        long n = queue.pending;
+
+        if (scorer == null) {
+            queue.urls.clear();
+        } else {
+            for (ScoredPage page = queue.ranked.poll(); page != null; page = queue.ranked.poll()) {
+                if (!page.taken) {
+                    page.taken = true;
+                    scored.remove(page.pair.getFingerprint(), page);
+                }
+            }
+        }
+
+        queue.pending = 0;
+        memorySize -= n;
+        size -= n;
+
+        schedule.remove(queue);
+        queue.isReady = false;
+        queue.atLimit = false;
+        return n;
+    }
+
+    /*
+     * counts a link found to a page that was already queued. if the page
+     * is still pending in memory its score goes up by the link
+     */
+    public synchronized void addInLink(URLDepthPair pair) {
+
+        if (scorer == null) {
+            return;
+        }
+
+        ScoredPage page = scored.get(pair.getFingerprint());
+        if (page == null) {
+            return;
+        }
+
+        page.inLinks++;
+        int score = scorer.score(page.base, page.inLinks);
+
+        // the page is queued again higher up, and the old copy skipped when it comes out
+        if (score > page.score) {
+
+            page.score = score;
+            HostQueue queue = hosts.get(page.pair.getHost());
+            queue.ranked.add(page, score);
+            raise(queue, score);
+        }
+    }
+
+    // moves a host up in ready if its best page now scores higher
+    private void raise(HostQueue queue, int score) {
+
+        if (queue.isReady && score > queue.readyScore) {
+            queue.readyScore = score;
+            ready.add(queue, score);
+            notifyAll();
+        }
+    }
+
+    /*
+     * brings spilled pages back into the host queues once
+     * the queues drained to half of the memory limit
+     */
+    private void refillFromSpill() throws IOException {
+
+        if (spill == null || spill.size() == 0 || memorySize > memoryLimit / 2) {
+            return;
+        }
+
+        while (memorySize < memoryLimit && spill.size() > 0) {
+
+            URLDepthPair pair = spill.poll();
+            HostQueue queue = hosts.get(pair.getHost());
+
+            // spilled before its host was dropped
+            if (queue != null && queue.dropped) {
+                size--;
+            } else {
+                addToMemory(pair);
+            }
+        }
+    }
+
+    /*
+     * writes every pending page, in memory first and then the
+     * spilled ones, without taking any of them off the frontier
+     */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+
+        if (scorer != null) {
+            for (ScoredPage page : scored.values()) {
+                CrawlCheckpoint.writePair(out, page.pair);
+            }
+        }
+
+        for (HostQueue queue : hosts.values()) {
+            for (URLDepthPair pair : queue.urls) {
+                CrawlCheckpoint.writePair(out, pair);
+            }
+        }
+
+        if (spill != null) {
+            spill.writeTo(out);
+        }
+    }
+
+    /*
+     * deletes anything spilled to disk
+     */
+    public synchronized void close() {
+
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    /*
+     * changes how many fetches per second a host is allowed,
+     * for example from its robots.txt Crawl-delay
+     */
+    public synchronized void setHostRate(String host, double rate) {
+
+        HostQueue queue = hosts.get(host);
+
+        if (queue == null) {
+            queue = new HostQueue(host, rate);
+            hosts.put(host, queue);
+            return;
+        }
+
+        queue.rate = rate;
+        queue.burst = Math.max(Math.min(DEFAULT_BURST, rate), 1.0);
+
+        // its place in the schedule depends on the rate
+        if (schedule.remove(queue)) {
+            queue.nextEligible = queue.eligibleAt(System.nanoTime());
+            schedule.add(queue);
+            notifyAll();
+        }
+    }
+
+    /*
+     * returns the number of pending pages
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /*
+     * returns the number of pending pages spilled to disk
+     */
+    public synchronized long spilledSize() {
+        return spill == null ? 0 : spill.size();
+    }
+
+    /*
+     * returns true if no page is pending, throttled or not
+     */
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /*
+     * returns the number of hosts seen so far
+     */
+    public synchronized int hostCount() {
+        return hosts.size();
+    }
+
+    /*
+     * this inner class is the queue and token bucket of one host
+     */
+    private static class HostQueue implements Comparable<HostQueue> {
+
+        // name of the host
+        String host;
+
+        // pages of this host waiting to be fetched, shallowest and then oldest first
+        BucketQueue<URLDepthPair> urls;
+
+        // pages of this host waiting to be fetched, best first, in best-first order
+        BucketQueue<ScoredPage> ranked;
+
+        // number of pages of this host waiting in memory
+        int pending;
+
+        // number of pages taken from this host so far
+        long fetched;
+
+        // true while this host waits in ready
+        boolean isReady;
+
+        // true while this host is set aside for having all the fetches it may
+        boolean atLimit;
+
+        // true once the host failed too often to be fetched again
+        boolean dropped;
+
+        // the score this host is in ready with, -1 if it isn't
+        int readyScore;
+
+        // fetches per second this host is allowed
+        double rate;
+
+        // most tokens the bucket holds
+        double burst;
+
+        // tokens in the bucket at lastRefill
+        double tokens;
+
+        // when the tokens were last counted, in nanoseconds
+        long lastRefill;
+
+        // when this host may be fetched next, in nanoseconds
+        long nextEligible;
+
+        public HostQueue(String host, double rate) {
+
+            this.host = host;
+            this.urls = new BucketQueue<URLDepthPair>();
+            this.ranked = new BucketQueue<ScoredPage>();
+            this.readyScore = -1;
+            this.rate = rate;
+            this.burst = Math.max(Math.min(DEFAULT_BURST, rate), 1.0);
+            this.tokens = burst;
+            this.lastRefill = System.nanoTime();
+        }
+
+        // adds the tokens earned since the last refill
+        void refill(long now) {
+
+            tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+        }
+
+        // uses up a token for a fetch
+        void take(long now) {
+
+            refill(now);
+            tokens -= 1.0;
+        }
+
+        // returns the time the bucket will hold a whole token
+        long eligibleAt(long now) {
+
+            refill(now);
+
+            if (tokens >= 1.0 || rate <= 0) {
+                return now;
+            }
+            return now + (long) ((1.0 - tokens) / rate * 1e9);
+        }
+
+        // drops the copies left behind by raised or taken pages from the top of
+        // ranked and returns the score of the best page, -1 if there is none
+        int bestScore() {
+
+            ScoredPage page = ranked.peek();
+
+            while (page != null && (page.taken || page.score != ranked.peekPriority())) {
+                ranked.poll();
+                page = ranked.peek();
+            }
+            return page == null ? -1 : page.score;
+        }
+
+        public int compareTo(HostQueue other) {
+            return Long.compare(nextEligible, other.nextEligible);
+        }
+    }
+
+    /*
+     * this inner class is a page waiting in the best-first frontier
+     */
+    private static class ScoredPage {
+
+        // the page itself
+        URLDepthPair pair;
+
+        // the part of the score that doesn't depend on links
+        int base;
+
+        // links found to the page so far
+        int inLinks;
+
+        // the score the page is queued with now
+        int score;
+
+        // true once the page was taken, so copies left in the queue are skipped
+        boolean taken;
+
+        public ScoredPage(URLDepthPair pair, int base) {
+
+            this.pair = pair;
+            this.base = base;
+        }
+    }
+}
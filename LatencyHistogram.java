@@ -0,0 +1,131 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a latency histogram in the style of HdrHistogram. Every power
+ * of two is split into 64 linear buckets, so any value is kept to within about
+ * 1.6% over the whole range of a long, in a fixed array of counters. Recording
+ * is a few shifts and one atomic increment, allocates nothing and is safe from
+ * any number of threads, so it can stay on all the time
+ */
+public class LatencyHistogram {
+
+    // bits of a value kept exactly, which makes 64 buckets per power of two
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    // buckets needed to cover every positive long
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_COUNT;
+
+    // how many values fell in every bucket
+    private AtomicLongArray counts;
+
+    // number, sum and largest of the values recorded
+    private AtomicLong count;
+    private AtomicLong sum;
+    private AtomicLong max;
+
+    /*
+     * constructor for an empty histogram
+     */
+    public LatencyHistogram() {
+
+        counts = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /*
+     * records one value, in any unit as long as
+     * it is the same for every value
+     */
+    public void record(long value) {
+
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    /*
+     * returns the number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /*
+     * returns the mean of the values recorded
+     */
+    public double getMean() {
+
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) sum.get() / n;
+    }
+
+    /*
+     * returns the largest value recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /*
+     * returns the value below which the given percent
+     * of the values fall, to within a bucket
+     */
+    public long getPercentile(double percent) {
+
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * n));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                // the middle of the bucket, but never more than the largest value
+                return Math.min(lowestOf(i) + (widthOf(i) - 1) / 2, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // the bucket a value falls in
+    private static int bucketOf(long value) {
+
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return (shift << SUB_BITS) + (int) (value >>> shift);
+    }
+
+    // the smallest value of a bucket
+    private static long lowestOf(int bucket) {
+
+        if (bucket < 2 * SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BITS) - 1;
+        return ((long) (bucket & (SUB_COUNT - 1)) + SUB_COUNT) << shift;
+    }
+
+    // how many values a bucket covers
+    private static long widthOf(int bucket) {
+
+        if (bucket < 2 * SUB_COUNT) {
+            return 1;
+        }
+        return 1L << ((bucket >> SUB_BITS) - 1);
+    }
+}
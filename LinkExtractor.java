@@ -0,0 +1,477 @@
+import java.nio.ByteBuffer;
+
+/**
+ * This class finds links in HTML while it streams past as raw bytes. It is a
+ * small state machine that looks for href attributes inside tags, in any case
+ * and with double, single or no quotes, and hands each value to a LinkSink as
+ * a slice of its own buffer, with character references like &amp; decoded.
+ * A < only opens a tag when a letter, / or ! follows it, the way browsers
+ * read it, and comments are skipped. Nothing is allocated per byte, per line
+ * or per link, and a link split across two reads is put back together
+ */
+public class LinkExtractor {
+
+    // longest link we keep, anything longer is dropped
+    public static final int MAX_URL_LENGTH = 2048;
+
+    /*
+     * receives every link found. the slice is only
+     * valid during the call
+     */
+    public interface LinkSink {
+        void link(byte[] buf, int off, int len);
+    }
+
+    // outside of any tag
+    private static final int TEXT = 0;
+
+    // inside a tag, looking for href
+    private static final int TAG = 1;
+
+    // inside the quoted value of some other attribute
+    private static final int TAG_QUOTED = 2;
+
+    // after href, waiting for the equals sign
+    private static final int AFTER_NAME = 3;
+
+    // after the equals sign, waiting for the value
+    private static final int BEFORE_VALUE = 4;
+
+    // inside a quoted href value
+    private static final int VALUE_QUOTED = 5;
+
+    // inside an unquoted href value
+    private static final int VALUE_UNQUOTED = 6;
+
+    // right after a <, which may not open a tag at all
+    private static final int OPEN = 7;
+
+    // after <!, counting the dashes that make it a comment
+    private static final int BANG = 8;
+
+    // inside a comment, counting the dashes that may end it
+    private static final int COMMENT = 9;
+
+    // the attribute name we look for
+    private static final byte[] HREF = { 'h', 'r', 'e', 'f' };
+
+    // who gets the links
+    private LinkSink sink;
+
+    // the state we are in
+    private int state;
+
+    // how many bytes of HREF we matched so far, or dashes in a row around a comment
+    private int matched;
+
+    // the byte before the current one, to make sure href starts a name
+    private int previous;
+
+    // the quote that ends the value we are in
+    private int quote;
+
+    // the link being collected
+    private byte[] url;
+
+    // bytes of the link collected so far
+    private int urlLength;
+
+    // set when the link got too long and will be dropped
+    private boolean overflow;
+
+    /*
+     * constructor that sends every link found to sink
+     */
+    public LinkExtractor(LinkSink sink) {
+
+        this.sink = sink;
+        url = new byte[MAX_URL_LENGTH];
+        reset();
+    }
+
+    /*
+     * forgets anything half read, so the extractor
+     * can start on a new page
+     */
+    public void reset() {
+
+        state = TEXT;
+        matched = 0;
+        previous = ' ';
+        urlLength = 0;
+        overflow = false;
+    }
+
+    /*
+     * scans the next len bytes of the page starting at off
+     */
+    public void feed(byte[] buf, int off, int len) {
+
+        int end = off + len;
+        int i = off;
+
+        while (i < end) {
+
+            // most of a page is text, comments or other attributes' values, skip those quickly
+            if (state == TEXT) {
+                while (i < end && buf[i] != '<') {
+                    i++;
+                }
+            } else if (state == TAG_QUOTED) {
+                while (i < end && buf[i] != quote) {
+                    i++;
+                }
+            } else if (state == COMMENT && matched == 0) {
+                while (i < end && buf[i] != '-') {
+                    i++;
+                }
+            }
+
+            if (i < end) {
+                step(buf[i++]);
+            }
+        }
+    }
+
+    /*
+     * scans the remaining bytes of buf, leaving it empty
+     */
+    public void feed(ByteBuffer buf) {
+
+        if (buf.hasArray()) {
+            feed(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+
+        int end = buf.limit();
+        int i = buf.position();
+
+        while (i < end) {
+
+            // same quick skipping as for arrays
+            if (state == TEXT) {
+                while (i < end && buf.get(i) != '<') {
+                    i++;
+                }
+            } else if (state == TAG_QUOTED) {
+                while (i < end && buf.get(i) != quote) {
+                    i++;
+                }
+            } else if (state == COMMENT && matched == 0) {
+                while (i < end && buf.get(i) != '-') {
+                    i++;
+                }
+            }
+
+            if (i < end) {
+                step(buf.get(i++));
+            }
+        }
+        buf.position(end);
+    }
+
+    /*
+     * returns true if the len bytes at off start with prefix,
+     * ignoring case. prefix must be lower case
+     */
+    public static boolean startsWithIgnoreCase(byte[] buf, int off, int len, byte[] prefix) {
+
+        if (len < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (lower(buf[off + i]) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * moves the state machine along by one byte
+     */
+    private void step(byte b) {
+
+        int c = lower(b);
+
+        switch (state) {
+
+            case TEXT:
+                if (c == '<') {
+                    state = OPEN;
+                }
+                break;
+
+            case OPEN:
+                if ((c >= 'a' && c <= 'z') || c == '/') {
+                    state = TAG;
+                    matched = 0;
+                } else if (c == '!') {
+                    state = BANG;
+                    matched = 0;
+                } else if (c != '<') {
+                    // a < in text, like 1 < 2
+                    state = TEXT;
+                }
+                break;
+
+            case BANG:
+                if (c == '-' && matched == 0) {
+                    matched++;
+                } else if (c == '-') {
+                    // the dashes that open it may close it too, as in <!-->
+                    state = COMMENT;
+                    matched = 2;
+                } else {
+                    // a declaration like <!DOCTYPE html>, read as a tag
+                    state = TAG;
+                    matched = 0;
+                    step(b);
+                    return;
+                }
+                break;
+
+            case COMMENT:
+                if (c == '-') {
+                    matched++;
+                } else if (c == '>' && matched >= 2) {
+                    state = TEXT;
+                } else {
+                    matched = 0;
+                }
+                break;
+
+            case TAG:
+                if (c == '>') {
+                    state = TEXT;
+                } else if (c == '"' || c == '\'') {
+                    state = TAG_QUOTED;
+                    quote = c;
+                } else if (c == HREF[matched] && (matched > 0 || isSpace(previous))) {
+                    matched++;
+                    if (matched == HREF.length) {
+                        state = AFTER_NAME;
+                        matched = 0;
+                    }
+                } else {
+                    matched = 0;
+                }
+                break;
+
+            case TAG_QUOTED:
+                if (c == quote) {
+                    state = TAG;
+                }
+                break;
+
+            case AFTER_NAME:
+                if (c == '=') {
+                    state = BEFORE_VALUE;
+                } else if (!isSpace(c)) {
+                    // it was a longer name like hreflang, keep looking
+                    state = TAG;
+                    step(b);
+                    return;
+                }
+                break;
+
+            case BEFORE_VALUE:
+                if (c == '"' || c == '\'') {
+                    startValue(VALUE_QUOTED);
+                    quote = c;
+                } else if (c == '>') {
+                    state = TEXT;
+                } else if (!isSpace(c)) {
+                    startValue(VALUE_UNQUOTED);
+                    append(b);
+                }
+                break;
+
+            case VALUE_QUOTED:
+                if (c == quote) {
+                    emit();
+                    state = TAG;
+                } else {
+                    append(b);
+                }
+                break;
+
+            case VALUE_UNQUOTED:
+                if (isSpace(c)) {
+                    emit();
+                    state = TAG;
+                } else if (c == '>') {
+                    emit();
+                    state = TEXT;
+                } else {
+                    append(b);
+                }
+                break;
+        }
+
+        previous = c;
+    }
+
+    // starts collecting a new value
+    private void startValue(int valueState) {
+
+        state = valueState;
+        urlLength = 0;
+        overflow = false;
+    }
+
+    // adds a byte to the value being collected
+    private void append(byte b) {
+
+        if (urlLength < url.length) {
+            url[urlLength++] = b;
+        } else {
+            overflow = true;
+        }
+    }
+
+    // hands the collected value to the sink, decoded and without the spaces around it
+    private void emit() {
+
+        if (overflow) {
+            return;
+        }
+
+        int start = 0;
+        int end = decode(url, urlLength);
+
+        while (start < end && isSpace(url[start])) {
+            start++;
+        }
+        while (end > start && isSpace(url[end - 1])) {
+            end--;
+        }
+
+        if (end > start) {
+            sink.link(url, start, end - start);
+        }
+    }
+
+    /*
+     * decodes the character references in the first len bytes of buf in place,
+     * and returns how many bytes they take then. the five that escape markup
+     * and numeric ones are decoded, any other & is left as it is. a reference
+     * never takes fewer bytes than what it stands for in UTF-8, so it fits
+     */
+    static int decode(byte[] buf, int len) {
+
+        int out = 0;
+
+        for (int i = 0; i < len; ) {
+
+            int semicolon = -1;
+            if (buf[i] == '&') {
+                for (int j = i + 1; j < len && j - i <= 10; j++) {
+                    if (buf[j] == ';') {
+                        semicolon = j;
+                        break;
+                    }
+                }
+            }
+
+            int c = semicolon < 0 ? -1 : reference(buf, i + 1, semicolon);
+
+            if (c < 0) {
+                buf[out++] = buf[i++];
+                continue;
+            }
+
+            // write the character as UTF-8
+            if (c < 0x80) {
+                buf[out++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[out++] = (byte) (0xc0 | (c >> 6));
+                buf[out++] = (byte) (0x80 | (c & 0x3f));
+            } else if (c < 0x10000) {
+                buf[out++] = (byte) (0xe0 | (c >> 12));
+                buf[out++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[out++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                buf[out++] = (byte) (0xf0 | (c >> 18));
+                buf[out++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+                buf[out++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[out++] = (byte) (0x80 | (c & 0x3f));
+            }
+            i = semicolon + 1;
+        }
+        return out;
+    }
+
+    // the character a reference between & and ; at off to end stands for, -1 if none we know
+    private static int reference(byte[] buf, int off, int end) {
+
+        int len = end - off;
+
+        if (len >= 2 && buf[off] == '#') {
+
+            boolean hex = lower(buf[off + 1]) == 'x';
+            int radix = hex ? 16 : 10;
+            int c = 0;
+
+            if (len == (hex ? 2 : 1)) {
+                return -1;
+            }
+
+            for (int i = off + (hex ? 2 : 1); i < end; i++) {
+
+                int digit = Character.digit(buf[i], radix);
+                if (digit < 0) {
+                    return -1;
+                }
+                c = c * radix + digit;
+            }
+
+            // nothing that isn't a character, and no NUL
+            return c == 0 || c > 0x10ffff || (c >= 0xd800 && c <= 0xdfff) ? -1 : c;
+        }
+
+        if (matches(buf, off, len, "amp")) {
+            return '&';
+        } else if (matches(buf, off, len, "lt")) {
+            return '<';
+        } else if (matches(buf, off, len, "gt")) {
+            return '>';
+        } else if (matches(buf, off, len, "quot")) {
+            return '"';
+        } else if (matches(buf, off, len, "apos")) {
+            return '\'';
+        }
+        return -1;
+    }
+
+    // true if the len bytes at off are name
+    private static boolean matches(byte[] buf, int off, int len, String name) {
+
+        if (len != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (buf[off + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // lower cases an ascii letter, returns anything else unchanged
+    private static int lower(byte b) {
+
+        int c = b & 0xff;
+        if (c >= 'A' && c <= 'Z') {
+            return c + ('a' - 'A');
+        }
+        return c;
+    }
+
+    // checks for html whitespace
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+}
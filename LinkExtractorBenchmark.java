@@ -0,0 +1,170 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * This class measures how fast links are pulled out of HTML, in MB/s. It runs
+ * the old readLine and toLowerCase loop of the crawler and the streaming
+ * LinkExtractor over the same generated page, several times each, and prints
+ * the throughput and the number of links each approach found
+ */
+public class LinkExtractorBenchmark {
+
+    // size of the generated page when none is given on the command line
+    public static final int DEFAULT_SIZE_MB = 16;
+
+    // how many timed runs each approach gets after warming up
+    public static final int RUNS = 5;
+
+    // size of each read handed to the extractor, same as the crawler
+    public static final int CHUNK_SIZE = 8192;
+
+    /*
+     * builds a page of about size bytes that looks like real HTML:
+     * paragraphs of text with links in mixed case and quoting
+     */
+    public static byte[] makePage(int size, long seed) {
+
+        Random rand = new Random(seed);
+        StringBuilder page = new StringBuilder(size + 1024);
+        page.append("<html><head><title>Benchmark</title></head><body>\n");
+
+        while (page.length() < size) {
+
+            page.append("<p class=\"text\">");
+            int words = 5 + rand.nextInt(30);
+            for (int i = 0; i < words; i++) {
+                page.append("lorem ipsum ");
+            }
+
+            // about half the lines carry a link, some of them several
+            int links = rand.nextInt(4) - 1;
+            for (int i = 0; i < links; i++) {
+
+                String href = "http://host" + rand.nextInt(100) + ".example.com/page/" + rand.nextInt(100000);
+
+                switch (rand.nextInt(3)) {
+                    case 0:
+                        page.append("<a href=\"").append(href).append("\">link</a> ");
+                        break;
+                    case 1:
+                        page.append("<A HREF='").append(href).append("'>link</A> ");
+                        break;
+                    default:
+                        page.append("<a class=\"nav\" href=").append(href).append(">link</a> ");
+                        break;
+                }
+            }
+
+            page.append("</p>\n");
+        }
+
+        page.append("</body></html>\n");
+        return page.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * the crawler's original approach: read lines, lower case
+     * them and take the first link on each matching line
+     */
+    public static int readLineLinks(byte[] page) throws IOException {
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(page)));
+        int found = 0;
+
+        while (true) {
+
+            String line = br.readLine();
+            if (line == null) {
+                break;
+            }
+
+            if (line.toLowerCase().contains(Crawler.LINE_PREFIX.toLowerCase())) {
+                int idxStart = line.indexOf(Crawler.URL_PREFIX);
+                int idxEnd = line.indexOf("\"", idxStart);
+                if (idxStart >= 0 && idxEnd > idxStart) {
+                    found++;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /*
+     * the streaming approach: feed the raw bytes in chunks
+     * and count every link the extractor hands back
+     */
+    public static int extractorLinks(byte[] page) {
+
+        final int[] found = new int[1];
+
+        LinkExtractor extractor = new LinkExtractor(new LinkExtractor.LinkSink() {
+            public void link(byte[] buf, int off, int len) {
+                found[0]++;
+            }
+        });
+
+        for (int off = 0; off < page.length; off += CHUNK_SIZE) {
+            extractor.feed(page, off, Math.min(CHUNK_SIZE, page.length - off));
+        }
+
+        return found[0];
+    }
+
+    /*
+     * runs one approach and returns the best throughput
+     * of the timed runs, in MB/s
+     */
+    private static double measure(String name, byte[] page, boolean streaming) throws IOException {
+
+        int links = 0;
+
+        // warm up so the JIT has compiled the loop
+        for (int i = 0; i < 2; i++) {
+            links = streaming ? extractorLinks(page) : readLineLinks(page);
+        }
+
+        double best = 0;
+        for (int i = 0; i < RUNS; i++) {
+
+            long start = System.nanoTime();
+            links = streaming ? extractorLinks(page) : readLineLinks(page);
+            long elapsed = System.nanoTime() - start;
+
+            double mbPerSecond = (page.length / (1024.0 * 1024.0)) / (elapsed / 1e9);
+            best = Math.max(best, mbPerSecond);
+        }
+
+        System.out.println(String.format("%-16s %8.1f MB/s  %8d links", name, best, links));
+        return best;
+    }
+
+    /*
+     * main function. the page size in MB can be given
+     * as the only argument
+     */
+    public static void main(String[] args) throws IOException {
+
+        int sizeMB = DEFAULT_SIZE_MB;
+
+        if (args.length == 1) {
+            try {
+                sizeMB = Integer.parseInt(args[0]);
+            } catch (NumberFormatException nfe) {
+                System.out.println("usage: java LinkExtractorBenchmark [size in MB]");
+                System.exit(1);
+            }
+        }
+
+        byte[] page = makePage(sizeMB * 1024 * 1024, 42);
+
+        double old = measure("readLine", page, false);
+        double streaming = measure("LinkExtractor", page, true);
+
+        System.out.println(String.format("speedup: %.2fx", streaming / old));
+    }
+}
@@ -0,0 +1,591 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This class keeps the link graph the crawler finds: which page linked to
+ * which. Every url gets a dense int id the first time it shows up, through an
+ * open-addressing table keyed by its fingerprint, and its bytes go in one
+ * shared array. The links of a page are stored as a row of compressed sparse
+ * row form: the target ids sorted, and written as the first id and then the
+ * gaps between them, seven bits a byte. Most gaps fit in a byte or two, so
+ * tens of millions of links take tens of megabytes. In-degrees and PageRank
+ * are computed over the rows in parallel with fork/join
+ */
+public class LinkGraph {
+
+    // damping factor, iterations and tolerance of PageRank when none are given
+    public static final double DEFAULT_DAMPING = 0.85;
+    public static final int DEFAULT_ITERATIONS = 50;
+    public static final double DEFAULT_TOLERANCE = 1e-9;
+
+    // nodes a fork/join task handles without splitting further
+    private static final int GRAIN = 4096;
+
+    // fingerprint stored in place of 0, since 0 marks an empty slot
+    private static final long ZERO_FINGERPRINT = 0x9E3779B97F4A7C15L;
+
+    // fingerprint of every slot and the id in it
+    private long[] keys;
+    private int[] slotIds;
+
+    // number of nodes, every url seen as a page or a link
+    private int nodes;
+
+    // where the url of every node starts in urlBytes, and the bytes themselves
+    private int[] urlStart;
+    private byte[] urlBytes;
+    private int urlLength;
+
+    // where the row of every node starts in rows, -1 for a node never crawled
+    private int[] rowStart;
+
+    // every row: the number of targets, then the first target and the gaps
+    private byte[] rows;
+    private int rowsLength;
+
+    // links stored, after dropping repeats on the same page
+    private long edges;
+
+    // runs the parallel computations
+    private ForkJoinPool pool;
+
+    /*
+     * constructor for an empty graph, computed on
+     * the common fork/join pool
+     */
+    public LinkGraph() {
+
+        this(ForkJoinPool.commonPool());
+    }
+
+    /*
+     * constructor for an empty graph, computed on pool
+     */
+    public LinkGraph(ForkJoinPool pool) {
+
+        this.pool = pool;
+        keys = new long[1024];
+        slotIds = new int[1024];
+        urlStart = new int[512];
+        rowStart = new int[512];
+        Arrays.fill(rowStart, -1);
+        urlBytes = new byte[1 << 16];
+        rows = new byte[1 << 16];
+    }
+
+    /*
+     * records the links found on a page. the targets are
+     * sorted and repeats dropped before they are stored
+     */
+    public synchronized void addLinks(URLDepthPair page, List<URLDepthPair> links) {
+
+        int source = idOf(page);
+
+        int[] targets = new int[links.size()];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = idOf(links.get(i));
+        }
+        Arrays.sort(targets);
+
+        int count = 0;
+        for (int i = 0; i < targets.length; i++) {
+            if (i == 0 || targets[i] != targets[i - 1]) {
+                targets[count++] = targets[i];
+            }
+        }
+
+        // at most five bytes for the count and for every target
+        ensureRows(5 + 5 * count);
+        rowStart[source] = rowsLength;
+
+        rowsLength = writeVarInt(rows, rowsLength, count);
+        int last = 0;
+        for (int i = 0; i < count; i++) {
+            rowsLength = writeVarInt(rows, rowsLength, targets[i] - last);
+            last = targets[i];
+        }
+
+        edges += count;
+    }
+
+    /*
+     * returns the number of urls in the graph
+     */
+    public synchronized int nodeCount() {
+        return nodes;
+    }
+
+    /*
+     * returns the number of links in the graph
+     */
+    public synchronized long edgeCount() {
+        return edges;
+    }
+
+    /*
+     * returns the bytes the graph takes, roughly
+     */
+    public synchronized long memoryBytes() {
+
+        return keys.length * 12L + urlStart.length * 8L + urlBytes.length + rows.length;
+    }
+
+    /*
+     * returns the url of a node
+     */
+    public synchronized String getURL(int id) {
+
+        int end = id + 1 < nodes ? urlStart[id + 1] : urlLength;
+        return new String(urlBytes, urlStart[id], end - urlStart[id], StandardCharsets.UTF_8);
+    }
+
+    /*
+     * returns the number of links to every node, counted in parallel
+     */
+    public synchronized int[] inDegrees() {
+
+        final AtomicIntegerArray counts = new AtomicIntegerArray(nodes);
+
+        pool.invoke(new RangeAction(new Range() {
+            void run(int lo, int hi) {
+
+                for (int u = lo; u < hi; u++) {
+
+                    int pos = rowStart[u];
+                    if (pos < 0) {
+                        continue;
+                    }
+
+                    long r = readVarInt(rows, pos);
+                    int count = (int) (r >>> 32);
+                    pos = (int) r;
+
+                    int v = 0;
+                    for (int i = 0; i < count; i++) {
+                        r = readVarInt(rows, pos);
+                        v += (int) (r >>> 32);
+                        pos = (int) r;
+                        counts.incrementAndGet(v);
+                    }
+                }
+            }
+        }, 0, nodes));
+
+        int[] result = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    /*
+     * returns the PageRank of every node with the default damping,
+     * iterations and tolerance
+     */
+    public double[] pageRank() {
+
+        return pageRank(DEFAULT_DAMPING, DEFAULT_ITERATIONS, DEFAULT_TOLERANCE);
+    }
+
+    /*
+     * returns the PageRank of every node, summing to 1. every iteration pulls
+     * the rank of the pages linking to a node, so nodes are computed in
+     * parallel without sharing writes. the rank of pages without links, most
+     * of them never crawled, is spread over every node. stops after
+     * maxIterations or once the ranks move less than tolerance in total
+     */
+    public synchronized double[] pageRank(final double damping, int maxIterations, double tolerance) {
+
+        final int n = nodes;
+        if (n == 0) {
+            return new double[0];
+        }
+
+        // the links turned around: for every node, the nodes linking to it
+        final int[] outDegree = new int[n];
+        final int[] inStart = new int[n + 1];
+        final int[] inEdges = transpose(outDegree, inStart);
+
+        final double[][] rank = { new double[n], new double[n] };
+        final double[] share = new double[n];
+        Arrays.fill(rank[0], 1.0 / n);
+
+        for (int it = 0; it < maxIterations; it++) {
+
+            final double[] current = rank[it & 1];
+            final double[] next = rank[(it + 1) & 1];
+
+            // what every node hands each of its targets, and what the pages without links hold
+            final double dangling = pool.invoke(new SumTask(new Sum() {
+                double run(int lo, int hi) {
+
+                    double sum = 0;
+                    for (int u = lo; u < hi; u++) {
+                        if (outDegree[u] == 0) {
+                            share[u] = 0;
+                            sum += current[u];
+                        } else {
+                            share[u] = current[u] / outDegree[u];
+                        }
+                    }
+                    return sum;
+                }
+            }, 0, n));
+
+            final double base = (1 - damping) / n + damping * dangling / n;
+
+            double delta = pool.invoke(new SumTask(new Sum() {
+                double run(int lo, int hi) {
+
+                    double moved = 0;
+                    for (int v = lo; v < hi; v++) {
+
+                        double sum = 0;
+                        for (int i = inStart[v]; i < inStart[v + 1]; i++) {
+                            sum += share[inEdges[i]];
+                        }
+
+                        next[v] = base + damping * sum;
+                        moved += Math.abs(next[v] - current[v]);
+                    }
+                    return moved;
+                }
+            }, 0, n));
+
+            if (delta < tolerance) {
+                return next;
+            }
+        }
+
+        return rank[maxIterations & 1];
+    }
+
+    /*
+     * returns the ids of the k nodes with the highest scores, highest first
+     */
+    public static int[] top(double[] scores, int k) {
+
+        k = Math.min(k, scores.length);
+
+        // a small min-heap of the best so far, by score
+        int[] heap = new int[k];
+        int size = 0;
+
+        for (int id = 0; id < scores.length; id++) {
+
+            if (size < k) {
+                heap[size] = id;
+                siftUp(heap, size++, scores);
+            } else if (k > 0 && scores[id] > scores[heap[0]]) {
+                heap[0] = id;
+                siftDown(heap, size, scores);
+            }
+        }
+
+        // take the smallest off the heap until it is empty, filling from the back
+        int[] best = new int[size];
+        for (int i = size - 1; i >= 0; i--) {
+            best[i] = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size, scores);
+        }
+        return best;
+    }
+
+    /*
+     * toString method that we override to report
+     * how big the graph is
+     */
+    @Override
+    public synchronized String toString() {
+
+        return "Link graph: " + nodes + " urls, " + edges + " links, "
+            + String.format("%.1f", rowsLength / (double) Math.max(edges, 1)) + " bytes per link, "
+            + "Memory: " + memoryBytes() / 1024 + " KB";
+    }
+
+    // turns the rows around. fills outDegree and inStart, and returns the sources of every node's links
+    private int[] transpose(final int[] outDegree, final int[] inStart) {
+
+        final int n = nodes;
+
+        if (edges > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("too many links to rank: " + edges);
+        }
+
+        int[] inDegree = inDegrees();
+
+        for (int v = 0; v < n; v++) {
+            inStart[v + 1] = inStart[v] + inDegree[v];
+        }
+
+        final int[] inEdges = new int[inStart[n]];
+        final AtomicIntegerArray fill = new AtomicIntegerArray(Arrays.copyOf(inStart, n));
+
+        pool.invoke(new RangeAction(new Range() {
+            void run(int lo, int hi) {
+
+                for (int u = lo; u < hi; u++) {
+
+                    int pos = rowStart[u];
+                    if (pos < 0) {
+                        continue;
+                    }
+
+                    long r = readVarInt(rows, pos);
+                    int count = (int) (r >>> 32);
+                    pos = (int) r;
+                    outDegree[u] = count;
+
+                    int v = 0;
+                    for (int i = 0; i < count; i++) {
+                        r = readVarInt(rows, pos);
+                        v += (int) (r >>> 32);
+                        pos = (int) r;
+                        inEdges[fill.getAndIncrement(v)] = u;
+                    }
+                }
+            }
+        }, 0, n));
+
+        // threads filled the lists in any order, sorting makes the sums come out the same every time
+        pool.invoke(new RangeAction(new Range() {
+            void run(int lo, int hi) {
+                for (int v = lo; v < hi; v++) {
+                    Arrays.sort(inEdges, inStart[v], inStart[v + 1]);
+                }
+            }
+        }, 0, n));
+
+        return inEdges;
+    }
+
+    // the id of a url, giving it the next one if it is new
+    private int idOf(URLDepthPair pair) {
+
+        long fp = pair.getFingerprint();
+        if (fp == 0) {
+            fp = ZERO_FINGERPRINT;
+        }
+
+        int mask = keys.length - 1;
+        int slot = (int) SimHash.mix(fp) & mask;
+
+        while (keys[slot] != 0) {
+            if (keys[slot] == fp) {
+                return slotIds[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = nodes++;
+        keys[slot] = fp;
+        slotIds[slot] = id;
+
+        if (id == urlStart.length) {
+            urlStart = Arrays.copyOf(urlStart, id * 2);
+            int old = rowStart.length;
+            rowStart = Arrays.copyOf(rowStart, id * 2);
+            Arrays.fill(rowStart, old, rowStart.length, -1);
+        }
+
+        byte[] url = pair.urlBytes();
+        if (urlLength + url.length > urlBytes.length) {
+            urlBytes = Arrays.copyOf(urlBytes, Math.max(urlBytes.length * 2, urlLength + url.length));
+        }
+        System.arraycopy(url, 0, urlBytes, urlLength, url.length);
+        urlStart[id] = urlLength;
+        urlLength += url.length;
+
+        // keep the table at most half full
+        if (nodes * 2 > keys.length) {
+            grow();
+        }
+        return id;
+    }
+
+    // doubles the id table and puts every fingerprint back
+    private void grow() {
+
+        long[] oldKeys = keys;
+        int[] oldIds = slotIds;
+
+        keys = new long[oldKeys.length * 2];
+        slotIds = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+
+            if (oldKeys[i] == 0) {
+                continue;
+            }
+
+            int slot = (int) SimHash.mix(oldKeys[i]) & mask;
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            slotIds[slot] = oldIds[i];
+        }
+    }
+
+    // makes room for extra more bytes of rows
+    private void ensureRows(int extra) {
+
+        if (rowsLength + extra > rows.length) {
+            long size = Math.max(rows.length * 2L, (long) rowsLength + extra);
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("link graph is full");
+            }
+            rows = Arrays.copyOf(rows, (int) size);
+        }
+    }
+
+    // writes v seven bits a byte, low bits first, and returns where the next byte goes
+    private static int writeVarInt(byte[] buf, int pos, int v) {
+
+        while ((v & ~0x7f) != 0) {
+            buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    // reads a number written by writeVarInt. returns it in the high half
+    // and where the next byte is in the low half, so nothing is allocated
+    private static long readVarInt(byte[] buf, int pos) {
+
+        int v = 0;
+        int shift = 0;
+        int b;
+
+        do {
+            b = buf[pos++];
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return ((long) v << 32) | (pos & 0xffffffffL);
+    }
+
+    private static void siftUp(int[] heap, int i, double[] scores) {
+
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (scores[heap[parent]] <= scores[heap[i]]) {
+                return;
+            }
+            int t = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = t;
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int size, double[] scores) {
+
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && scores[heap[left]] < scores[heap[smallest]]) {
+                smallest = left;
+            }
+            if (right < size && scores[heap[right]] < scores[heap[smallest]]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            int t = heap[smallest];
+            heap[smallest] = heap[i];
+            heap[i] = t;
+            i = smallest;
+        }
+    }
+
+    /*
+     * work done on a range of nodes
+     */
+    private abstract static class Range {
+        abstract void run(int lo, int hi);
+    }
+
+    /*
+     * work done on a range of nodes that adds up to a number
+     */
+    private abstract static class Sum {
+        abstract double run(int lo, int hi);
+    }
+
+    /*
+     * this inner class splits a Range in half until the
+     * pieces are small enough to run on their own
+     */
+    private static class RangeAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private Range body;
+        private int lo;
+        private int hi;
+
+        RangeAction(Range body, int lo, int hi) {
+            this.body = body;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (hi - lo <= GRAIN) {
+                body.run(lo, hi);
+                return;
+            }
+
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new RangeAction(body, lo, mid), new RangeAction(body, mid, hi));
+        }
+    }
+
+    /*
+     * this inner class splits a Sum like RangeAction
+     * and adds the halves back up
+     */
+    private static class SumTask extends RecursiveTask<Double> {
+
+        private static final long serialVersionUID = 1L;
+
+        private Sum body;
+        private int lo;
+        private int hi;
+
+        SumTask(Sum body, int lo, int hi) {
+            this.body = body;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Double compute() {
+
+            if (hi - lo <= GRAIN) {
+                return body.run(lo, hi);
+            }
+
+            int mid = (lo + hi) >>> 1;
+            SumTask left = new SumTask(body, lo, mid);
+            left.fork();
+            double right = new SumTask(body, mid, hi).compute();
+            return left.join() + right;
+        }
+    }
+}
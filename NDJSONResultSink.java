@@ -0,0 +1,100 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class writes every page as a line of JSON, newline-delimited JSON,
+ * so other tools can read the results while the crawl is still going.
+ * A line looks like
+ * {"url":"http://a.com/","depth":0,"status":200,"bytes":5120,"millis":12.345,"time":1700000000000}
+ * Lines are built in one reused buffer and written through a large buffered
+ * writer, so memory stays the same however many pages are crawled
+ */
+public class NDJSONResultSink implements ResultSink {
+
+    // size of the buffer in front of the file
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // where the lines go
+    private Writer out;
+
+    // the line being built, reused for every page
+    private StringBuilder line;
+
+    /*
+     * constructor for a sink writing to file, which is replaced
+     */
+    public NDJSONResultSink(File file) throws IOException {
+
+        this(new FileOutputStream(file));
+    }
+
+    /*
+     * constructor for a sink writing to out
+     */
+    public NDJSONResultSink(OutputStream out) {
+
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        line = new StringBuilder(256);
+    }
+
+    public synchronized void result(PageResult result) throws IOException {
+
+        URLDepthPair pair = result.getPair();
+        line.setLength(0);
+
+        line.append("{\"url\":\"");
+        appendEscaped(line, pair.getURL());
+        line.append("\",\"depth\":").append(pair.getDepth());
+        line.append(",\"status\":").append(result.getStatus());
+        line.append(",\"bytes\":").append(result.getBytes());
+
+        // milliseconds with three decimals, without going through a format string
+        long micros = result.getNanos() / 1000;
+        line.append(",\"millis\":").append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) {
+            line.append('0');
+        }
+        if (fraction < 10) {
+            line.append('0');
+        }
+        line.append(fraction);
+
+        line.append(",\"time\":").append(result.getFinishedAt()).append("}\n");
+
+        out.append(line);
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    // appends s as the inside of a JSON string
+    private static void appendEscaped(StringBuilder sb, String s) {
+
+        for (int i = 0; i < s.length(); i++) {
+
+            char c = s.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 15]);
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+}
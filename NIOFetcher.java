@@ -0,0 +1,560 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+
+/**
+ * This class fetches pages without blocking. A single I/O thread drives
+ * every open SocketChannel through one Selector, so hundreds of requests
+ * can be in flight without a thread or a stream buffer per connection.
+ * Response bytes are read into one reusable direct ByteBuffer and handed
+ * straight to the Handler of the page they belong to, still encoded. HTTPS
+ * pages run TLS through an SSLEngine on the same thread, with only the slow
+ * handshake tasks handed to a small pool
+ */
+public class NIOFetcher implements Runnable {
+
+    // size of the direct buffer every response is read into
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    // how long a connection may sit without any activity, same as the socket timeout
+    public static final long TIMEOUT_MILLIS = 3000;
+
+    // threads running the slow parts of TLS handshakes
+    public static final int HANDSHAKE_THREADS = 2;
+
+    /*
+     * receives the response of one fetch. all methods are called
+     * on the I/O thread, so they must not block
+     */
+    public interface Handler {
+
+        // called with the next bytes of the response, only valid during the call
+        void data(ByteBuffer buf);
+
+        // called once the server closed the connection
+        void done();
+
+        // called instead of done if the fetch couldn't be completed
+        void failed(IOException e);
+    }
+
+    // the selector every connection is registered with
+    private Selector selector;
+
+    // the buffer every read goes into, reused for all connections
+    private ByteBuffer readBuffer;
+
+    // fetches handed to us by other threads that haven't been registered yet
+    private ConcurrentLinkedQueue<Connection> newConnections;
+
+    // TLS connections whose handshake tasks finished and can go on
+    private ConcurrentLinkedQueue<Connection> handshakesReady;
+
+    // runs the handshake tasks off the I/O thread
+    private ExecutorService handshakeTasks;
+
+    // the thread running the selector loop
+    private Thread ioThread;
+
+    // set when the fetcher is being shut down
+    private volatile boolean closed;
+
+    // resolves hosts without blocking the I/O thread
+    private DNSCache dns;
+
+    // makes the TLS engines of HTTPS pages
+    private TLSContext tls;
+
+    // times the stages of every fetch, null if nobody asked
+    private volatile CrawlMetrics metrics;
+
+    /*
+     * constructor that opens the selector and starts
+     * the I/O thread
+     */
+    public NIOFetcher(DNSCache dns, TLSContext tls) throws IOException {
+
+        this.dns = dns;
+        this.tls = tls;
+        selector = Selector.open();
+        readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        newConnections = new ConcurrentLinkedQueue<Connection>();
+        handshakesReady = new ConcurrentLinkedQueue<Connection>();
+
+        handshakeTasks = Executors.newFixedThreadPool(HANDSHAKE_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "tls-handshake");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        ioThread = new Thread(this, "nio-fetcher");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /*
+     * times the DNS lookup, connect and wait for the first
+     * byte of every fetch in metrics, and counts its bytes
+     */
+    public void setMetrics(CrawlMetrics metrics) {
+
+        this.metrics = metrics;
+    }
+
+    /*
+     * starts fetching a page. this returns right away and the
+     * handler is told about the response as it arrives
+     */
+    public void fetch(URLDepthPair pair, Handler handler) {
+
+        fetch(pair, "", handler);
+    }
+
+    /*
+     * starts fetching a page, sending extra header lines with
+     * the request, each ending in a line break
+     */
+    public void fetch(URLDepthPair pair, String extraHeaders, Handler handler) {
+
+        final Connection conn = new Connection(pair, extraHeaders, handler);
+
+        // connect once the address is known, which is usually right away. this runs
+        // on a DNS thread, so even a failure goes to the I/O thread to be reported
+        dns.resolveAsync(pair.getHost()).whenComplete(new BiConsumer<InetAddress, Throwable>() {
+            public void accept(InetAddress address, Throwable error) {
+
+                if (error != null) {
+                    conn.error = new UnknownHostException(conn.pair.getHost());
+                } else {
+
+                    // a port out of range would otherwise vanish into the future, and the fetch with it
+                    try {
+                        conn.address = new InetSocketAddress(address, conn.pair.getPort());
+                        conn.resolved = System.nanoTime();
+                    } catch (IllegalArgumentException e) {
+                        conn.error = new IOException(e);
+                    }
+                }
+
+                CrawlMetrics m = metrics;
+                if (m != null && conn.error == null) {
+                    m.record(CrawlMetrics.DNS, conn.resolved - conn.started);
+                }
+
+                newConnections.add(conn);
+                selector.wakeup();
+            }
+        });
+    }
+
+    /*
+     * stops the I/O thread and closes every connection
+     * that is still open
+     */
+    public void close() {
+
+        closed = true;
+        selector.wakeup();
+
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        handshakeTasks.shutdown();
+    }
+
+    /*
+     * the selector loop. it registers new fetches, services every
+     * channel that is ready and times out the ones that went quiet
+     */
+    public void run() {
+
+        try {
+
+            while (!closed) {
+
+                selector.select(TIMEOUT_MILLIS / 4);
+
+                registerNewConnections();
+                resumeHandshakes();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    Connection conn = (Connection) key.attachment();
+
+                    // one bad response must not take the loop, and every other fetch, with it
+                    try {
+                        service(key, conn);
+                    } catch (IOException e) {
+                        conn.fail(key, e);
+                    } catch (RuntimeException e) {
+                        conn.fail(key, new IOException(e));
+                    }
+                }
+
+                expireIdleConnections();
+            }
+
+        } catch (IOException e) {
+            System.out.println("Selector failed: " + e.getMessage());
+        } finally {
+
+            // anything left over will never complete
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).fail(key, new IOException("fetcher closed"));
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing more we can do
+            }
+        }
+    }
+
+    /*
+     * opens a channel for every fetch that was queued
+     * since the last pass of the loop
+     */
+    private void registerNewConnections() {
+
+        Connection conn;
+        while ((conn = newConnections.poll()) != null) {
+
+            // its address couldn't be found
+            if (conn.error != null) {
+                conn.fail(null, conn.error);
+                continue;
+            }
+
+            try {
+
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                conn.channel = channel;
+
+                if (conn.pair.isSecure()) {
+                    conn.tls = tls.open(channel, conn.pair.getHost(), conn.pair.getPort());
+                }
+
+                channel.connect(conn.address);
+                conn.key = channel.register(selector, SelectionKey.OP_CONNECT, conn);
+
+            } catch (IOException e) {
+                conn.fail(null, e);
+            } catch (RuntimeException e) {
+                conn.fail(null, new IOException(e));
+            }
+        }
+    }
+
+    /*
+     * carries on the handshakes whose tasks finished
+     * on the handshake threads
+     */
+    private void resumeHandshakes() {
+
+        Connection conn;
+        while ((conn = handshakesReady.poll()) != null) {
+
+            // it may have timed out while the tasks ran
+            if (!conn.key.isValid()) {
+                continue;
+            }
+
+            conn.lastActivity = System.currentTimeMillis();
+
+            try {
+                handshake(conn.key, conn);
+            } catch (IOException e) {
+                conn.fail(conn.key, e);
+            } catch (RuntimeException e) {
+                conn.fail(conn.key, new IOException(e));
+            }
+        }
+    }
+
+    /*
+     * moves one connection along: finish connecting, do the TLS
+     * handshake if it has one, send the request, then read until
+     * the server closes
+     */
+    private void service(SelectionKey key, Connection conn) throws IOException {
+
+        SocketChannel channel = conn.channel;
+        conn.lastActivity = System.currentTimeMillis();
+
+        if (key.isConnectable()) {
+
+            channel.finishConnect();
+
+            if (conn.tls != null) {
+                conn.tls.beginHandshake();
+                handshake(key, conn);
+            } else {
+                connected(conn);
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+
+        } else if (conn.tls != null && !conn.tls.isHandshakeDone()) {
+
+            handshake(key, conn);
+
+        } else if (key.isWritable()) {
+
+            boolean sent;
+            if (conn.tls != null) {
+                sent = conn.tls.write(conn.request);
+            } else {
+                channel.write(conn.request);
+                sent = !conn.request.hasRemaining();
+            }
+
+            // once the whole request is out, wait for the response
+            if (sent) {
+                conn.sent = System.nanoTime();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+
+        } else if (key.isReadable()) {
+
+            if (conn.firstByte == 0) {
+                conn.firstByte = System.nanoTime();
+                CrawlMetrics m = metrics;
+                if (m != null) {
+                    m.record(CrawlMetrics.TTFB, conn.firstByte - conn.sent);
+                }
+            }
+
+            if (conn.tls != null) {
+                readTLS(key, conn);
+                return;
+            }
+
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+
+            if (n == -1) {
+                key.cancel();
+                channel.close();
+                conn.done();
+                return;
+            }
+
+            readBuffer.flip();
+            addBytes(n);
+            conn.handler.data(readBuffer);
+        }
+    }
+
+    /*
+     * hands the handler everything that can be decrypted
+     * right now, and tells it when the server closed
+     */
+    private void readTLS(SelectionKey key, Connection conn) throws IOException {
+
+        while (true) {
+
+            ByteBuffer data = conn.tls.read();
+
+            if (data == null) {
+                key.cancel();
+                conn.channel.close();
+                conn.done();
+                return;
+            }
+
+            if (!data.hasRemaining()) {
+                return;
+            }
+
+            addBytes(data.remaining());
+            conn.handler.data(data);
+        }
+    }
+
+    /*
+     * moves a TLS handshake along and waits for whatever it
+     * needs next. once it is done the request is sent
+     */
+    private void handshake(SelectionKey key, final Connection conn) throws IOException {
+
+        switch (conn.tls.handshake()) {
+
+            case TLSChannel.NEED_READ:
+                key.interestOps(SelectionKey.OP_READ);
+                break;
+
+            case TLSChannel.NEED_WRITE:
+                key.interestOps(SelectionKey.OP_WRITE);
+                break;
+
+            case TLSChannel.NEED_TASK:
+
+                // checking certificates can take a while, keep it off the I/O thread
+                key.interestOps(0);
+                handshakeTasks.execute(new Runnable() {
+                    public void run() {
+                        conn.tls.runDelegatedTasks();
+                        handshakesReady.add(conn);
+                        selector.wakeup();
+                    }
+                });
+                break;
+
+            default:
+                connected(conn);
+                key.interestOps(SelectionKey.OP_WRITE);
+                break;
+        }
+    }
+
+    /*
+     * records how long connecting took, with the TLS
+     * handshake if there was one
+     */
+    private void connected(Connection conn) {
+
+        CrawlMetrics m = metrics;
+        if (m != null) {
+            m.record(CrawlMetrics.CONNECT, System.nanoTime() - conn.resolved);
+        }
+    }
+
+    // counts bytes received, after TLS for an HTTPS page
+    private void addBytes(int n) {
+
+        CrawlMetrics m = metrics;
+        if (m != null) {
+            m.addBytes(n);
+        }
+    }
+
+    /*
+     * fails every connection that hasn't seen any
+     * activity for longer than the timeout
+     */
+    private void expireIdleConnections() {
+
+        long now = System.currentTimeMillis();
+
+        for (SelectionKey key : selector.keys()) {
+
+            Connection conn = (Connection) key.attachment();
+
+            if (now - conn.lastActivity > TIMEOUT_MILLIS) {
+                conn.fail(key, new SocketTimeoutException("Read timed out"));
+            }
+        }
+    }
+
+    /*
+     * this inner class keeps the state of one fetch while
+     * it moves through the selector loop
+     */
+    private static class Connection {
+
+        // the page being fetched
+        URLDepthPair pair;
+
+        // who gets the response
+        Handler handler;
+
+        // the request bytes still to be written
+        ByteBuffer request;
+
+        // the address to connect to, once it is resolved
+        InetSocketAddress address;
+
+        // why the address couldn't be resolved, null if it was
+        IOException error;
+
+        // the channel, once it has been opened
+        SocketChannel channel;
+
+        // the channel's key in the selector, once it is registered
+        SelectionKey key;
+
+        // TLS over the channel for an HTTPS page, null for a plain one
+        TLSChannel tls;
+
+        // last time anything happened on this connection
+        long lastActivity;
+
+        // set once the handler was told how the fetch ended, so it is only told once
+        boolean reported;
+
+        // when the fetch was asked for, the address was known, the
+        // request was out and the first response byte came, in nanoseconds
+        long started;
+        long resolved;
+        long sent;
+        long firstByte;
+
+        public Connection(URLDepthPair pair, String extraHeaders, Handler handler) {
+
+            this.pair = pair;
+            this.handler = handler;
+            this.lastActivity = System.currentTimeMillis();
+            this.started = System.nanoTime();
+
+            String req = "GET " + pair.getRequestTarget() + " HTTP/1.1\r\n"
+                + "Host: " + pair.getAuthority() + "\r\n"
+                + "User-Agent: " + Crawler.USER_AGENT + "\r\n"
+                + "Accept-Encoding: gzip, deflate\r\n"
+                + "Connection: close\r\n"
+                + extraHeaders
+                + "\r\n";
+            request = ByteBuffer.wrap(req.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        // tells the handler the server closed after the whole response
+        void done() {
+
+            reported = true;
+            handler.done();
+        }
+
+        // closes the channel and tells the handler the fetch failed, unless it was told already
+        void fail(SelectionKey key, IOException e) {
+
+            if (key != null) {
+                key.cancel();
+            }
+
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException ignored) {
+                // already failing
+            }
+
+            if (!reported) {
+                reported = true;
+                handler.failed(e);
+            }
+        }
+    }
+}
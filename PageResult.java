@@ -0,0 +1,63 @@
+/**
+ * This class is what the crawler reports about one page once it is done:
+ * the page, the status the server answered with, the bytes received, how
+ * long the fetch took and when it finished
+ */
+public class PageResult {
+
+    // the page
+    private URLDepthPair pair;
+
+    // the HTTP status, 0 for a page a resumed crawl had already done
+    private int status;
+
+    // bytes received for the page, headers included
+    private long bytes;
+
+    // from when the fetch started to when the page was done, in nanoseconds
+    private long nanos;
+
+    // when the page was done, in milliseconds since the epoch
+    private long finishedAt;
+
+    /*
+     * constructor for the result of one page
+     */
+    public PageResult(URLDepthPair pair, int status, long bytes, long nanos, long finishedAt) {
+
+        this.pair = pair;
+        this.status = status;
+        this.bytes = bytes;
+        this.nanos = nanos;
+        this.finishedAt = finishedAt;
+    }
+
+    public URLDepthPair getPair() {
+        return pair;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    /*
+     * toString method that we override to print the
+     * page the way the crawler always has
+     */
+    @Override
+    public String toString() {
+        return pair.toString();
+    }
+}
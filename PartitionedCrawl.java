@@ -0,0 +1,293 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * This class runs one crawl as several Crawler processes on this machine,
+ * each one owning the hosts a CrawlPartition gives it, so a crawl can use
+ * more sockets and cores than one JVM gets to. Every process writes its
+ * pages to its own binary results file and sorts it by depth and url when
+ * it is done. The files are then merged into the result sink in that same
+ * order, so the same crawl gives the same results however many processes
+ * ran it, and the totals every process printed follow in process order
+ */
+public class PartitionedCrawl {
+
+    // options the processes are given by run instead of passing them on
+    private static final String[] OWN_OPTIONS = { "--processes", "--results", "--results-format" };
+
+    // the order results are merged in, shallowest first and then by url
+    public static final Comparator<PageResult> ORDER = new Comparator<PageResult>() {
+        public int compare(PageResult a, PageResult b) {
+
+            int c = Integer.compare(a.getPair().getDepth(), b.getPair().getDepth());
+            return c != 0 ? c : a.getPair().getURL().compareTo(b.getPair().getURL());
+        }
+    };
+
+    /*
+     * runs the crawl Crawler's command line args describe as processes
+     * processes, and sends every page they crawled to sink
+     */
+    public static void run(String[] args, int processes, ResultSink sink) throws IOException, InterruptedException {
+
+        File dir = Files.createTempDirectory("crawler-partitions").toFile();
+
+        try {
+
+            int[] ports = freePorts(processes);
+            StringBuilder peers = new StringBuilder();
+            for (int port : ports) {
+                peers.append(peers.length() > 0 ? "," : "").append(port);
+            }
+
+            Process[] children = new Process[processes];
+
+            for (int i = 0; i < processes; i++) {
+
+                List<String> command = new ArrayList<String>();
+                command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add("Crawler");
+                command.addAll(passedOn(args));
+                command.add("--partition");
+                command.add(Integer.toString(i));
+                command.add("--peers");
+                command.add(peers.toString());
+                command.add("--results");
+                command.add(resultsFile(dir, i).getPath());
+                command.add("--results-format");
+                command.add("binary");
+
+                // what each one prints is shown together at the end, its metrics as they come
+                ProcessBuilder builder = new ProcessBuilder(command);
+                builder.redirectOutput(logFile(dir, i));
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                children[i] = builder.start();
+            }
+
+            boolean failed = false;
+            for (int i = 0; i < processes; i++) {
+                if (children[i].waitFor() != 0) {
+                    System.out.println("Process " + i + " of the crawl failed:");
+                    printFile(logFile(dir, i));
+                    failed = true;
+                }
+            }
+
+            if (failed) {
+                for (Process child : children) {
+                    child.destroy();
+                }
+                throw new IOException("the crawl didn't finish");
+            }
+
+            File[] parts = new File[processes];
+            for (int i = 0; i < processes; i++) {
+                parts[i] = resultsFile(dir, i);
+            }
+
+            try {
+                merge(parts, sink);
+            } finally {
+                sink.close();
+            }
+
+            for (int i = 0; i < processes; i++) {
+                printFile(logFile(dir, i));
+            }
+
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /*
+     * sorts the pages of a binary results file in ORDER, in place.
+     * every process does this to its own file before it exits
+     */
+    public static void sortResults(File file) throws IOException {
+
+        final List<PageResult> results = new ArrayList<PageResult>();
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BinaryResultSink.BUFFER_SIZE);
+        try {
+            BinaryResultSink.replay(in, new ResultSink() {
+
+                public void result(PageResult result) {
+                    results.add(result);
+                }
+
+                public void flush() {
+                }
+
+                public void close() {
+                }
+            });
+        } finally {
+            in.close();
+        }
+
+        Collections.sort(results, ORDER);
+
+        BinaryResultSink out = new BinaryResultSink(file);
+        try {
+            for (PageResult result : results) {
+                out.result(result);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /*
+     * merges binary results files that are each sorted in ORDER into sink,
+     * reading one page of each at a time
+     */
+    public static void merge(File[] parts, ResultSink sink) throws IOException {
+
+        PriorityQueue<Head> heads = new PriorityQueue<Head>();
+        List<InputStream> streams = new ArrayList<InputStream>();
+
+        try {
+
+            for (File part : parts) {
+
+                InputStream in = new BufferedInputStream(new FileInputStream(part), BinaryResultSink.BUFFER_SIZE);
+                streams.add(in);
+
+                Head head = new Head(new BinaryResultSink.Reader(in));
+                if (head.result != null) {
+                    heads.add(head);
+                }
+            }
+
+            while (!heads.isEmpty()) {
+
+                Head head = heads.poll();
+                sink.result(head.result);
+
+                head.result = head.reader.next();
+                if (head.result != null) {
+                    heads.add(head);
+                }
+            }
+
+        } finally {
+            for (InputStream in : streams) {
+                in.close();
+            }
+        }
+    }
+
+    // the command line of the crawl without the options run sets itself
+    private static List<String> passedOn(String[] args) {
+
+        List<String> options = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+
+            boolean own = false;
+            for (String option : OWN_OPTIONS) {
+                if (args[i].equals(option)) {
+                    own = true;
+                }
+            }
+
+            // every one of them takes a value
+            if (own) {
+                i++;
+            } else {
+                options.add(args[i]);
+            }
+        }
+        return options;
+    }
+
+    // loopback ports nothing listens on right now, one for every process
+    private static int[] freePorts(int count) throws IOException {
+
+        ServerSocket[] sockets = new ServerSocket[count];
+        int[] ports = new int[count];
+
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new ServerSocket();
+                sockets[i].bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return ports;
+    }
+
+    // where process i writes its pages
+    private static File resultsFile(File dir, int i) {
+        return new File(dir, "part" + i + ".bin");
+    }
+
+    // where process i prints its totals
+    private static File logFile(File dir, int i) {
+        return new File(dir, "part" + i + ".log");
+    }
+
+    // copies a file to standard output
+    private static void printFile(File file) throws IOException {
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                System.out.println(line);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * this inner class is the next page of one results file being merged
+     */
+    private static class Head implements Comparable<Head> {
+
+        // reads the rest of the file
+        BinaryResultSink.Reader reader;
+
+        // the page to be merged next, null at the end of the file
+        PageResult result;
+
+        Head(BinaryResultSink.Reader reader) throws IOException {
+
+            this.reader = reader;
+            this.result = reader.next();
+        }
+
+        public int compareTo(Head other) {
+            return ORDER.compare(result, other.result);
+        }
+    }
+}
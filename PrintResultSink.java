@@ -0,0 +1,32 @@
+import java.io.PrintStream;
+
+/**
+ * This class prints every page as it is done, one line each in the form
+ * the crawler always printed its results in
+ */
+public class PrintResultSink implements ResultSink {
+
+    // where the lines go
+    private PrintStream out;
+
+    /*
+     * constructor for a sink that prints to out
+     */
+    public PrintResultSink(PrintStream out) {
+
+        this.out = out;
+    }
+
+    public synchronized void result(PageResult result) {
+        out.println(result);
+    }
+
+    public synchronized void flush() {
+        out.flush();
+    }
+
+    // the stream isn't ours to close
+    public void close() {
+        flush();
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class remembers, across crawls, what each page said about itself and
+ * where it linked. For every page that came with an ETag or Last-Modified it
+ * keeps those and the page's outbound links in a small file named after the
+ * URL's fingerprint. The next crawl sends them back as If-None-Match and
+ * If-Modified-Since, and a 304 lets it reuse the links without the body
+ */
+public class ResponseCache {
+
+    // first bytes of every entry file
+    private static final int MAGIC = 0x52435031;
+
+    // the directory the entries are kept in
+    private File dir;
+
+    // lookups, pages the server said didn't change, and entries written
+    private AtomicLong lookups;
+    private AtomicLong notModified;
+    private AtomicLong stores;
+
+    /*
+     * constructor for a cache kept in dir, which
+     * is made if it doesn't exist
+     */
+    public ResponseCache(File dir) throws IOException {
+
+        this.dir = dir;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("couldn't make " + dir);
+        }
+
+        lookups = new AtomicLong();
+        notModified = new AtomicLong();
+        stores = new AtomicLong();
+    }
+
+    /*
+     * returns what was kept about a page, or null if nothing was
+     */
+    public Entry get(URLDepthPair pair) {
+
+        lookups.incrementAndGet();
+        File file = fileOf(pair);
+
+        try {
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+
+                if (in.readInt() != MAGIC) {
+                    return null;
+                }
+
+                // two urls may share a fingerprint, so the url itself is checked
+                if (!in.readUTF().equals(pair.getURL())) {
+                    return null;
+                }
+
+                Entry entry = new Entry();
+                entry.etag = readOptional(in);
+                entry.lastModified = readOptional(in);
+
+                int count = in.readInt();
+                entry.links = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++) {
+                    entry.links.add(in.readUTF());
+                }
+                return entry;
+
+            } finally {
+                in.close();
+            }
+
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            // a damaged entry is as good as none
+            return null;
+        }
+    }
+
+    /*
+     * keeps the validators and links of a page that was just fetched.
+     * a page without validators can't be asked about, so it is dropped
+     */
+    public void put(URLDepthPair pair, HTTPResponse response, List<URLDepthPair> links) throws IOException {
+
+        String etag = response.getHeader("etag");
+        String lastModified = response.getHeader("last-modified");
+        File file = fileOf(pair);
+
+        if (etag == null && lastModified == null) {
+            file.delete();
+            return;
+        }
+
+        File parent = file.getParentFile();
+        if (!parent.isDirectory()) {
+            parent.mkdirs();
+        }
+
+        // written next to the entry and swapped in, so a reader never sees half of it
+        File temp = new File(parent, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+        try {
+
+            out.writeInt(MAGIC);
+            out.writeUTF(pair.getURL());
+            writeOptional(out, etag);
+            writeOptional(out, lastModified);
+
+            out.writeInt(links.size());
+            for (URLDepthPair link : links) {
+                out.writeUTF(link.getURL());
+            }
+
+        } finally {
+            out.close();
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        stores.incrementAndGet();
+    }
+
+    /*
+     * counts a page the server said didn't change
+     */
+    public void recordNotModified() {
+        notModified.incrementAndGet();
+    }
+
+    /*
+     * toString method that we override to report
+     * how many pages didn't have to be downloaded
+     */
+    @Override
+    public String toString() {
+
+        return "Cache lookups: " + lookups.get() + ", Not modified: " + notModified.get()
+            + ", Stored: " + stores.get();
+    }
+
+    // the file of a page, spread over 256 directories by fingerprint
+    private File fileOf(URLDepthPair pair) {
+
+        String name = String.format("%016x", pair.getFingerprint());
+        return new File(new File(dir, name.substring(0, 2)), name + ".page");
+    }
+
+    // reads a string that may be missing
+    private static String readOptional(DataInputStream in) throws IOException {
+
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // writes a string that may be missing
+    private static void writeOptional(DataOutputStream out, String s) throws IOException {
+
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    /*
+     * this inner class is what was kept about one page
+     */
+    public static class Entry {
+
+        // the validators the server sent, either may be null
+        private String etag;
+        private String lastModified;
+
+        // the urls the page linked to
+        private List<String> links;
+
+        /*
+         * returns the header lines that ask the server to
+         * answer 304 if the page didn't change
+         */
+        public String getConditionalHeaders() {
+
+            String headers = "";
+            if (etag != null) {
+                headers += "If-None-Match: " + etag + "\r\n";
+            }
+            if (lastModified != null) {
+                headers += "If-Modified-Since: " + lastModified + "\r\n";
+            }
+            return headers;
+        }
+
+        /*
+         * returns the urls the page linked to
+         */
+        public List<String> getLinks() {
+            return links;
+        }
+    }
+}
@@ -0,0 +1,565 @@
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class decodes an HTTP/1.1 response that arrives in pieces, the way the
+ * non-blocking fetcher reads it. It is pushed bytes as they come off the wire,
+ * collects the status line and headers, strips chunked framing and inflates a
+ * gzip or deflate body on the fly, handing only the page itself to its sink
+ */
+public class ResponseDecoder {
+
+    // longest header block we accept
+    public static final int MAX_HEADER_LENGTH = 64 * 1024;
+
+    // size of the buffers compressed and inflated bytes go through
+    private static final int BUFFER_SIZE = 8192;
+
+    /*
+     * receives the decoded body. the bytes are only
+     * valid during the call
+     */
+    public interface BodySink {
+        void body(byte[] buf, int off, int len);
+    }
+
+    // where the decoder is in the response
+    private static final int HEADERS = 0;
+    private static final int LENGTH = 1;
+    private static final int CHUNK_SIZE = 2;
+    private static final int CHUNK_DATA = 3;
+    private static final int CHUNK_END = 4;
+    private static final int TRAILERS = 5;
+    private static final int UNTIL_CLOSE = 6;
+    private static final int DONE = 7;
+
+    // how the body is compressed
+    private static final int IDENTITY = 0;
+    private static final int GZIP = 1;
+    private static final int DEFLATE = 2;
+
+    // where we are in the gzip header, whose optional parts follow in this order
+    private static final int GZ_FIXED = 0;
+    private static final int GZ_EXTRA_LEN = 1;
+    private static final int GZ_EXTRA = 2;
+    private static final int GZ_NAME = 3;
+    private static final int GZ_COMMENT = 4;
+    private static final int GZ_HCRC = 5;
+    private static final int GZ_DONE = 6;
+
+    // gzip header flags
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    // who gets the body
+    private BodySink sink;
+
+    // where the decoder is in the response
+    private int state;
+
+    // the header block collected so far
+    private byte[] head;
+    private int headLength;
+
+    // the chunk size or trailer line collected so far
+    private StringBuilder line;
+
+    // bytes left in the body or the current chunk
+    private long remaining;
+
+    // the parsed status and headers, null until they are all in
+    private HTTPResponse response;
+
+    // how the body is compressed
+    private int coding;
+
+    // inflates the body, made once we know how it is compressed
+    private Inflater inflater;
+
+    // set once the compressed stream ended, anything after it is the gzip trailer
+    private boolean inflated;
+
+    // set unless the body is handed over still compressed, for someone else to inflate
+    private boolean inflating;
+
+    // where we are in the gzip header
+    private int gzipStep;
+    private int gzipFlags;
+    private int gzipCount;
+    private int gzipSkip;
+
+    // buffers bytes are copied out of a ByteBuffer into, and inflated into
+    private byte[] scratch;
+    private byte[] out;
+
+    // bytes that came off the wire, and bytes of body handed to the sink
+    private long bytesReceived;
+    private long bytesDecoded;
+
+    /*
+     * constructor for a decoder that hands
+     * the body to sink
+     */
+    public ResponseDecoder(BodySink sink) {
+
+        this.sink = sink;
+        this.state = HEADERS;
+        this.head = new byte[1024];
+        this.line = new StringBuilder();
+        this.inflating = true;
+    }
+
+    /*
+     * sets whether the body is inflated before it goes to the sink,
+     * or handed over with only its framing stripped. must be set
+     * before the body starts
+     */
+    public void setInflating(boolean inflating) {
+        this.inflating = inflating;
+    }
+
+    /*
+     * decodes the next bytes of the response, all
+     * that are left in buf
+     */
+    public void feed(ByteBuffer buf) throws IOException {
+
+        if (scratch == null) {
+            scratch = new byte[BUFFER_SIZE];
+        }
+
+        while (buf.hasRemaining()) {
+            int n = Math.min(buf.remaining(), scratch.length);
+            buf.get(scratch, 0, n);
+            feed(scratch, 0, n);
+        }
+    }
+
+    /*
+     * decodes the next len bytes of the response
+     */
+    public void feed(byte[] buf, int off, int len) throws IOException {
+
+        bytesReceived += len;
+        int end = off + len;
+
+        while (off < end && state != DONE) {
+
+            switch (state) {
+
+                case HEADERS:
+                    off = readHead(buf, off, end);
+                    break;
+
+                case LENGTH:
+                case CHUNK_DATA: {
+                    int n = (int) Math.min(remaining, end - off);
+                    inflate(buf, off, n);
+                    off += n;
+                    remaining -= n;
+                    if (remaining == 0) {
+                        if (state == LENGTH) {
+                            complete();
+                        } else {
+                            state = CHUNK_END;
+                        }
+                    }
+                    break;
+                }
+
+                case CHUNK_SIZE:
+                    off = readLine(buf, off, end);
+                    if (line.length() > 0 && line.charAt(line.length() - 1) == '\n') {
+                        startChunk(trimLine());
+                    }
+                    break;
+
+                case CHUNK_END:
+                    off = readLine(buf, off, end);
+                    if (line.length() > 0 && line.charAt(line.length() - 1) == '\n') {
+                        line.setLength(0);
+                        state = CHUNK_SIZE;
+                    }
+                    break;
+
+                case TRAILERS:
+                    off = readLine(buf, off, end);
+                    if (line.length() > 0 && line.charAt(line.length() - 1) == '\n') {
+                        if (trimLine().isEmpty()) {
+                            complete();
+                        }
+                    }
+                    break;
+
+                case UNTIL_CLOSE:
+                    inflate(buf, off, end - off);
+                    off = end;
+                    break;
+            }
+        }
+    }
+
+    /*
+     * tells the decoder the connection closed. that is fine once the
+     * response is complete or it runs until close, otherwise it was cut short
+     */
+    public void finish() throws IOException {
+
+        if (state == UNTIL_CLOSE) {
+            complete();
+        }
+
+        if (state != DONE) {
+            end();
+            throw new EOFException("connection closed before the end of the response");
+        }
+    }
+
+    /*
+     * frees the inflater of a response that
+     * will not be decoded any further
+     */
+    public void end() {
+
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    /*
+     * returns true once the whole response was read
+     */
+    public boolean isComplete() {
+        return state == DONE;
+    }
+
+    /*
+     * returns the status and headers, or null
+     * if they haven't all arrived yet
+     */
+    public HTTPResponse getResponse() {
+        return response;
+    }
+
+    /*
+     * returns the bytes that came off the wire,
+     * headers and framing included
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /*
+     * returns the bytes of body handed to the sink,
+     * after inflating
+     */
+    public long getBytesDecoded() {
+        return bytesDecoded;
+    }
+
+    /*
+     * collects the header block up to the empty line that ends it,
+     * then works out how the body is framed and compressed
+     */
+    private int readHead(byte[] buf, int off, int end) throws IOException {
+
+        while (off < end) {
+
+            byte b = buf[off++];
+
+            if (headLength == head.length) {
+                if (headLength >= MAX_HEADER_LENGTH) {
+                    throw new IOException("headers too long");
+                }
+                head = Arrays.copyOf(head, headLength * 2);
+            }
+            head[headLength++] = b;
+
+            // the headers end at an empty line, with or without carriage returns
+            if (b == '\n' && (endsWith(head, headLength, "\n\n") || endsWith(head, headLength, "\n\r\n"))) {
+
+                if (isInterim()) {
+                    headLength = 0;
+                    continue;
+                }
+
+                response = new HTTPResponse(new ByteArrayInputStream(head, 0, headLength));
+                head = null;
+                startBody();
+                return off;
+            }
+        }
+
+        return off;
+    }
+
+    // returns true if the header block is an interim 1xx response
+    private boolean isInterim() {
+
+        int space = 0;
+        while (space < headLength && head[space] != ' ') {
+            space++;
+        }
+        return space + 1 < headLength && head[space + 1] == '1';
+    }
+
+    // picks the framing and compression of the body
+    private void startBody() {
+
+        String encoding = response.getHeader("content-encoding");
+        encoding = encoding == null ? "" : encoding.trim().toLowerCase();
+
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            coding = GZIP;
+            inflater = new Inflater(true);
+        } else if (encoding.equals("deflate")) {
+            // whether it has a zlib header is only known from its first byte
+            coding = DEFLATE;
+        } else {
+            // an encoding we don't know is passed through
+            coding = IDENTITY;
+        }
+
+        if (response.getContentLength() == 0) {
+            complete();
+        } else if (response.isChunked()) {
+            state = CHUNK_SIZE;
+        } else if (response.getContentLength() > 0) {
+            remaining = response.getContentLength();
+            state = LENGTH;
+        } else {
+            state = UNTIL_CLOSE;
+        }
+    }
+
+    // starts the chunk whose size line was just read
+    private void startChunk(String sizeLine) throws IOException {
+
+        // chunk extensions follow a semicolon
+        int semi = sizeLine.indexOf(';');
+        if (semi >= 0) {
+            sizeLine = sizeLine.substring(0, semi);
+        }
+
+        try {
+            remaining = Long.parseLong(sizeLine.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad chunk size: " + sizeLine);
+        }
+
+        // a sign is allowed by parseLong but not by HTTP
+        if (remaining < 0) {
+            throw new IOException("bad chunk size: " + sizeLine);
+        }
+
+        state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+    }
+
+    // adds bytes to the current line up to and including its newline
+    private int readLine(byte[] buf, int off, int end) throws IOException {
+
+        while (off < end) {
+
+            char c = (char) (buf[off++] & 0xff);
+            line.append(c);
+
+            if (c == '\n') {
+                return off;
+            }
+
+            if (line.length() > HTTPResponse.MAX_LINE_LENGTH) {
+                throw new IOException("line too long");
+            }
+        }
+
+        return off;
+    }
+
+    // returns the current line without its line ending and starts a new one
+    private String trimLine() {
+
+        int len = line.length() - 1;
+        if (len > 0 && line.charAt(len - 1) == '\r') {
+            len--;
+        }
+
+        String s = line.substring(0, len);
+        line.setLength(0);
+        return s;
+    }
+
+    // marks the response as read
+    private void complete() {
+
+        state = DONE;
+        end();
+    }
+
+    /*
+     * undoes the content encoding of the next len bytes
+     * of body and hands the result to the sink
+     */
+    private void inflate(byte[] buf, int off, int len) throws IOException {
+
+        if (coding == IDENTITY || !inflating) {
+            bytesDecoded += len;
+            sink.body(buf, off, len);
+            return;
+        }
+
+        if (inflated) {
+            return; // the gzip trailer, or junk after the stream
+        }
+
+        if (coding == GZIP && gzipStep != GZ_DONE) {
+            int n = skipGzipHeader(buf, off, len);
+            off += n;
+            len -= n;
+        }
+
+        if (coding == DEFLATE && inflater == null && len > 0) {
+            // deflate should come with a zlib header, but some servers send it raw
+            inflater = new Inflater(!HTTPResponse.isZlibHeader(buf[off] & 0xff));
+        }
+
+        if (len == 0) {
+            return;
+        }
+
+        if (out == null) {
+            out = new byte[BUFFER_SIZE];
+        }
+
+        inflater.setInput(buf, off, len);
+
+        try {
+
+            while (true) {
+
+                int n = inflater.inflate(out);
+
+                if (n > 0) {
+                    bytesDecoded += n;
+                    sink.body(out, 0, n);
+                }
+
+                if (inflater.finished()) {
+                    inflated = true;
+                    return;
+                }
+
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("compressed body needs a dictionary");
+                    }
+                    return;
+                }
+            }
+
+        } catch (DataFormatException e) {
+            throw new IOException("bad compressed body: " + e.getMessage());
+        }
+    }
+
+    /*
+     * reads past as much of the gzip header as is in buf,
+     * returning how many bytes it took up
+     */
+    private int skipGzipHeader(byte[] buf, int off, int len) throws IOException {
+
+        int i = off;
+        int end = off + len;
+
+        while (i < end && gzipStep != GZ_DONE) {
+
+            int c = buf[i++] & 0xff;
+
+            switch (gzipStep) {
+
+                case GZ_FIXED:
+                    if ((gzipCount == 0 && c != 0x1f) || (gzipCount == 1 && c != 0x8b) || (gzipCount == 2 && c != 8)) {
+                        throw new IOException("not in gzip format");
+                    }
+                    if (gzipCount == 3) {
+                        gzipFlags = c;
+                    }
+                    if (++gzipCount == 10) {
+                        gzipCount = 0;
+                        gzipStep = nextGzipStep(GZ_FIXED);
+                    }
+                    break;
+
+                case GZ_EXTRA_LEN:
+                    gzipSkip |= c << (8 * gzipCount);
+                    if (++gzipCount == 2) {
+                        gzipCount = 0;
+                        gzipStep = gzipSkip == 0 ? nextGzipStep(GZ_EXTRA) : GZ_EXTRA;
+                    }
+                    break;
+
+                case GZ_EXTRA:
+                    if (--gzipSkip == 0) {
+                        gzipStep = nextGzipStep(GZ_EXTRA);
+                    }
+                    break;
+
+                case GZ_NAME:
+                case GZ_COMMENT:
+                    // both end with a zero byte
+                    if (c == 0) {
+                        gzipStep = nextGzipStep(gzipStep);
+                    }
+                    break;
+
+                case GZ_HCRC:
+                    if (++gzipCount == 2) {
+                        gzipStep = GZ_DONE;
+                    }
+                    break;
+            }
+        }
+
+        return i - off;
+    }
+
+    // the part of the gzip header that comes after step, going by its flags
+    private int nextGzipStep(int step) {
+
+        if (step < GZ_EXTRA_LEN && (gzipFlags & FEXTRA) != 0) {
+            return GZ_EXTRA_LEN;
+        }
+        if (step < GZ_NAME && (gzipFlags & FNAME) != 0) {
+            return GZ_NAME;
+        }
+        if (step < GZ_COMMENT && (gzipFlags & FCOMMENT) != 0) {
+            return GZ_COMMENT;
+        }
+        if (step < GZ_HCRC && (gzipFlags & FHCRC) != 0) {
+            return GZ_HCRC;
+        }
+        return GZ_DONE;
+    }
+
+    // returns true if the first len bytes of buf end with suffix
+    private static boolean endsWith(byte[] buf, int len, String suffix) {
+
+        int n = suffix.length();
+        if (len < n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (buf[len - n + i] != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,18 @@
+import java.io.IOException;
+
+/**
+ * This interface receives every page the crawler finishes, as soon as it is
+ * done, instead of all of them at the end. Results may come from several
+ * threads at once, so implementations must be thread safe
+ */
+public interface ResultSink {
+
+    // takes the result of one page
+    void result(PageResult result) throws IOException;
+
+    // pushes out anything buffered, at the end of the crawl and before a checkpoint
+    void flush() throws IOException;
+
+    // flushes and lets go of whatever the results were written to
+    void close() throws IOException;
+}
@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class decides what happens to a fetch that failed. Failures that may
+ * go away by themselves, a timeout, a refused or reset connection or a server
+ * saying it is overloaded, are tried again after a delay that doubles with
+ * every attempt, with random jitter so the retries of many pages don't all
+ * come back at once. Other failures, and pages out of attempts, are given up.
+ * A host that keeps failing is dropped once it failed a number of fetches in
+ * a row, so a dead host doesn't take fetches away from healthy ones
+ */
+public class RetryQueue {
+
+    // fetches of one page, the first one included
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+    // failures in a row after which a host is dropped
+    public static final int DEFAULT_MAX_HOST_FAILURES = 10;
+
+    // delay before the first retry, and the most a retry waits, in milliseconds
+    public static final long BASE_DELAY_MILLIS = 500;
+    public static final long MAX_DELAY_MILLIS = 30000;
+
+    // what failed returns
+    public static final int RETRY = 0;
+    public static final int GIVE_UP = 1;
+    public static final int DROP_HOST = 2;
+
+    // fetches of one page allowed
+    private int maxAttempts;
+
+    // failures in a row that drop a host
+    private int maxHostFailures;
+
+    // pages waiting to be tried again, the one due first on top
+    private PriorityQueue<Retry> waiting;
+
+    // failed attempts of every page that failed and wasn't given up, by fingerprint
+    private HashMap<Long, Integer> attempts;
+
+    // pages in a row that failed their first fetch, of every host whose last one did
+    private HashMap<String, Integer> hostFailures;
+
+    // hosts that failed too often
+    private HashSet<String> dropped;
+
+    // retries made, pages that made it on a retry, and pages given up
+    private long retried;
+    private long recovered;
+    private long givenUp;
+
+    /*
+     * constructor that allows DEFAULT_MAX_ATTEMPTS fetches of a page
+     * and drops a host after DEFAULT_MAX_HOST_FAILURES failures in a row
+     */
+    public RetryQueue() {
+
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_MAX_HOST_FAILURES);
+    }
+
+    /*
+     * constructor that allows maxAttempts fetches of a page and
+     * drops a host after maxHostFailures failures in a row
+     */
+    public RetryQueue(int maxAttempts, int maxHostFailures) {
+
+        this.maxAttempts = maxAttempts;
+        this.maxHostFailures = maxHostFailures;
+        waiting = new PriorityQueue<Retry>();
+        attempts = new HashMap<Long, Integer>();
+        hostFailures = new HashMap<String, Integer>();
+        dropped = new HashSet<String>();
+    }
+
+    /*
+     * returns true if a failure of one of CrawlMetrics' ERROR
+     * kinds may go away when the page is fetched again
+     */
+    public static boolean isRetryable(int error) {
+
+        return error == CrawlMetrics.ERROR_TIMEOUT || error == CrawlMetrics.ERROR_CONNECT
+            || error == CrawlMetrics.ERROR_RESET || error == CrawlMetrics.ERROR_HTTP_5XX;
+    }
+
+    /*
+     * returns true if a response with status means the
+     * server had trouble and the page may be tried again
+     */
+    public static boolean isRetryableStatus(int status) {
+
+        return status == 429 || status >= 500;
+    }
+
+    /*
+     * returns how long to wait before trying again after attempt failed,
+     * counting from 1. the delay doubles every attempt, and a random half
+     * to a whole of it is waited
+     */
+    public static long delayMillis(int attempt) {
+
+        long delay = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /*
+     * counts a failed fetch of a page with one of CrawlMetrics' ERROR kinds.
+     * returns RETRY if it was queued to be fetched again, DROP_HOST if its
+     * host just failed too often and must be dropped, and GIVE_UP otherwise
+     */
+    public synchronized int failed(URLDepthPair pair, int error) {
+
+        String host = pair.getHost();
+
+        if (dropped.contains(host)) {
+            forget(pair);
+            return GIVE_UP;
+        }
+
+        Integer before = attempts.get(pair.getFingerprint());
+        int attempt = before == null ? 1 : before + 1;
+
+        // only first attempts count, so a few broken pages retried
+        // over and over at the end of a crawl don't drop their host
+        if (attempt == 1) {
+
+            Integer inARow = hostFailures.get(host);
+            int failures = inARow == null ? 1 : inARow + 1;
+            hostFailures.put(host, failures);
+
+            if (failures >= maxHostFailures) {
+                dropped.add(host);
+                forget(pair);
+                return DROP_HOST;
+            }
+        }
+
+        if (!isRetryable(error) || attempt >= maxAttempts) {
+            forget(pair);
+            return GIVE_UP;
+        }
+
+        attempts.put(pair.getFingerprint(), attempt);
+
+        waiting.add(new Retry(pair, System.nanoTime() + delayMillis(attempt) * 1000000L));
+        retried++;
+        return RETRY;
+    }
+
+    /*
+     * counts a fetch that worked, so its host is healthy again
+     */
+    public synchronized void succeeded(URLDepthPair pair) {
+
+        if (!hostFailures.isEmpty()) {
+            hostFailures.remove(pair.getHost());
+        }
+
+        if (!attempts.isEmpty() && attempts.remove(pair.getFingerprint()) != null) {
+            recovered++;
+        }
+    }
+
+    /*
+     * takes every page whose retry is due
+     */
+    public synchronized List<URLDepthPair> pollDue() {
+
+        List<URLDepthPair> due = new ArrayList<URLDepthPair>();
+        long now = System.nanoTime();
+
+        while (!waiting.isEmpty() && waiting.peek().due - now <= 0) {
+            due.add(waiting.poll().pair);
+        }
+        return due;
+    }
+
+    /*
+     * takes the pages of a dropped host that were waiting to
+     * be tried again, since they never will be
+     */
+    public synchronized List<URLDepthPair> removeHost(String host) {
+
+        List<URLDepthPair> removed = new ArrayList<URLDepthPair>();
+
+        for (Iterator<Retry> it = waiting.iterator(); it.hasNext(); ) {
+
+            URLDepthPair pair = it.next().pair;
+            if (pair.getHost().equals(host)) {
+                it.remove();
+                forget(pair);
+                removed.add(pair);
+            }
+        }
+        return removed;
+    }
+
+    /*
+     * counts pages given up without being fetched, like
+     * the ones pending on a host when it was dropped
+     */
+    public synchronized void gaveUp(long pages) {
+
+        givenUp += pages;
+    }
+
+    /*
+     * returns true if host failed too often and is no longer fetched
+     */
+    public synchronized boolean isDropped(String host) {
+        return dropped.contains(host);
+    }
+
+    /*
+     * returns the number of pages waiting to be tried again
+     */
+    public synchronized int size() {
+        return waiting.size();
+    }
+
+    /*
+     * returns true if no page is waiting to be tried again
+     */
+    public synchronized boolean isEmpty() {
+        return waiting.isEmpty();
+    }
+
+    // lets go of a page that won't be fetched again
+    private void forget(URLDepthPair pair) {
+
+        attempts.remove(pair.getFingerprint());
+        givenUp++;
+    }
+
+    /*
+     * returns what was retried and what was given up
+     */
+    public synchronized String toString() {
+
+        return "Retries: " + retried + ", Recovered: " + recovered + ", Given up: " + givenUp
+            + ", Hosts dropped: " + dropped.size();
+    }
+
+    /*
+     * this inner class is a page waiting to be fetched again
+     */
+    private static class Retry implements Comparable<Retry> {
+
+        // the page
+        URLDepthPair pair;
+
+        // when it may be fetched again, in nanoseconds
+        long due;
+
+        Retry(URLDepthPair pair, long due) {
+            this.pair = pair;
+            this.due = due;
+        }
+
+        public int compareTo(Retry other) {
+            return Long.compare(due, other.due);
+        }
+    }
+}
@@ -0,0 +1,454 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class decides which pages the crawler may fetch, going by the
+ * robots.txt of their hosts. Each robots.txt is fetched once, in the
+ * background, compiled into RobotsRules and kept for a TTL. Once a host's
+ * rules are known a check is just a walk of their trie. Pages found before
+ * that wait here and are handed back to the Listener when the rules arrive.
+ * Expired rules are still used while the new ones are fetched. A robots.txt
+ * that couldn't be fetched, or came back with a server error, is tried again
+ * with RetryQueue's backoff while its pages keep waiting, and only after the
+ * last attempt is the host kept out for a while. Redirects are followed up
+ * to MAX_REDIRECTS times, and the rules found apply to the first host
+ */
+public class RobotsCache {
+
+    // how long a robots.txt is kept, in milliseconds
+    public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000;
+
+    // how long we stay away from a host whose robots.txt we couldn't get, in milliseconds
+    public static final long DEFAULT_NEGATIVE_TTL = 30 * 60 * 1000;
+
+    // most of a robots.txt we read, anything after is ignored
+    public static final int MAX_ROBOTS_SIZE = 500 * 1024;
+
+    // longest Crawl-delay we honour, in seconds
+    public static final double MAX_CRAWL_DELAY = 60;
+
+    // threads fetching robots.txt files
+    public static final int FETCH_THREADS = 4;
+
+    // redirects followed to a robots.txt, as RFC 9309 asks for at least
+    public static final int MAX_REDIRECTS = 5;
+
+    // what check says about a page
+    public static final int ALLOWED = 0;
+    public static final int DISALLOWED = 1;
+    public static final int WAITING = 2;
+
+    /*
+     * is told about the robots.txt fetches. every fetchStarted
+     * is followed by one rulesReady, on a fetching thread
+     */
+    public interface Listener {
+
+        // a robots.txt fetch is starting
+        void fetchStarted();
+
+        // a page has to wait for its host's robots.txt, called before check returns
+        void waiting(URLDepthPair pair);
+
+        // the rules came in, and these pages waited for them
+        void rulesReady(List<URLDepthPair> waiting);
+    }
+
+    // the agent our robots.txt rules are picked for
+    private String agent;
+
+    // the User-Agent header we send
+    private String userAgent;
+
+    // connections to fetch robots.txt on
+    private HostConnectionPool pool;
+
+    // the frontier, told about Crawl-delays
+    private HostScheduler scheduler;
+
+    // told when pages wait and rules arrive
+    private Listener listener;
+
+    // how long rules are kept
+    private long ttl;
+    private long negativeTTL;
+
+    // the robots.txt of every host, chained when a host has more than one port or scheme
+    private ConcurrentHashMap<String, Entry> entries;
+
+    // threads fetching robots.txt files, and waiting to try failed ones again
+    private ScheduledExecutorService fetchers;
+
+    // checks done, pages they kept out, and robots.txt files fetched
+    private AtomicLong checks;
+    private AtomicLong disallowed;
+    private AtomicLong fetches;
+
+    // fetches tried again, and pages kept out because their robots.txt never came
+    private AtomicLong retries;
+    private AtomicLong unreachable;
+
+    /*
+     * constructor for a cache that fetches robots.txt over pool as
+     * userAgent, uses the rules for agent and tells scheduler the delays
+     */
+    public RobotsCache(HostConnectionPool pool, HostScheduler scheduler, String agent,
+                       String userAgent, Listener listener) {
+
+        this.pool = pool;
+        this.scheduler = scheduler;
+        this.agent = agent;
+        this.userAgent = userAgent;
+        this.listener = listener;
+        this.ttl = DEFAULT_TTL;
+        this.negativeTTL = DEFAULT_NEGATIVE_TTL;
+        entries = new ConcurrentHashMap<String, Entry>();
+
+        fetchers = Executors.newScheduledThreadPool(FETCH_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "robots-fetcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        checks = new AtomicLong();
+        disallowed = new AtomicLong();
+        fetches = new AtomicLong();
+        retries = new AtomicLong();
+        unreachable = new AtomicLong();
+    }
+
+    /*
+     * checks whether a page may be fetched. a page whose host's robots.txt
+     * isn't in yet is WAITING, and is given back to the listener later
+     */
+    public int check(URLDepthPair pair) {
+
+        checks.incrementAndGet();
+
+        long now = System.currentTimeMillis();
+        Entry entry = find(pair);
+
+        // the usual case, rules known and fresh
+        if (entry != null) {
+            RobotsRules rules = entry.rules;
+            if (rules != null && now < entry.expires) {
+                return verdict(rules, pair);
+            }
+        }
+
+        synchronized (this) {
+
+            entry = find(pair);
+            if (entry == null) {
+                entry = new Entry(pair, entries.get(pair.getHost()));
+                entries.put(pair.getHost(), entry);
+            }
+
+            RobotsRules rules = entry.rules;
+
+            if (now >= entry.expires && !entry.fetching) {
+                entry.fetching = true;
+                listener.fetchStarted();
+                fetchers.execute(new Fetch(entry));
+            }
+
+            // old rules are good enough while the new ones are fetched
+            if (rules != null) {
+                return verdict(rules, pair);
+            }
+
+            if (entry.waiting == null) {
+                entry.waiting = new ArrayList<URLDepthPair>();
+            }
+            entry.waiting.add(pair);
+            listener.waiting(pair);
+            return WAITING;
+        }
+    }
+
+    /*
+     * stops fetching robots.txt files
+     */
+    public void close() {
+
+        fetchers.shutdownNow();
+    }
+
+    /*
+     * returns the number of pages kept out because
+     * their host's robots.txt couldn't be fetched
+     */
+    public long getUnreachableCount() {
+        return unreachable.get();
+    }
+
+    /*
+     * toString method that we override to report
+     * how many pages robots.txt kept out
+     */
+    @Override
+    public String toString() {
+
+        return "Robots files: " + fetches.get() + ", Retries: " + retries.get() + ", Checks: " + checks.get()
+            + ", Disallowed: " + disallowed.get() + ", Unreachable: " + unreachable.get();
+    }
+
+    // returns what rules say about pair, counting the pages kept out
+    private int verdict(RobotsRules rules, URLDepthPair pair) {
+
+        if (rules.isAllowed(pair)) {
+            return ALLOWED;
+        }
+
+        // only a robots.txt we couldn't get is DISALLOW_ALL itself, a parsed one never is
+        if (rules == RobotsRules.DISALLOW_ALL) {
+            unreachable.incrementAndGet();
+        } else {
+            disallowed.incrementAndGet();
+        }
+        return DISALLOWED;
+    }
+
+    // returns the entry for the scheme, host and port of pair, or null
+    private Entry find(URLDepthPair pair) {
+
+        boolean secure = pair.isSecure();
+        int port = pair.getPort();
+
+        Entry entry = entries.get(pair.getHost());
+        while (entry != null && (entry.port != port || entry.secure != secure)) {
+            entry = entry.next;
+        }
+        return entry;
+    }
+
+    /*
+     * fetches the robots.txt of entry and compiles it. a missing one allows
+     * everything, and one we couldn't get throws an IOException
+     */
+    private RobotsRules download(Entry entry) throws IOException {
+
+        return download(entry.host, entry.port, entry.secure, entry.authority, "/robots.txt", 0);
+    }
+
+    /*
+     * fetches path from a host, following a redirect by calling itself
+     * until MAX_REDIRECTS of them were followed, and compiles what it gets
+     */
+    private RobotsRules download(String host, int port, boolean secure, String authority, String path,
+                                 int redirects) throws IOException {
+
+        URL redirect = null;
+
+        // a reused connection may have been closed by the server, so try twice
+        for (int attempt = 0; ; attempt++) {
+
+            HostConnectionPool.PooledConnection conn = pool.acquire(host, port, secure);
+            boolean reusable = false;
+
+            try {
+
+                OutputStream os = conn.getOutputStream();
+                PrintWriter writer = new PrintWriter(os);
+                writer.print("GET " + path + " HTTP/1.1\r\n");
+                writer.print("Host: " + authority + "\r\n");
+                writer.print("User-Agent: " + userAgent + "\r\n");
+                writer.print("Accept-Encoding: gzip, deflate\r\n");
+                writer.print("\r\n");
+                writer.flush();
+
+                if (writer.checkError()) {
+                    throw new IOException("write failed");
+                }
+
+                HTTPResponse response = new HTTPResponse(conn.getInputStream());
+                int status = response.getStatus();
+
+                // the server is in trouble, so it may have one after all
+                if (RetryQueue.isRetryableStatus(status)) {
+                    throw new IOException("robots.txt gave " + status);
+                }
+
+                // no robots.txt, or one somewhere else
+                if (status >= 300) {
+
+                    response.drain();
+                    reusable = response.isReusable();
+
+                    if (status < 400) {
+                        redirect = redirectTarget(host, port, secure, path, response.getHeader("location"));
+                    }
+
+                    // a redirect we can't follow, or one too many, is as good as no robots.txt
+                    if (redirect == null || redirects >= MAX_REDIRECTS) {
+                        return RobotsRules.ALLOW_ALL;
+                    }
+                    break;
+                }
+
+                ByteArrayOutputStream text = new ByteArrayOutputStream();
+                InputStream body = response.getBody();
+                byte[] buf = new byte[8192];
+                int n;
+
+                while (text.size() < MAX_ROBOTS_SIZE && (n = body.read(buf, 0, buf.length)) != -1) {
+                    text.write(buf, 0, n);
+                }
+
+                // a robots.txt too big to read all of isn't worth draining
+                if (text.size() < MAX_ROBOTS_SIZE) {
+                    response.drain();
+                    reusable = response.isReusable();
+                }
+
+                return RobotsRules.parse(text.toString(StandardCharsets.UTF_8.name()), agent);
+
+            } catch (IOException e) {
+                if (!conn.wasReused() || attempt > 0) {
+                    throw e;
+                }
+            } finally {
+                pool.release(conn, reusable);
+            }
+        }
+
+        int redirectPort = redirect.getPort() == -1 ? redirect.getDefaultPort() : redirect.getPort();
+        String file = redirect.getFile().isEmpty() ? "/" : redirect.getFile();
+
+        return download(redirect.getHost(), redirectPort, redirect.getProtocol().equals("https"),
+            redirect.getAuthority(), file, redirects + 1);
+    }
+
+    // returns where a redirect from path on a host goes, or null
+    // if it has no location or one that isn't on the web
+    private static URL redirectTarget(String host, int port, boolean secure, String path, String location) {
+
+        if (location == null) {
+            return null;
+        }
+
+        try {
+            URL target = new URL(new URL(secure ? "https" : "http", host, port, path), location.trim());
+
+            if (!target.getProtocol().equals("http") && !target.getProtocol().equals("https")) {
+                return null;
+            }
+            return target;
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /*
+     * this inner class fetches the robots.txt of one
+     * entry and hands back the pages that waited for it
+     */
+    private class Fetch implements Runnable {
+
+        // the entry being fetched
+        private Entry entry;
+
+        // attempts that failed so far
+        private int failures;
+
+        public Fetch(Entry entry) {
+            this.entry = entry;
+        }
+
+        public void run() {
+
+            RobotsRules rules;
+            long keep;
+
+            try {
+                rules = download(entry);
+                keep = ttl;
+            } catch (IOException e) {
+
+                // the host may answer later, and until then its pages keep waiting
+                failures++;
+                if (failures < RetryQueue.DEFAULT_MAX_ATTEMPTS) {
+                    retries.incrementAndGet();
+                    fetchers.schedule(this, RetryQueue.delayMillis(failures), TimeUnit.MILLISECONDS);
+                    return;
+                }
+
+                rules = RobotsRules.DISALLOW_ALL;
+                keep = negativeTTL;
+            }
+
+            fetches.incrementAndGet();
+
+            // pages must come in at the host's pace from the first one
+            double delay = Math.min(rules.getCrawlDelay(), MAX_CRAWL_DELAY);
+            if (delay > 0) {
+                double rate = scheduler.getDefaultRate();
+                scheduler.setHostRate(entry.host, rate == 0 ? 1 / delay : Math.min(rate, 1 / delay));
+            }
+
+            List<URLDepthPair> waiting;
+
+            synchronized (RobotsCache.this) {
+                entry.rules = rules;
+                entry.expires = System.currentTimeMillis() + keep;
+                entry.fetching = false;
+                waiting = entry.waiting;
+                entry.waiting = null;
+            }
+
+            listener.rulesReady(waiting == null ? new ArrayList<URLDepthPair>() : waiting);
+        }
+    }
+
+    /*
+     * this inner class is the robots.txt of one
+     * scheme, host and port
+     */
+    private static class Entry {
+
+        // where the robots.txt is
+        String host;
+        String authority;
+        int port;
+        boolean secure;
+
+        // the compiled rules, null until the first fetch is done
+        volatile RobotsRules rules;
+
+        // when the rules must be fetched again
+        volatile long expires;
+
+        // true while a fetch is running
+        boolean fetching;
+
+        // pages that came before the first rules did
+        ArrayList<URLDepthPair> waiting;
+
+        // the next entry of the same host
+        Entry next;
+
+        Entry(URLDepthPair pair, Entry next) {
+            this.host = pair.getHost();
+            this.authority = pair.getAuthority();
+            this.port = pair.getPort();
+            this.secure = pair.isSecure();
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This class holds the rules of one robots.txt, compiled for the user agent
+ * we crawl as. Allow and Disallow paths go into a byte trie, so checking a
+ * path is a single walk down it with no String made and no regex run, and the
+ * longest matching rule wins, with Allow winning a tie. The few rules with a
+ * '*' wildcard are matched on their own. It also keeps the Crawl-delay
+ */
+public class RobotsRules {
+
+    // what a rule says about the paths it matches
+    private static final byte NONE = 0;
+    private static final byte ALLOW = 1;
+    private static final byte DISALLOW = 2;
+
+    // rules that let every page through, for a host without a robots.txt
+    public static final RobotsRules ALLOW_ALL = new RobotsRules();
+
+    // rules that keep every page out, for a host we couldn't ask
+    public static final RobotsRules DISALLOW_ALL = new RobotsRules();
+
+    static {
+        DISALLOW_ALL.addRule("/", false);
+    }
+
+    // the trie, one entry per node with node 0 the root
+    private byte[] label;
+    private int[] firstChild;
+    private int[] nextSibling;
+
+    // the rule ending at a node, and the rule ending there with a '$'
+    private byte[] verdict;
+    private byte[] endVerdict;
+
+    // number of nodes used
+    private int nodes;
+
+    // rules with a wildcard, which the trie can't hold
+    private ArrayList<byte[]> patterns;
+    private ArrayList<Boolean> patternAllows;
+    private ArrayList<Boolean> patternAnchored;
+
+    // number of rules
+    private int ruleCount;
+
+    // seconds to wait between fetches, or 0 if none was asked for
+    private double crawlDelay;
+
+    /*
+     * constructor for rules that allow everything
+     * until some are added
+     */
+    private RobotsRules() {
+
+        label = new byte[16];
+        firstChild = new int[16];
+        nextSibling = new int[16];
+        verdict = new byte[16];
+        endVerdict = new byte[16];
+        firstChild[0] = -1;
+        nextSibling[0] = -1;
+        nodes = 1;
+
+        patterns = new ArrayList<byte[]>();
+        patternAllows = new ArrayList<Boolean>();
+        patternAnchored = new ArrayList<Boolean>();
+    }
+
+    /*
+     * compiles the rules of a robots.txt that apply to agent. the groups
+     * naming agent are used if there are any, otherwise the ones for "*"
+     */
+    public static RobotsRules parse(String text, String agent) {
+
+        RobotsRules mine = new RobotsRules();
+        RobotsRules anyone = new RobotsRules();
+
+        // the user agents of the group we are in
+        boolean forMe = false;
+        boolean forAnyone = false;
+        boolean inRules = false;
+
+        // set once any group names agent, even one without rules
+        boolean named = false;
+
+        for (String line : text.split("\r\n|\r|\n")) {
+
+            int hash = line.indexOf('#');
+            if (hash >= 0) {
+                line = line.substring(0, hash);
+            }
+
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+
+            String field = line.substring(0, colon).trim().toLowerCase();
+            String value = line.substring(colon + 1).trim();
+
+            if (field.equals("user-agent")) {
+
+                // a user agent after rules starts a new group
+                if (inRules) {
+                    forMe = forAnyone = inRules = false;
+                }
+
+                if (value.equals("*")) {
+                    forAnyone = true;
+                } else if (value.equalsIgnoreCase(agent)) {
+                    forMe = true;
+                    named = true;
+                }
+                continue;
+            }
+
+            if (field.equals("allow") || field.equals("disallow") || field.equals("crawl-delay")) {
+
+                inRules = true;
+
+                if (field.equals("crawl-delay")) {
+                    double delay = parseDelay(value);
+                    if (forMe) {
+                        mine.crawlDelay = delay;
+                    }
+                    if (forAnyone) {
+                        anyone.crawlDelay = delay;
+                    }
+                    continue;
+                }
+
+                // an empty Disallow allows everything, which is the default anyway
+                if (value.isEmpty()) {
+                    continue;
+                }
+
+                boolean allow = field.equals("allow");
+                if (forMe) {
+                    mine.addRule(value, allow);
+                }
+                if (forAnyone) {
+                    anyone.addRule(value, allow);
+                }
+            }
+
+            // sitemaps and anything else we don't use are skipped
+        }
+
+        return named ? mine : anyone;
+    }
+
+    /*
+     * returns true if the path and query of pair
+     * may be fetched
+     */
+    public boolean isAllowed(URLDepthPair pair) {
+
+        byte[] url = pair.urlBytes();
+        int start = pair.pathOffset();
+        return isAllowed(url, start, url.length - start);
+    }
+
+    /*
+     * returns true if a path, with its query,
+     * may be fetched
+     */
+    public boolean isAllowed(String path) {
+
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        return isAllowed(bytes, 0, bytes.length);
+    }
+
+    /*
+     * returns true if the len bytes of path at off
+     * may be fetched
+     */
+    public boolean isAllowed(byte[] path, int off, int len) {
+
+        // length of the longest rule matched so far, and what it said
+        int best = -1;
+        boolean allowed = true;
+
+        int node = 0;
+        int end = off + len;
+
+        for (int i = off; i < end; i++) {
+
+            // find the child for the next byte
+            byte b = path[i];
+            int child = firstChild[node];
+            while (child != -1 && label[child] != b) {
+                child = nextSibling[child];
+            }
+
+            if (child == -1) {
+                break;
+            }
+            node = child;
+
+            int length = i - off + 1;
+
+            if (verdict[node] != NONE) {
+                best = length;
+                allowed = verdict[node] == ALLOW;
+            }
+
+            // a rule ending in '$' only matches the whole path, and the '$' counts to its length
+            if (i == end - 1 && endVerdict[node] != NONE) {
+                best = length + 1;
+                allowed = endVerdict[node] == ALLOW;
+            }
+        }
+
+        for (int p = 0; p < patterns.size(); p++) {
+
+            byte[] pattern = patterns.get(p);
+            int length = pattern.length + (patternAnchored.get(p) ? 1 : 0);
+            boolean allow = patternAllows.get(p);
+
+            if ((length > best || (length == best && allow && !allowed))
+                && glob(pattern, patternAnchored.get(p), path, off, end)) {
+                best = length;
+                allowed = allow;
+            }
+        }
+
+        return allowed;
+    }
+
+    /*
+     * returns the seconds to wait between fetches
+     * from the host, or 0 if it didn't say
+     */
+    public double getCrawlDelay() {
+        return crawlDelay;
+    }
+
+    /*
+     * returns the number of Allow and Disallow rules
+     */
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    // adds an Allow or Disallow rule for path
+    private void addRule(String path, boolean allow) {
+
+        // paths are matched from the root
+        if (!path.startsWith("/") && !path.startsWith("*")) {
+            path = "/" + path;
+        }
+
+        boolean anchored = path.endsWith("$");
+        if (anchored) {
+            path = path.substring(0, path.length() - 1);
+        }
+
+        // a '*' at the end matches what a prefix already does
+        while (!anchored && path.endsWith("*")) {
+            path = path.substring(0, path.length() - 1);
+        }
+
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        ruleCount++;
+
+        if (path.indexOf('*') >= 0) {
+            patterns.add(bytes);
+            patternAllows.add(allow);
+            patternAnchored.add(anchored);
+            return;
+        }
+
+        // the root itself has no byte, so an empty path can't be stored
+        if (bytes.length == 0) {
+            if (!anchored) {
+                patterns.add(bytes);
+                patternAllows.add(allow);
+                patternAnchored.add(false);
+            }
+            return;
+        }
+
+        int node = 0;
+        for (byte b : bytes) {
+            node = child(node, b);
+        }
+
+        // when an Allow and a Disallow are the same length the Allow wins
+        byte mark = allow ? ALLOW : DISALLOW;
+        if (anchored) {
+            endVerdict[node] = endVerdict[node] == ALLOW ? ALLOW : mark;
+        } else {
+            verdict[node] = verdict[node] == ALLOW ? ALLOW : mark;
+        }
+    }
+
+    // returns the child of node for b, adding it if there is none
+    private int child(int node, byte b) {
+
+        for (int c = firstChild[node]; c != -1; c = nextSibling[c]) {
+            if (label[c] == b) {
+                return c;
+            }
+        }
+
+        if (nodes == label.length) {
+            int size = nodes * 2;
+            label = Arrays.copyOf(label, size);
+            firstChild = Arrays.copyOf(firstChild, size);
+            nextSibling = Arrays.copyOf(nextSibling, size);
+            verdict = Arrays.copyOf(verdict, size);
+            endVerdict = Arrays.copyOf(endVerdict, size);
+        }
+
+        int c = nodes++;
+        label[c] = b;
+        firstChild[c] = -1;
+        nextSibling[c] = firstChild[node];
+        firstChild[node] = c;
+        return c;
+    }
+
+    // returns true if pattern, where '*' matches anything, matches the start of
+    // path, or all of it if anchored
+    private static boolean glob(byte[] pattern, boolean anchored, byte[] path, int off, int end) {
+
+        int p = 0;
+        int s = off;
+
+        // where to pick up again if what follows the last '*' doesn't match
+        int starP = -1;
+        int starS = 0;
+
+        while (true) {
+
+            if (p < pattern.length && pattern[p] == '*') {
+                p++;
+                starP = p;
+                starS = s;
+                continue;
+            }
+
+            if (p == pattern.length && (!anchored || s == end)) {
+                return true;
+            }
+
+            if (p < pattern.length && s < end && pattern[p] == path[s]) {
+                p++;
+                s++;
+                continue;
+            }
+
+            // let the last '*' take one more byte and try again
+            if (starP == -1 || starS >= end) {
+                return false;
+            }
+            starS++;
+            p = starP;
+            s = starS;
+        }
+    }
+
+    // parses a Crawl-delay value, 0 if it isn't a number
+    private static double parseDelay(String value) {
+
+        try {
+            double delay = Double.parseDouble(value);
+            return delay > 0 && !Double.isInfinite(delay) ? delay : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
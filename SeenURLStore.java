@@ -0,0 +1,453 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * This class remembers every URL the crawler has already queued so that no
+ * page is fetched twice. URLs are stored as 64-bit fingerprints in an exact
+ * open-addressing hash set while that fits in the memory budget, next to the
+ * smallest depth each was queued at and whether its page was reported. A URL
+ * found again closer to the first page counts as new, since more of the site
+ * is in reach from there. Once the set would outgrow the budget it is folded
+ * into a Bloom filter that uses the whole budget, which trades a small,
+ * reported false-positive rate for a fixed heap. The filter can't keep depths,
+ * so from then on a URL is only ever queued at the depth it was first found
+ */
+public class SeenURLStore {
+
+    // memory budget used when none is given, 64 MB
+    public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    // number of bits the Bloom filter plans for each URL, about 1% false positives
+    public static final int BLOOM_BITS_PER_URL = 10;
+
+    // number of hash functions used with BLOOM_BITS_PER_URL bits per url
+    public static final int BLOOM_HASHES = 7;
+
+    // size of the exact table when the store is created
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // fingerprint stored in place of 0, since 0 marks an empty slot
+    private static final long ZERO_FINGERPRINT = 0x9E3779B97F4A7C15L;
+
+    // deepest depth kept, deeper ones are kept as this
+    public static final int MAX_DEPTH = 0x7fff;
+
+    // bit of a slot's mark set once its page was reported, below it the depth
+    private static final int REPORTED = 0x8000;
+
+    // bytes an exact slot takes, its fingerprint and its mark
+    private static final int SLOT_BYTES = 10;
+
+    // the most memory this store may use, in bytes
+    private long budgetBytes;
+
+    // open-addressing table of fingerprints, null once we switched to the Bloom filter
+    private long[] table;
+
+    // the depth and reported bit of the fingerprint in the same slot of table
+    private short[] marks;
+
+    // bits of the Bloom filter, null while the store is still exact
+    private long[] bloomBits;
+
+    // number of usable bits in bloomBits
+    private long numBits;
+
+    // number of distinct urls added so far
+    private long count;
+
+    /*
+     * constructor that creates an exact store
+     * with the default memory budget
+     */
+    public SeenURLStore() {
+
+        this(DEFAULT_BUDGET_BYTES);
+    }
+
+    /*
+     * constructor that creates an exact store which may
+     * use up to budgetBytes of memory
+     */
+    public SeenURLStore(long budgetBytes) {
+
+        this.budgetBytes = Math.max(budgetBytes, INITIAL_CAPACITY * (long) SLOT_BYTES);
+        table = new long[INITIAL_CAPACITY];
+        marks = new short[INITIAL_CAPACITY];
+        count = 0;
+    }
+
+    /*
+     * adds a fingerprint to the store. returns true if it wasn't
+     * seen before, which means the url should be queued
+     */
+    public synchronized boolean addIfAbsent(long fp) {
+
+        return addIfShallower(fp, MAX_DEPTH);
+    }
+
+    /*
+     * adds a fingerprint found at depth to the store. returns true if it
+     * wasn't seen before, or only at a greater depth, which means the url
+     * should be queued at depth. a Bloom filter only knows the first one
+     */
+    public synchronized boolean addIfShallower(long fp, int depth) {
+
+        if (fp == 0) {
+            fp = ZERO_FINGERPRINT;
+        }
+        depth = Math.min(depth, MAX_DEPTH);
+
+        if (table != null) {
+
+            int i = find(table, fp);
+
+            if (table[i] != 0) {
+
+                if ((marks[i] & MAX_DEPTH) <= depth) {
+                    return false;
+                }
+                marks[i] = (short) ((marks[i] & REPORTED) | depth);
+                return true;
+            }
+
+            table[i] = fp;
+            marks[i] = (short) depth;
+            count++;
+
+            // keep the table at most half full
+            if (count * 2 > table.length) {
+                grow();
+            }
+            return true;
+        }
+
+        if (!insertBloom(fp)) {
+            return false;
+        }
+
+        count++;
+        return true;
+    }
+
+    /*
+     * returns false if the url was already queued at depth or closer
+     * to the first page, so finding it at depth changes nothing. once
+     * the store is a Bloom filter, false only means it was seen
+     */
+    public synchronized boolean isShallower(long fp, int depth) {
+
+        if (fp == 0) {
+            fp = ZERO_FINGERPRINT;
+        }
+
+        if (table != null) {
+            int i = find(table, fp);
+            return table[i] == 0 || (marks[i] & MAX_DEPTH) > Math.min(depth, MAX_DEPTH);
+        }
+        return !contains(fp);
+    }
+
+    /*
+     * returns true if the url was queued closer to the first page
+     * than depth since, so a copy queued at depth is left over
+     */
+    public synchronized boolean isDeeperCopy(long fp, int depth) {
+
+        if (fp == 0) {
+            fp = ZERO_FINGERPRINT;
+        }
+
+        if (table == null) {
+            return false;
+        }
+
+        int i = find(table, fp);
+        return table[i] != 0 && (marks[i] & MAX_DEPTH) < Math.min(depth, MAX_DEPTH);
+    }
+
+    /*
+     * returns true if the page of a url was reported already
+     */
+    public synchronized boolean isReported(long fp) {
+
+        if (fp == 0) {
+            fp = ZERO_FINGERPRINT;
+        }
+
+        if (table == null) {
+            return false;
+        }
+
+        int i = find(table, fp);
+        return table[i] != 0 && (marks[i] & REPORTED) != 0;
+    }
+
+    /*
+     * marks the page of a url as reported. returns false if it was
+     * before, when the page is fetched again from a smaller depth
+     */
+    public synchronized boolean markReported(long fp) {
+
+        if (fp == 0) {
+            fp = ZERO_FINGERPRINT;
+        }
+
+        if (table == null) {
+            return true;
+        }
+
+        // a page that was never queued, like a resumed one, has nothing to mark
+        int i = find(table, fp);
+        if (table[i] == 0) {
+            return true;
+        }
+
+        if ((marks[i] & REPORTED) != 0) {
+            return false;
+        }
+        marks[i] |= REPORTED;
+        return true;
+    }
+
+    /*
+     * checks whether a fingerprint was already added.
+     * once the store is a Bloom filter this can be a false positive
+     */
+    public synchronized boolean contains(long fp) {
+
+        if (fp == 0) {
+            fp = ZERO_FINGERPRINT;
+        }
+
+        if (table != null) {
+            return table[find(table, fp)] != 0;
+        }
+
+        long h2 = mix(fp) | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Long.remainderUnsigned(fp + i * h2, numBits);
+            if ((bloomBits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * returns the number of distinct urls added
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    /*
+     * returns true while every answer of the store is exact
+     */
+    public synchronized boolean isExact() {
+        return table != null;
+    }
+
+    /*
+     * returns the number of bytes used by the table or filter
+     */
+    public synchronized long memoryBytes() {
+        return table != null ? (long) SLOT_BYTES * table.length : 8L * bloomBits.length;
+    }
+
+    /*
+     * returns the chance that a url never added is reported as seen,
+     * estimated from the number of urls in the Bloom filter
+     */
+    public synchronized double falsePositiveRate() {
+
+        if (table != null) {
+            return 0.0;
+        }
+
+        double filled = 1.0 - Math.exp(-(double) BLOOM_HASHES * count / numBits);
+        return Math.pow(filled, BLOOM_HASHES);
+    }
+
+    /*
+     * toString method that we override to report
+     * the size, memory use and false-positive rate
+     */
+    @Override
+    public synchronized String toString() {
+
+        return "Seen URLs: " + count
+            + ", Mode: " + (table != null ? "exact" : "bloom")
+            + ", Memory: " + (memoryBytes() / 1024) + " KB"
+            + ", False positive rate: " + String.format("%.6f", falsePositiveRate());
+    }
+
+    /*
+     * writes the whole store, so a crawl can be resumed with it
+     */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+
+        out.writeLong(budgetBytes);
+        out.writeLong(count);
+        out.writeBoolean(table != null);
+
+        long[] words = table != null ? table : bloomBits;
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+
+        if (table != null) {
+            for (short mark : marks) {
+                out.writeShort(mark);
+            }
+        }
+    }
+
+    /*
+     * reads a store written by writeTo
+     */
+    public static SeenURLStore readFrom(DataInputStream in) throws IOException {
+
+        SeenURLStore store = new SeenURLStore(in.readLong());
+        store.count = in.readLong();
+        boolean exact = in.readBoolean();
+
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+
+        if (exact) {
+            store.table = words;
+            store.marks = new short[words.length];
+            for (int i = 0; i < words.length; i++) {
+                store.marks[i] = in.readShort();
+            }
+        } else {
+            store.table = null;
+            store.bloomBits = words;
+            store.numBits = words.length * 64L;
+        }
+        return store;
+    }
+
+    /*
+     * computes the 64-bit fingerprint of a url's bytes: FNV-1a,
+     * finished with a mix so every bit is well spread
+     */
+    public static long fingerprint(byte[] url, int off, int len) {
+
+        long h = 0xcbf29ce484222325L;
+        for (int i = off; i < off + len; i++) {
+            h ^= url[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /*
+     * doubles the exact table, or switches to the Bloom filter
+     * when a bigger table would not fit in the budget
+     */
+    private void grow() {
+
+        long[] old = table;
+        short[] oldMarks = marks;
+
+        if (old.length * 2L * SLOT_BYTES > budgetBytes) {
+            switchToBloom();
+            return;
+        }
+
+        table = new long[old.length * 2];
+        marks = new short[old.length * 2];
+
+        for (int j = 0; j < old.length; j++) {
+            if (old[j] != 0) {
+                int i = find(table, old[j]);
+                table[i] = old[j];
+                marks[i] = oldMarks[j];
+            }
+        }
+    }
+
+    /*
+     * builds a Bloom filter that takes the whole budget and
+     * moves every fingerprint from the exact table into it
+     */
+    private void switchToBloom() {
+
+        long words = budgetBytes / 8;
+        bloomBits = new long[(int) Math.min(words, Integer.MAX_VALUE - 8)];
+        numBits = bloomBits.length * 64L;
+
+        for (long fp : table) {
+            if (fp != 0) {
+                insertBloom(fp);
+            }
+        }
+        table = null;
+        marks = null;
+
+        // standard output carries the results, so this goes with the other status lines
+        System.err.println("Seen URL store switched to a Bloom filter sized for "
+            + (numBits / BLOOM_BITS_PER_URL) + " URLs");
+    }
+
+    /*
+     * returns the slot of an exact table holding a fingerprint,
+     * or the empty slot it would go in
+     */
+    private static int find(long[] t, long fp) {
+
+        int mask = t.length - 1;
+        int i = slot(fp, mask);
+
+        while (t[i] != 0 && t[i] != fp) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /*
+     * sets the bits of a fingerprint in the Bloom filter, returns
+     * false if they were all set already
+     */
+    private boolean insertBloom(long fp) {
+
+        // derive all the hashes from two, Kirsch-Mitzenmacher style
+        long h2 = mix(fp) | 1;
+        boolean added = false;
+
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+
+            long bit = Long.remainderUnsigned(fp + i * h2, numBits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+
+            if ((bloomBits[word] & mask) == 0) {
+                bloomBits[word] |= mask;
+                added = true;
+            }
+        }
+        return added;
+    }
+
+    // picks the first slot to probe for a fingerprint
+    private static int slot(long fp, int mask) {
+        return (int) (fp ^ (fp >>> 32)) & mask;
+    }
+
+    // finalizer of MurmurHash3, spreads the bits of a 64-bit value
+    private static long mix(long h) {
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
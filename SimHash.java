@@ -0,0 +1,148 @@
+/**
+ * This class computes a 64-bit SimHash of a page while it streams past. The
+ * text outside of tags is split into words, each word is hashed, and every
+ * hash votes on every bit of the fingerprint. Pages with mostly the same words
+ * end up with fingerprints that differ in only a few bits, so near duplicates
+ * can be found by Hamming distance. Nothing is allocated per byte or per word
+ */
+public class SimHash {
+
+    // pages with fewer words than this are too small to call duplicates
+    public static final int MIN_TOKENS = 16;
+
+    // FNV-1a constants, same as the URL fingerprints use
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // the votes for every bit, positive means set
+    private int[] weights;
+
+    // hash of the word being read, and its length so far
+    private long tokenHash;
+    private int tokenLength;
+
+    // number of words read
+    private int tokens;
+
+    // set while inside a tag, whose markup isn't part of the text
+    private boolean inTag;
+
+    /*
+     * constructor for the hash of an empty page
+     */
+    public SimHash() {
+
+        weights = new int[64];
+        reset();
+    }
+
+    /*
+     * starts over for a new page
+     */
+    public void reset() {
+
+        for (int i = 0; i < 64; i++) {
+            weights[i] = 0;
+        }
+        tokenHash = FNV_OFFSET;
+        tokenLength = 0;
+        tokens = 0;
+        inTag = false;
+    }
+
+    /*
+     * reads the next len bytes of the page
+     */
+    public void feed(byte[] buf, int off, int len) {
+
+        int end = off + len;
+
+        for (int i = off; i < end; i++) {
+
+            int c = buf[i] & 0xff;
+
+            if (inTag) {
+                if (c == '>') {
+                    inTag = false;
+                }
+                continue;
+            }
+
+            if (c == '<') {
+                endToken();
+                inTag = true;
+                continue;
+            }
+
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c >= 0x80) {
+                tokenHash = (tokenHash ^ c) * FNV_PRIME;
+                tokenLength++;
+            } else if (c >= 'A' && c <= 'Z') {
+                tokenHash = (tokenHash ^ (c + ('a' - 'A'))) * FNV_PRIME;
+                tokenLength++;
+            } else {
+                endToken();
+            }
+        }
+    }
+
+    /*
+     * returns the fingerprint of everything read so far
+     */
+    public long value() {
+
+        endToken();
+
+        long value = 0;
+        for (int i = 0; i < 64; i++) {
+            if (weights[i] > 0) {
+                value |= 1L << i;
+            }
+        }
+        return value;
+    }
+
+    /*
+     * returns the number of words read
+     */
+    public int getTokenCount() {
+        return tokens;
+    }
+
+    /*
+     * returns the number of bits two fingerprints differ in
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /*
+     * spreads the bits of a hash, the finalizer of MurmurHash3
+     */
+    public static long mix(long h) {
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // lets the word just read vote on every bit
+    private void endToken() {
+
+        if (tokenLength == 0) {
+            return;
+        }
+
+        long h = mix(tokenHash);
+        for (int i = 0; i < 64; i++) {
+            weights[i] += ((int) (h >>> i) & 1) * 2 - 1;
+        }
+
+        tokens++;
+        tokenHash = FNV_OFFSET;
+        tokenLength = 0;
+    }
+}
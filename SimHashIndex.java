@@ -0,0 +1,199 @@
+/**
+ * This class remembers the SimHash fingerprints of the pages crawled so far
+ * and finds the ones within a Hamming distance of a new page. With a distance
+ * of k the 64 bits are cut into k + 1 bands, and two fingerprints that differ
+ * in at most k bits must agree on at least one whole band. Each band has its
+ * own table keyed by the band's bits, so only fingerprints sharing a band are
+ * ever compared instead of all of them
+ */
+public class SimHashIndex {
+
+    // Hamming distance used when none is given
+    public static final int DEFAULT_DISTANCE = 3;
+
+    // largest distance we accept, any more and the bands get too narrow to help
+    public static final int MAX_DISTANCE = 15;
+
+    // most bits that may differ for a page to be a near duplicate
+    private int maxDistance;
+
+    // the table of every band
+    private Band[] bands;
+
+    // fingerprints stored, and pages found to be near duplicates
+    private long size;
+    private long duplicates;
+
+    /*
+     * constructor that uses the default distance
+     */
+    public SimHashIndex() {
+
+        this(DEFAULT_DISTANCE);
+    }
+
+    /*
+     * constructor for an index that calls pages near duplicates
+     * when they differ in at most maxDistance bits
+     */
+    public SimHashIndex(int maxDistance) {
+
+        if (maxDistance < 0 || maxDistance > MAX_DISTANCE) {
+            throw new IllegalArgumentException("distance must be between 0 and " + MAX_DISTANCE);
+        }
+
+        this.maxDistance = maxDistance;
+
+        // spread the 64 bits as evenly as we can
+        int count = maxDistance + 1;
+        bands = new Band[count];
+        int shift = 0;
+        for (int i = 0; i < count; i++) {
+            int width = 64 / count + (i < 64 % count ? 1 : 0);
+            bands[i] = new Band(shift, width);
+            shift += width;
+        }
+    }
+
+    /*
+     * stores a fingerprint unless a near duplicate of it is already
+     * stored. returns false if there was one
+     */
+    public synchronized boolean addIfDistinct(long fingerprint) {
+
+        if (containsNear(fingerprint)) {
+            duplicates++;
+            return false;
+        }
+
+        for (Band band : bands) {
+            band.add(fingerprint);
+        }
+        size++;
+        return true;
+    }
+
+    /*
+     * returns true if a fingerprint within the distance
+     * of this one is stored
+     */
+    public synchronized boolean containsNear(long fingerprint) {
+
+        for (Band band : bands) {
+            if (band.containsNear(fingerprint, maxDistance)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * returns the number of fingerprints stored
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /*
+     * returns the number of pages found to be
+     * near duplicates
+     */
+    public synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /*
+     * toString method that we override to report
+     * how many duplicates were found
+     */
+    @Override
+    public synchronized String toString() {
+
+        return "Page fingerprints: " + size + ", Near duplicates: " + duplicates
+            + ", Max distance: " + maxDistance;
+    }
+
+    /*
+     * this inner class is the table of one band, an open addressing
+     * multimap from the band's bits to the whole fingerprints
+     */
+    private static class Band {
+
+        // where the band starts in the fingerprint and its bits
+        private int shift;
+        private long mask;
+
+        // the band's bits and the fingerprint of every slot
+        private long[] keys;
+        private long[] fingerprints;
+        private boolean[] used;
+
+        // slots used
+        private int count;
+
+        Band(int shift, int width) {
+
+            this.shift = shift;
+            this.mask = width == 64 ? -1L : (1L << width) - 1;
+            keys = new long[1024];
+            fingerprints = new long[1024];
+            used = new boolean[1024];
+        }
+
+        // returns true if a fingerprint sharing this band is near enough
+        boolean containsNear(long fingerprint, int maxDistance) {
+
+            long key = (fingerprint >>> shift) & mask;
+            int m = keys.length - 1;
+
+            for (int slot = (int) SimHash.mix(key) & m; used[slot]; slot = (slot + 1) & m) {
+                if (keys[slot] == key && SimHash.distance(fingerprints[slot], fingerprint) <= maxDistance) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // stores a fingerprint under its band, next to any others with the same band
+        void add(long fingerprint) {
+
+            if (count * 2 >= keys.length) {
+                grow();
+            }
+            insert((fingerprint >>> shift) & mask, fingerprint);
+        }
+
+        private void insert(long key, long fingerprint) {
+
+            int m = keys.length - 1;
+            int slot = (int) SimHash.mix(key) & m;
+            while (used[slot]) {
+                slot = (slot + 1) & m;
+            }
+
+            keys[slot] = key;
+            fingerprints[slot] = fingerprint;
+            used[slot] = true;
+            count++;
+        }
+
+        // doubles the table and puts everything back
+        private void grow() {
+
+            long[] oldKeys = keys;
+            long[] oldFingerprints = fingerprints;
+            boolean[] oldUsed = used;
+
+            keys = new long[oldKeys.length * 2];
+            fingerprints = new long[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            count = 0;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    insert(oldKeys[i], oldFingerprints[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,613 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * This class serves a made-up web site on the loopback interface, so the
+ * crawler can be measured without a network. The site is a tree of pages:
+ * the root links to fanOut pages, each of those to fanOut more, down to the
+ * given depth. Every page is padded to a page size, answered after a latency,
+ * and may link to pages it already reached besides its children, so the
+ * crawler has duplicates to skip. A fraction of the pages answer 500. Which
+ * pages fail, which links repeat and the padding all come from a hash of the
+ * page number and the seed, so the same options always give the same site.
+ * Pages can be spread over several hosts, 127.0.0.1 up to 127.0.0.n. Over
+ * HTTPS the site makes itself a self-signed certificate for those hosts
+ * with keytool, and leaves it in a file the crawler can be told to trust
+ */
+public class SyntheticSite {
+
+    // the options used when none are given
+    public static final int DEFAULT_PORT = 8900;
+    public static final int DEFAULT_FAN_OUT = 10;
+    public static final int DEFAULT_DEPTH = 3;
+    public static final int DEFAULT_PAGE_SIZE = 16 * 1024;
+    public static final long DEFAULT_SEED = 42;
+
+    // most hosts a site may be spread over, the addresses 127.0.0.1 to 127.0.0.254
+    public static final int MAX_HOSTS = 254;
+
+    // threads answering requests, enough that the latency doesn't queue them up
+    public static final int SERVER_THREADS = 256;
+
+    // password of the keystore made for HTTPS. it only ever holds a throwaway key
+    private static final char[] KEYSTORE_PASSWORD = "synthetic".toCharArray();
+
+    // words the pages are padded with
+    private static final String[] WORDS = { "lorem", "ipsum", "dolor", "sit", "amet", "consectetur",
+        "adipiscing", "elit", "sed", "do", "eiusmod", "tempor", "incididunt", "ut", "labore", "et" };
+
+    // shape of the site
+    private int port;
+    private int fanOut;
+    private int depth;
+    private int pageSize;
+    private int hosts;
+
+    // milliseconds before every answer
+    private long latency;
+
+    // fraction of the pages that answer 500
+    private double errorRate;
+
+    // fraction of the links on a page that go to a page already linked elsewhere
+    private double duplicateRatio;
+
+    // picks the failing pages, repeated links and padding
+    private long seed;
+
+    // true to answer over HTTPS, and the certificate the site made for it
+    private boolean https;
+    private File certificate;
+
+    // pages in the site, and the first page of every level
+    private long pageCount;
+    private long[] levelStart;
+
+    // one server per host, and the threads they share
+    private List<HttpServer> servers;
+    private ExecutorService executor;
+
+    // requests answered, and how many of them were errors
+    private AtomicLong requests;
+    private AtomicLong errors;
+
+    /*
+     * constructor for a site with the default options
+     */
+    public SyntheticSite() {
+
+        port = DEFAULT_PORT;
+        fanOut = DEFAULT_FAN_OUT;
+        depth = DEFAULT_DEPTH;
+        pageSize = DEFAULT_PAGE_SIZE;
+        hosts = 1;
+        seed = DEFAULT_SEED;
+        requests = new AtomicLong();
+        errors = new AtomicLong();
+    }
+
+    /*
+     * changes the port every host answers on, 0 for any free one
+     */
+    public void setPort(int port) {
+
+        this.port = port;
+    }
+
+    /*
+     * answers over HTTPS instead of HTTP
+     */
+    public void setHttps(boolean https) {
+
+        this.https = https;
+    }
+
+    /*
+     * usage statement of the site options, shared with the load test
+     */
+    public static String optionsUsage() {
+
+        return "[--port <n>] [--fan-out <n>] [--site-depth <n>] [--page-size <bytes>]"
+            + " [--latency <ms>] [--error-rate <0-1>] [--duplicate-ratio <0-1>]"
+            + " [--hosts <n>] [--seed <n>] [--https]";
+    }
+
+    /*
+     * reads the site option at args[i], if it is one. returns the index
+     * of the next argument, or -1 if args[i] isn't a site option. a bad
+     * value throws an IllegalArgumentException
+     */
+    public int parseOption(String[] args, int i) {
+
+        String name = args[i];
+        if (name.equals("--https")) {
+            https = true;
+            return i + 1;
+        }
+        if (i + 1 >= args.length) {
+            return -1;
+        }
+        String value = args[i + 1];
+
+        if (name.equals("--port")) {
+            port = Integer.parseInt(value);
+            check(port >= 0 && port < 65536, "The port must be between 0 and 65535.");
+        } else if (name.equals("--fan-out")) {
+            fanOut = Integer.parseInt(value);
+            check(fanOut >= 1, "The fan-out must be at least 1.");
+        } else if (name.equals("--site-depth")) {
+            depth = Integer.parseInt(value);
+            check(depth >= 0, "The site depth can't be negative.");
+        } else if (name.equals("--page-size")) {
+            pageSize = Integer.parseInt(value);
+            check(pageSize >= 0, "The page size can't be negative.");
+        } else if (name.equals("--latency")) {
+            latency = Long.parseLong(value);
+            check(latency >= 0, "The latency can't be negative.");
+        } else if (name.equals("--error-rate")) {
+            errorRate = Double.parseDouble(value);
+            check(errorRate >= 0 && errorRate <= 1, "The error rate must be between 0 and 1.");
+        } else if (name.equals("--duplicate-ratio")) {
+            duplicateRatio = Double.parseDouble(value);
+            check(duplicateRatio >= 0 && duplicateRatio < 1, "The duplicate ratio must be at least 0 and below 1.");
+        } else if (name.equals("--hosts")) {
+            hosts = Integer.parseInt(value);
+            check(hosts >= 1 && hosts <= MAX_HOSTS, "The hosts must be between 1 and " + MAX_HOSTS + ".");
+        } else if (name.equals("--seed")) {
+            seed = Long.parseLong(value);
+        } else {
+            return -1;
+        }
+        return i + 2;
+    }
+
+    // throws with message unless ok
+    private static void check(boolean ok, String message) {
+
+        if (!ok) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    /*
+     * starts answering on every host
+     */
+    public void start() throws IOException {
+
+        // the first page of every level of the tree
+        levelStart = new long[depth + 2];
+        long width = 1;
+        for (int d = 0; d <= depth; d++) {
+            levelStart[d + 1] = levelStart[d] + width;
+            width = width > Long.MAX_VALUE / fanOut ? Long.MAX_VALUE : width * fanOut;
+            check(levelStart[d + 1] > levelStart[d], "The site is too big.");
+        }
+        pageCount = levelStart[depth + 1];
+
+        executor = Executors.newFixedThreadPool(SERVER_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "synthetic-site");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        HttpHandler handler = new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                answer(exchange);
+            }
+        };
+
+        servers = new ArrayList<HttpServer>();
+
+        // without it the server's small writes wait on Nagle and the crawler's delayed
+        // ack, which adds about 40 ms to every page. it is read when the first server is made
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        HttpsConfigurator tls = https ? new HttpsConfigurator(selfSignedContext()) : null;
+
+        try {
+            for (int h = 0; h < hosts; h++) {
+
+                InetSocketAddress address = new InetSocketAddress(hostAddress(h), port);
+                HttpServer server;
+
+                if (tls != null) {
+                    HttpsServer secure = HttpsServer.create(address, 1024);
+                    secure.setHttpsConfigurator(tls);
+                    server = secure;
+                } else {
+                    server = HttpServer.create(address, 1024);
+                }
+
+                server.createContext("/", handler);
+                server.setExecutor(executor);
+                server.start();
+                servers.add(server);
+
+                // the first host picks the port when it was 0, the rest use the same one
+                port = server.getAddress().getPort();
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    // makes a key and a self-signed certificate for every host with keytool, and a
+    // server context using them. the certificate is written where getCertificateFile finds it
+    private SSLContext selfSignedContext() throws IOException {
+
+        File dir = Files.createTempDirectory("synthetic-site").toFile();
+        File keystore = new File(dir, "site.p12");
+        certificate = new File(dir, "site.pem");
+
+        // deleted in the reverse order, so the directory is empty by then
+        dir.deleteOnExit();
+        keystore.deleteOnExit();
+        certificate.deleteOnExit();
+
+        // the crawler checks the certificate is for the address it connected to
+        StringBuilder names = new StringBuilder("SAN=");
+        for (int h = 0; h < hosts; h++) {
+            names.append(h > 0 ? "," : "").append("ip:").append(hostAddress(h).getHostAddress());
+        }
+
+        String password = new String(KEYSTORE_PASSWORD);
+        keytool("-genkeypair", "-alias", "site", "-keyalg", "EC", "-keysize", "256",
+            "-dname", "CN=SyntheticSite", "-ext", names.toString(), "-validity", "2",
+            "-storetype", "PKCS12", "-keystore", keystore.getPath(), "-storepass", password);
+        keytool("-exportcert", "-rfc", "-alias", "site", "-keystore", keystore.getPath(),
+            "-storepass", password, "-file", certificate.getPath());
+
+        try {
+
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            InputStream in = new FileInputStream(keystore);
+            try {
+                store.load(in, KEYSTORE_PASSWORD);
+            } finally {
+                in.close();
+            }
+
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(store, KEYSTORE_PASSWORD);
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            return context;
+
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't load the site's key: " + e.getMessage(), e);
+        }
+    }
+
+    // runs the keytool of the running java with args, and throws with what it said if it failed
+    private static void keytool(String... args) throws IOException {
+
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath());
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        // what it says has to be read, or it can block once the pipe is full
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream in = process.getInputStream();
+        try {
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                output.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed: " + output.toString("UTF-8").trim());
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while making the site's certificate");
+        }
+    }
+
+    /*
+     * stops answering
+     */
+    public void stop() {
+
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+        executor.shutdownNow();
+    }
+
+    /*
+     * returns the url of the root page
+     */
+    public String getRootURL() {
+        return pageURL(0);
+    }
+
+    /*
+     * returns the file holding the site's self-signed certificate, for
+     * the crawler to trust, or null if the site isn't served over HTTPS
+     */
+    public File getCertificateFile() {
+        return certificate;
+    }
+
+    /*
+     * returns the url of page id, the root being 0
+     */
+    public String getPageURL(long id) {
+        return pageURL(id);
+    }
+
+    /*
+     * returns the number of pages in the site
+     */
+    public long getPageCount() {
+        return pageCount;
+    }
+
+    /*
+     * returns the number of levels below the root
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /*
+     * returns the number of pages that answer 500
+     */
+    public long getErrorPageCount() {
+
+        long count = 0;
+        for (long id = 0; id < pageCount; id++) {
+            if (isError(id)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * toString method that we override to describe the
+     * site and how much of it was asked for
+     */
+    @Override
+    public String toString() {
+
+        return "Site: " + pageCount + " pages on " + hosts + " host" + (hosts == 1 ? "" : "s")
+            + ", Fan-out: " + fanOut + ", Depth: " + depth + ", Page size: " + pageSize
+            + ", Latency: " + latency + " ms, Requests: " + requests.get() + ", Errors: " + errors.get();
+    }
+
+    // answers one request
+    private void answer(HttpExchange exchange) throws IOException {
+
+        try {
+
+            requests.incrementAndGet();
+            long id = pageId(exchange.getRequestURI().getPath());
+
+            if (latency > 0) {
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            if (id < 0) {
+                send(exchange, 404, "<html>not found</html>");
+            } else if (isError(id)) {
+                errors.incrementAndGet();
+                send(exchange, 500, "<html>server error</html>");
+            } else {
+                send(exchange, 200, page(id));
+            }
+
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // sends a response with a length, so the connection is kept alive
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/html");
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    // the page number of a path like /p/123, or -1 if it isn't a page
+    private long pageId(String path) {
+
+        if (path.equals("/")) {
+            return 0;
+        }
+        if (!path.startsWith("/p/")) {
+            return -1;
+        }
+
+        try {
+            long id = Long.parseLong(path.substring(3));
+            return id >= 0 && id < pageCount ? id : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // the html of a page: its children, its repeated links, then padding
+    private String page(long id) {
+
+        StringBuilder html = new StringBuilder(pageSize + 256);
+        html.append("<html><head><title>Page ").append(id).append("</title></head><body>\n");
+
+        int level = levelOf(id);
+
+        if (level < depth) {
+
+            // children are numbered level by level, fanOut to a page
+            long firstChild = levelStart[level + 1] + (id - levelStart[level]) * fanOut;
+            for (int i = 0; i < fanOut; i++) {
+                link(html, firstChild + i);
+            }
+
+            // links to pages reached from elsewhere, duplicateRatio of them all
+            int repeats = (int) Math.round(fanOut * duplicateRatio / (1 - duplicateRatio));
+            for (int i = 0; i < repeats; i++) {
+                link(html, Long.remainderUnsigned(hash(id, i + 1), levelStart[level + 1]));
+            }
+        }
+
+        long h = hash(id, -1);
+        while (html.length() < pageSize) {
+            h = mix(h);
+            html.append(WORDS[(int) (h & 15)]).append(' ');
+            if ((h & 0xf0) == 0) {
+                html.append("\n<p>");
+            }
+        }
+
+        html.append("</body></html>\n");
+        return html.toString();
+    }
+
+    // appends a link to a page
+    private void link(StringBuilder html, long id) {
+
+        html.append("<a href=\"").append(pageURL(id)).append("\">page ").append(id).append("</a>\n");
+    }
+
+    // the url of a page, on the host it belongs to
+    private String pageURL(long id) {
+
+        String path = id == 0 ? "/" : "/p/" + id;
+        return (https ? "https://" : "http://") + hostAddress((int) (id % hosts)).getHostAddress() + ":" + port + path;
+    }
+
+    // the address of host h
+    private static InetAddress hostAddress(int h) {
+
+        try {
+            return InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) (h + 1) });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the level of the tree a page is on
+    private int levelOf(long id) {
+
+        int level = 0;
+        while (id >= levelStart[level + 1]) {
+            level++;
+        }
+        return level;
+    }
+
+    // true if a page answers 500. the root never does, or there is nothing to crawl
+    private boolean isError(long id) {
+
+        if (id == 0 || errorRate == 0) {
+            return false;
+        }
+        return (hash(id, 0) >>> 11) * 0x1.0p-53 < errorRate;
+    }
+
+    // a hash of the seed, a page and what it's for
+    private long hash(long id, long what) {
+
+        return mix(mix(seed ^ id) + what);
+    }
+
+    // spreads the bits of x, the mixer of SplitMix64
+    private static long mix(long x) {
+
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    /*
+     * usage statement. used when given an illegal argument
+     */
+    public static void usage() {
+        System.out.println("usage: java SyntheticSite " + optionsUsage());
+        System.exit(1);
+    }
+
+    /*
+     * main function. serves the site described by the
+     * options until the program is stopped
+     */
+    public static void main(String[] args) {
+
+        SyntheticSite site = new SyntheticSite();
+
+        for (int i = 0; i < args.length; ) {
+
+            try {
+                i = site.parseOption(args, i);
+            } catch (IllegalArgumentException e) {
+                // a NumberFormatException is one too
+                System.out.println(e instanceof NumberFormatException ? "Options must be numbers." : e.getMessage());
+                usage();
+            }
+
+            if (i < 0) {
+                usage();
+            }
+        }
+
+        try {
+            site.start();
+        } catch (IOException e) {
+            System.out.println("Couldn't start site: " + e.getMessage());
+            System.exit(1);
+        }
+
+        System.out.println(site);
+        System.out.println("Root: " + site.getRootURL());
+
+        if (site.getCertificateFile() != null) {
+            System.out.println("Certificate: " + site.getCertificateFile() + " (crawl with --trust-cert)");
+        }
+    }
+}
@@ -0,0 +1,310 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * This class runs TLS over a non-blocking SocketChannel with an SSLEngine, so
+ * HTTPS pages go through the same selector loop as plain ones. Nothing in here
+ * ever blocks: the handshake and every read and write do what they can with
+ * the bytes at hand and say what they need next. The slow parts of a handshake
+ * are left for the caller to run on another thread
+ */
+public class TLSChannel {
+
+    // what the handshake needs before it can go on
+    public static final int NEED_READ = 0;
+    public static final int NEED_WRITE = 1;
+    public static final int NEED_TASK = 2;
+    public static final int DONE = 3;
+
+    // nothing to send, for wrapping handshake messages
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // the context the engine came from, told when the handshake is done
+    private TLSContext context;
+
+    // the connection to the server
+    private SocketChannel channel;
+
+    // encrypts and decrypts for this connection
+    private SSLEngine engine;
+
+    // encrypted bytes read but not decrypted yet, ready to be filled
+    private ByteBuffer netIn;
+
+    // encrypted bytes not written yet, ready to be drained
+    private ByteBuffer netOut;
+
+    // decrypted bytes handed out by read
+    private ByteBuffer appIn;
+
+    // set once the handshake finished
+    private boolean handshakeDone;
+
+    // when the handshake started
+    private long handshakeStart;
+
+    /*
+     * constructor for TLS with engine over channel. the
+     * handshake starts once the channel is connected
+     */
+    TLSChannel(TLSContext context, SocketChannel channel, SSLEngine engine) {
+
+        this.context = context;
+        this.channel = channel;
+        this.engine = engine;
+
+        int packet = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packet);
+        netOut = ByteBuffer.allocate(packet);
+        netOut.flip();
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    }
+
+    /*
+     * starts the handshake, call handshake() after this
+     * until it says it is done
+     */
+    public void beginHandshake() throws IOException {
+
+        handshakeStart = System.currentTimeMillis();
+        engine.beginHandshake();
+    }
+
+    /*
+     * moves the handshake along as far as it can go
+     * and returns what it needs next
+     */
+    public int handshake() throws IOException {
+
+        while (true) {
+
+            // everything we wrapped must go out before the server answers it
+            if (!flush()) {
+                return NEED_WRITE;
+            }
+
+            switch (engine.getHandshakeStatus()) {
+
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    if (!unwrapHandshake()) {
+                        int n = channel.read(netIn);
+                        if (n == -1) {
+                            throw new EOFException("connection closed during the TLS handshake");
+                        }
+                        if (n == 0) {
+                            return NEED_READ;
+                        }
+                    }
+                    break;
+
+                case NEED_TASK:
+                    return NEED_TASK;
+
+                default:
+                    handshakeDone = true;
+                    context.handshakeDone(engine.getSession(), handshakeStart);
+                    return DONE;
+            }
+        }
+    }
+
+    /*
+     * runs the slow parts of the handshake, like checking the
+     * certificate. may be called on any thread
+     */
+    public void runDelegatedTasks() {
+
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /*
+     * returns true once the handshake finished
+     */
+    public boolean isHandshakeDone() {
+        return handshakeDone;
+    }
+
+    /*
+     * encrypts and sends as much of src as the channel takes. returns
+     * true once all of src is on the wire, false to be called again
+     * when the channel is writable
+     */
+    public boolean write(ByteBuffer src) throws IOException {
+
+        while (flush()) {
+
+            if (!src.hasRemaining()) {
+                return true;
+            }
+            wrap(src);
+        }
+        return false;
+    }
+
+    /*
+     * decrypts whatever has arrived. returns the bytes in a buffer that is
+     * only valid until the next call, empty if nothing more is there yet,
+     * or null once the server closed the connection
+     */
+    public ByteBuffer read() throws IOException {
+
+        appIn.clear();
+
+        while (true) {
+
+            SSLEngineResult result = unwrap();
+
+            // session tickets and key updates can still come after the handshake
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP && flush()) {
+                wrap(EMPTY);
+                flush();
+            }
+
+            switch (result.getStatus()) {
+
+                case OK:
+                    break;
+
+                case BUFFER_OVERFLOW:
+                    if (appIn.position() > 0) {
+                        appIn.flip();
+                        return appIn;
+                    }
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+
+                case BUFFER_UNDERFLOW: {
+
+                    if (!netIn.hasRemaining()) {
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                    }
+
+                    int n = channel.read(netIn);
+
+                    // the server may close without a close_notify, the HTTP framing tells us if it was cut short
+                    if (n == -1) {
+                        return finalBytes();
+                    }
+                    if (n == 0) {
+                        appIn.flip();
+                        return appIn;
+                    }
+                    break;
+                }
+
+                case CLOSED:
+                    return finalBytes();
+            }
+        }
+    }
+
+    // hands out the last decrypted bytes, or null if there are none left
+    private ByteBuffer finalBytes() {
+
+        if (appIn.position() > 0) {
+            appIn.flip();
+            return appIn;
+        }
+        return null;
+    }
+
+    // unwraps the next record into appIn
+    private SSLEngineResult unwrap() throws SSLException {
+
+        netIn.flip();
+        try {
+            return engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    // unwraps a handshake message, returning false if it hasn't all arrived yet
+    private boolean unwrapHandshake() throws IOException {
+
+        SSLEngineResult result = unwrap();
+
+        switch (result.getStatus()) {
+
+            case BUFFER_UNDERFLOW:
+                if (!netIn.hasRemaining()) {
+                    netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                }
+                return false;
+
+            case BUFFER_OVERFLOW:
+                appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                return true;
+
+            case CLOSED:
+                throw new SSLException("connection closed during the TLS handshake");
+
+            default:
+                return true;
+        }
+    }
+
+    // encrypts src into netOut, which must be empty
+    private void wrap(ByteBuffer src) throws IOException {
+
+        netOut.clear();
+
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(src, netOut);
+        } finally {
+            netOut.flip();
+        }
+
+        switch (result.getStatus()) {
+
+            case BUFFER_OVERFLOW:
+                // the next try gets a bigger buffer
+                netOut = ByteBuffer.allocate(Math.max(netOut.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                netOut.flip();
+                break;
+
+            case CLOSED:
+                throw new SSLException("TLS connection closed");
+
+            default:
+                break;
+        }
+    }
+
+    // writes out what netOut holds, returning true once it is empty
+    private boolean flush() throws IOException {
+
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // copies a buffer being filled into a bigger one
+    private static ByteBuffer enlarge(ByteBuffer buf, int size) {
+
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buf.capacity() * 2));
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+}
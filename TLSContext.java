@@ -0,0 +1,176 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * This class holds what every HTTPS connection of the crawler shares: the
+ * SSLContext, which certificates are trusted, and the client session cache.
+ * Engines and sockets are always made for a host and port, so a second
+ * connection to the same host resumes the session of the first one instead of
+ * doing a full handshake. It counts handshakes and how many were resumed
+ */
+public class TLSContext {
+
+    // sessions the client cache keeps
+    public static final int SESSION_CACHE_SIZE = 10000;
+
+    // how long a cached session may be resumed, in seconds
+    public static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    // the context engines and sockets come from, replaced when the trust changes
+    private volatile SSLContext context;
+
+    // handshakes finished, and the ones that resumed a cached session
+    private AtomicLong handshakes;
+    private AtomicLong resumed;
+
+    /*
+     * constructor that trusts the certificates
+     * the JVM trusts by default
+     */
+    public TLSContext() {
+
+        handshakes = new AtomicLong();
+        resumed = new AtomicLong();
+
+        try {
+            setContext(null);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("no TLS support: " + e.getMessage());
+        }
+    }
+
+    /*
+     * trusts only the certificates in a PEM or DER file, like the
+     * self-signed one of a local test server, instead of the defaults
+     */
+    public void trustCertificates(File file) throws IOException, GeneralSecurityException {
+
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        store.load(null, null);
+
+        InputStream in = new FileInputStream(file);
+        try {
+            int i = 0;
+            for (Certificate cert : CertificateFactory.getInstance("X.509").generateCertificates(in)) {
+                store.setCertificateEntry("cert-" + i++, cert);
+            }
+        } finally {
+            in.close();
+        }
+
+        if (store.size() == 0) {
+            throw new IOException("no certificates in " + file);
+        }
+
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+        setContext(trust);
+    }
+
+    /*
+     * makes a client engine for host:port, checking the
+     * server's certificate is for that host
+     */
+    public SSLEngine createEngine(String host, int port) {
+
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setSSLParameters(parameters(engine.getSSLParameters()));
+        return engine;
+    }
+
+    /*
+     * opens a non-blocking TLS connection to host:port
+     * over a channel that is already connected
+     */
+    public TLSChannel open(SocketChannel channel, String host, int port) {
+
+        return new TLSChannel(this, channel, createEngine(host, port));
+    }
+
+    /*
+     * layers TLS over a connected socket to host:port
+     * and does the handshake before returning it
+     */
+    public SSLSocket createSocket(Socket plain, String host, int port) throws IOException {
+
+        SSLSocket sock = (SSLSocket) context.getSocketFactory().createSocket(plain, host, port, true);
+        sock.setSSLParameters(parameters(sock.getSSLParameters()));
+
+        long start = System.currentTimeMillis();
+        sock.startHandshake();
+        handshakeDone(sock.getSession(), start);
+        return sock;
+    }
+
+    /*
+     * counts a finished handshake. a session made before the
+     * handshake started came from the cache
+     */
+    void handshakeDone(SSLSession session, long start) {
+
+        handshakes.incrementAndGet();
+        if (session.getCreationTime() < start) {
+            resumed.incrementAndGet();
+        }
+    }
+
+    /*
+     * returns the number of handshakes finished
+     */
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /*
+     * returns the number of handshakes that resumed
+     * a cached session
+     */
+    public long getResumedCount() {
+        return resumed.get();
+    }
+
+    /*
+     * toString method that we override to report
+     * how often sessions were resumed
+     */
+    @Override
+    public String toString() {
+
+        return "TLS handshakes: " + handshakes.get() + ", Resumed: " + resumed.get();
+    }
+
+    // replaces the context, trusting what trust says or the defaults if null
+    private void setContext(TrustManagerFactory trust) throws GeneralSecurityException {
+
+        SSLContext fresh = SSLContext.getInstance("TLS");
+        fresh.init(null, trust == null ? null : trust.getTrustManagers(), null);
+
+        fresh.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        fresh.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+
+        context = fresh;
+    }
+
+    // turns on the check that the certificate is for the host we asked for
+    private static SSLParameters parameters(SSLParameters params) {
+
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        return params;
+    }
+}
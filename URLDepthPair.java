@@ -1,30 +1,56 @@
-import java.net.URL;
-import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * This class holds the architecture of a URLDepthPair that will
  * be stored in a list in a Crawler object. Each URLDepthPair is
  * made up of a URL and depth. This class holds all URL string parsing
- * methods as well 
+ * methods as well. The URL is parsed and normalized once, when the pair
+ * is made, into a single byte array with the offsets of its parts, so
+ * the crawler never has to parse it again
  */
 public class URLDepthPair {
 
-    /* url of the pair */
-    private String url;
+    /* normalized url of the pair, as UTF-8 */
+    private byte[] url;
+
+    /* end of the scheme, where "://" starts */
+    private int schemeEnd;
+
+    /* start and end of the host */
+    private int hostStart;
+    private int hostEnd;
+
+    /* start of the path, and of the query or url end if there is none */
+    private int pathStart;
+    private int queryStart;
+
+    /* port given in the url, or -1 for the scheme's default */
+    private int port;
+
+    /* the host, made from the url the first time it's asked for */
+    private String host;
+
+    /* 64-bit fingerprint of the normalized url */
+    private long fingerprint;
+
+    /* false if the url couldn't be parsed */
+    private boolean valid;
 
     /* depth of the pair */
     private int depth;
 
     /*
      * This is the constructor. Given a url and depth
-     * we set those attributes 
+     * we set those attributes
      */
     public URLDepthPair(String url, int depth) {
 
-        this.url = url;
-
         this.depth = depth;
 
+        parse(url);
+
+        fingerprint = SeenURLStore.fingerprint(this.url, 0, this.url.length);
     }
 
     /*
@@ -34,69 +60,367 @@ public class URLDepthPair {
     @Override
     public String toString() {
 
-        return "URL: " + url + ", Depth: " + Integer.toString(depth);
+        return "URL: " + getURL() + ", Depth: " + Integer.toString(depth);
+    }
+
+    /*
+     * two pairs are equal if they have the same
+     * normalized url and depth
+     */
+    @Override
+    public boolean equals(Object other) {
+
+        if (!(other instanceof URLDepthPair)) {
+            return false;
+        }
+
+        URLDepthPair pair = (URLDepthPair) other;
+        return fingerprint == pair.fingerprint && depth == pair.depth && Arrays.equals(url, pair.url);
     }
 
-    /* 
-     * returns the url 
+    /*
+     * hash code taken from the precomputed fingerprint
+     */
+    @Override
+    public int hashCode() {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) + depth;
+    }
+
+    /*
+     * returns the url
      */
     public String getURL() {
-        return url;
+        return new String(url, StandardCharsets.UTF_8);
     }
 
-    /* 
-     * returns the depth 
+    /*
+     * returns the depth
      */
     public int getDepth() {
         return depth;
     }
 
-    /* 
-     * checks to see if the url 
-     * is a valid one 
+    /*
+     * returns the 64-bit fingerprint of the url,
+     * used to tell whether it was seen before
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /*
+     * checks to see if the url
+     * is a valid one
      */
     public boolean isValidURL() {
+        return valid;
+    }
 
-        try {
-            new URL(url);
-            return true;
-        } 
-        catch (MalformedURLException e) {
-            return false;
+    /*
+     * gets the scheme of the url, like http
+     */
+    public String getScheme() {
+
+        if (!valid) {
+            System.out.println("Not a real URL");
+            return "Error";
         }
+        return new String(url, 0, schemeEnd, StandardCharsets.US_ASCII);
     }
 
-    /* 
+    /*
      * gets the host of the url
      */
     public String getHost() {
 
-        try {
-            URL aURL = new URL(url);
-            return aURL.getHost();
-        } 
-        catch (MalformedURLException e) {
+        if (!valid) {
+            System.out.println("Not a real URL");
+            return "Error";
+        }
+        return host();
+    }
+
+    /*
+     * gets the host, with the port if it isn't the
+     * default one, which is what the Host header carries
+     */
+    public String getAuthority() {
+
+        if (!valid) {
             System.out.println("Not a real URL");
             return "Error";
         }
-        
+        if (port == -1) {
+            return host();
+        }
+        return new String(url, hostStart, pathStart - hostStart, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * gets the port of the url, or the default
+     * port of its scheme if none was given
+     */
+    public int getPort() {
+
+        if (port != -1) {
+            return port;
+        }
+        return defaultPort(url, schemeEnd);
     }
 
-    /* 
+    /*
+     * returns true if the url is fetched over TLS
+     */
+    public boolean isSecure() {
+        return valid && defaultPort(url, schemeEnd) == 443;
+    }
+
+    /*
      * get the path of the url
      */
     public String getPath() {
 
-        try {
-            URL aURL = new URL(url);
-            return aURL.getPath();
+        if (!valid) {
+            System.out.println("Not a real URL");
+            return "Error";
+        }
+        return new String(url, pathStart, queryStart - pathStart, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * get the query of the url without the question
+     * mark, or null if it has none
+     */
+    public String getQuery() {
+
+        if (!valid || queryStart == url.length) {
+            return null;
+        }
+        return new String(url, queryStart + 1, url.length - queryStart - 1, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * get the path and query, which is what goes
+     * in the request line of a fetch
+     */
+    public String getRequestTarget() {
 
-        } 
-        catch (MalformedURLException e) {
+        if (!valid) {
             System.out.println("Not a real URL");
             return "Error";
+        }
+        return new String(url, pathStart, url.length - pathStart, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * returns the normalized url itself, for matchers that
+     * must not copy it. it must never be changed
+     */
+    byte[] urlBytes() {
+        return url;
+    }
+
+    /*
+     * returns where the path starts in urlBytes()
+     */
+    int pathOffset() {
+        return pathStart;
+    }
+
+    /*
+     * splits a url into scheme, host, port, path and query and stores it
+     * normalized: scheme and host lower case, no default port, no fragment
+     * and a path of "/" when there is none
+     */
+    private void parse(String s) {
+
+        byte[] raw = s.trim().getBytes(StandardCharsets.UTF_8);
+        int len = raw.length;
+
+        // the fragment never goes to the server
+        for (int i = 0; i < len; i++) {
+            if (raw[i] == '#') {
+                len = i;
+                break;
+            }
+        }
+
+        int colon = indexOf(raw, (byte) ':', 0, len);
+
+        if (colon <= 0 || !isScheme(raw, colon) || colon + 2 >= len
+            || raw[colon + 1] != '/' || raw[colon + 2] != '/') {
+            invalid(raw, len);
+            return;
+        }
+
+        int authStart = colon + 3;
+        int authEnd = authStart;
+        while (authEnd < len && raw[authEnd] != '/' && raw[authEnd] != '?') {
+            authEnd++;
+        }
+
+        // the host comes after any user info
+        int at = lastIndexOf(raw, (byte) '@', authStart, authEnd);
+        int hStart = at == -1 ? authStart : at + 1;
+        int hEnd = authEnd;
+        int explicitPort = -1;
+
+        // a port follows the last colon, unless it's inside an IPv6 literal
+        int portColon = lastIndexOf(raw, (byte) ':', hStart, authEnd);
+        if (portColon != -1 && indexOf(raw, (byte) ']', portColon, authEnd) == -1) {
+
+            hEnd = portColon;
+
+            if (portColon + 1 < authEnd) {
+
+                explicitPort = 0;
+                for (int i = portColon + 1; i < authEnd; i++) {
+                    if (raw[i] < '0' || raw[i] > '9' || explicitPort > 65535) {
+                        invalid(raw, len);
+                        return;
+                    }
+                    explicitPort = explicitPort * 10 + (raw[i] - '0');
+                }
+
+                if (explicitPort > 65535) {
+                    invalid(raw, len);
+                    return;
+                }
+            }
+        }
+
+        // build the normalized url
+        byte[] out = new byte[len + 1];
+        int n = 0;
+
+        for (int i = 0; i < colon; i++) {
+            out[n++] = lower(raw[i]);
+        }
+        schemeEnd = n;
+        out[n++] = ':';
+        out[n++] = '/';
+        out[n++] = '/';
+
+        for (int i = authStart; i < hStart; i++) {
+            out[n++] = raw[i];
+        }
+
+        hostStart = n;
+        for (int i = hStart; i < hEnd; i++) {
+            out[n++] = lower(raw[i]);
+        }
+        hostEnd = n;
+
+        // the scheme's own port is left out
+        port = explicitPort;
+        if (port != -1 && port == defaultPort(out, schemeEnd)) {
+            port = -1;
+        }
+        if (port != -1) {
+            out[n++] = ':';
+            byte[] digits = Integer.toString(port).getBytes(StandardCharsets.US_ASCII);
+            for (byte d : digits) {
+                out[n++] = d;
+            }
+        }
+
+        pathStart = n;
+        if (authEnd == len || raw[authEnd] != '/') {
+            out[n++] = '/';
+        }
+        for (int i = authEnd; i < len; i++) {
+            if (raw[i] == '?' && queryStart == 0) {
+                queryStart = n;
+            }
+            out[n++] = raw[i];
+        }
+        if (queryStart == 0) {
+            queryStart = n;
+        }
+
+        url = Arrays.copyOf(out, n);
+        valid = true;
+    }
+
+    // keeps the url as it was given, for a url we couldn't parse
+    private void invalid(byte[] raw, int len) {
+
+        url = Arrays.copyOf(raw, len);
+        schemeEnd = 0;
+        hostStart = hostEnd = pathStart = queryStart = 0;
+        port = -1;
+        valid = false;
+    }
+
+    /*
+     * makes the host String only once the pair is fetched, so pairs
+     * that just wait in the frontier carry nothing but the byte array
+     */
+    private String host() {
+
+        String h = host;
+        if (h == null) {
+            h = new String(url, hostStart, hostEnd - hostStart, StandardCharsets.UTF_8);
+            host = h;
+        }
+        return h;
+    }
+
+    // the port a scheme uses when none is given, or -1 if we don't know it
+    private static int defaultPort(byte[] buf, int schemeEnd) {
+
+        if (schemeEnd == 4 && buf[0] == 'h' && buf[1] == 't' && buf[2] == 't' && buf[3] == 'p') {
+            return 80;
+        }
+        if (schemeEnd == 5 && buf[0] == 'h' && buf[1] == 't' && buf[2] == 't' && buf[3] == 'p' && buf[4] == 's') {
+            return 443;
+        }
+        return -1;
+    }
+
+    // checks the characters before the colon make a scheme
+    private static boolean isScheme(byte[] buf, int end) {
+
+        for (int i = 0; i < end; i++) {
+            int c = lower(buf[i]);
+            boolean ok = (c >= 'a' && c <= 'z')
+                || (i > 0 && ((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.'));
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // first index of b in buf between from and to, or -1
+    private static int indexOf(byte[] buf, byte b, int from, int to) {
+
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // last index of b in buf between from and to, or -1
+    private static int lastIndexOf(byte[] buf, byte b, int from, int to) {
+
+        for (int i = to - 1; i >= from; i--) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // lower cases an ascii letter
+    private static byte lower(byte b) {
 
+        if (b >= 'A' && b <= 'Z') {
+            return (byte) (b + ('a' - 'A'));
         }
+        return b;
     }
 
-}
\ No newline at end of file
+}
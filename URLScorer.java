@@ -0,0 +1,114 @@
+/**
+ * This class gives every page a score from 0 to 63 for the best-first
+ * frontier, higher meaning fetch sooner. The score starts in the middle and
+ * goes down with depth, with every segment of a long path, with a query and
+ * with extensions of files that aren't pages or paths like a login form that
+ * lead nowhere. Pages on the first page's site get a little more, pages on
+ * hosts that were already crawled a lot get less, and every link found to a
+ * page raises it, by the logarithm of how many there are. Everything but the
+ * links is known when the page is queued, so that part is kept and only the
+ * links are added when one is found
+ */
+public class URLScorer {
+
+    // most score a page can have
+    public static final int MAX_SCORE = BucketQueue.LEVELS - 1;
+
+    // score of a page nothing is known about
+    private static final int START = 32;
+
+    // endings of urls that are not worth a fetch before the pages are
+    private static final String[] FILE_EXTENSIONS = {
+        ".jpg", ".jpeg", ".png", ".gif", ".svg", ".ico", ".css", ".js",
+        ".pdf", ".zip", ".gz", ".tar", ".mp3", ".mp4", ".avi", ".exe"
+    };
+
+    // parts of urls that are usually forms, feeds or endless calendars
+    private static final String[] TRAP_WORDS = {
+        "login", "logout", "signin", "signup", "register", "cart",
+        "print", "calendar", "session", "sort=", "share"
+    };
+
+    // the host of the first page, whose site is preferred
+    private String seedHost;
+
+    /*
+     * constructor for a scorer that prefers pages on seedHost
+     * and its subdomains
+     */
+    public URLScorer(String seedHost) {
+
+        this.seedHost = seedHost;
+    }
+
+    /*
+     * returns the part of a page's score that doesn't depend on its links,
+     * given how many pages were already taken from its host
+     */
+    public int baseScore(URLDepthPair pair, long hostFetched) {
+
+        int score = START;
+
+        score -= 4 * Math.min(pair.getDepth(), 4);
+
+        String host = pair.getHost();
+        if (host.equals(seedHost) || host.endsWith("." + seedHost)) {
+            score += 4;
+        }
+
+        // spread the crawl over hosts instead of draining one
+        score -= Math.min(64 - Long.numberOfLeadingZeros(hostFetched), 8);
+
+        String path = pair.getPath();
+        if (path.equals("/") || path.endsWith("/index.html")) {
+            score += 6;
+        }
+
+        int segments = 0;
+        for (int i = 1; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                segments++;
+            }
+        }
+        score -= Math.min(segments, 6);
+
+        if (path.length() > 100) {
+            score -= 3;
+        }
+
+        String query = pair.getQuery();
+        if (query != null) {
+            score -= 4;
+        }
+
+        String lower = path.toLowerCase();
+        for (String extension : FILE_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                score -= 16;
+                break;
+            }
+        }
+
+        String target = query == null ? lower : lower + "?" + query.toLowerCase();
+        for (String word : TRAP_WORDS) {
+            if (target.contains(word)) {
+                score -= 6;
+                break;
+            }
+        }
+
+        return score;
+    }
+
+    /*
+     * returns the score of a page with the given base
+     * score once inLinks links to it were found
+     */
+    public int score(int base, int inLinks) {
+
+        // 1 link is worth 3, 3 links 6, 7 links 9, and so on up to 15
+        int links = 3 * Math.min(32 - Integer.numberOfLeadingZeros(Math.max(inLinks, 0)), 5);
+
+        return Math.max(0, Math.min(MAX_SCORE, base + links));
+    }
+}